@@ -20,6 +20,10 @@ from game_server import utils
 from google.appengine.ext import db
 from message import Message
 
+# The number of player changes remembered by each instance. Clients
+# that are further behind than this receive the full players list.
+PLAYERS_LOG_LENGTH = 200
+
 class GameInstance(db.Expando):
   """ A model for an instance of a game.
 
@@ -45,6 +49,12 @@ class GameInstance(db.Expando):
       is put.
     max_players: An integer for the maximum number of players allowed
       in this instance or 0 if there is no maximum.
+    players_version: An integer incremented each time the instance is
+      put with a changed list of players.
+    players_log: The most recent changes to the players list, oldest
+      first, as strings of the form '<version> +<player>' or
+      '<version> -<player>'. Used to send clients only the changes
+      since the version they last saw.
 
   """
   players = db.StringListProperty(required=True)
@@ -54,12 +64,84 @@ class GameInstance(db.Expando):
   public = db.BooleanProperty(default=False)
   full = db.BooleanProperty(default=False)
   max_players = db.IntegerProperty(default=0)
+  players_version = db.IntegerProperty(default=0)
+  players_log = db.StringListProperty(default=[])
+
+  def __init__(self, *args, **kwargs):
+    """ Create the model and remember its players for put to compare. """
+    db.Expando.__init__(self, *args, **kwargs)
+    self._logged_players = list(self.players)
 
   def put(self):
-    """ Set the value of full and put this instance in the database. """
+    """ Set the value of full, log player changes and put this instance
+    in the database. """
     self.set_full()
+    self.log_player_changes()
     db.Model.put(self)
 
+  def log_player_changes(self):
+    """ Record changes to the players list since it was last logged.
+
+    Compares the players list with its value when this model was
+    loaded or last put. If they differ, increments players_version and
+    appends an entry to players_log for each player added or removed,
+    discarding the oldest versions once there are more than
+    PLAYERS_LOG_LENGTH entries.
+    """
+    old_players = set(self._logged_players)
+    new_players = set(self.players)
+    if old_players == new_players:
+      return
+    self.players_version += 1
+    for player in self._logged_players:
+      if player not in new_players:
+        self.players_log.append('%d -%s' % (self.players_version, player))
+    for player in self.players:
+      if player not in old_players:
+        self.players_log.append('%d +%s' % (self.players_version, player))
+    if len(self.players_log) > PLAYERS_LOG_LENGTH:
+      # Drop whole versions so that no version is left half logged.
+      oldest = int(self.players_log[-PLAYERS_LOG_LENGTH].split(' ', 1)[0])
+      self.players_log = [entry for entry in self.players_log
+                          if int(entry.split(' ', 1)[0]) > oldest]
+    self._logged_players = list(self.players)
+
+  def get_players_delta(self, version):
+    """ Return the changes to the players list since version.
+
+    Args:
+      version: The players_version of the list that a client has.
+
+    Returns:
+      A tuple of a list of players added and a list of players removed
+      since version, or None if players_log does not go back that far
+      and the client needs the full list.
+    """
+    if version < 0 or version > self.players_version:
+      return None
+    if version == self.players_version:
+      return [], []
+    entries = [entry.split(' ', 1) for entry in self.players_log]
+    if not entries or int(entries[0][0]) > version + 1:
+      return None
+    added = []
+    removed = []
+    for entry_version, change in entries:
+      if int(entry_version) <= version:
+        continue
+      player = change[1:]
+      if change[0] == '+':
+        if player in removed:
+          removed.remove(player)
+        else:
+          added.append(player)
+      else:
+        if player in added:
+          added.remove(player)
+        else:
+          removed.append(player)
+    return added, removed
+
   def set_full(self):
     """ Set the full attribute of this entity appropriately.
 
@@ -49,9 +49,12 @@ __authors__ = ['"Bill Magnuson" <billmag@mit.edu>']
 import sys
 import logging
 import traceback
+import urllib
 import iso8601
 import utils
 from datetime import datetime
+from time import sleep
+from time import time as clock
 from django.utils import simplejson
 from google.appengine.ext import webapp
 from google.appengine.ext.webapp.util import run_wsgi_app
@@ -71,6 +74,9 @@ RESPONSE_KEY = 'response'
 GAME_ID_KEY = 'gid'
 INSTANCE_ID_KEY = 'iid'
 PLAYERS_KEY = 'players'
+PLAYERS_ADDED_KEY = 'padd'
+PLAYERS_REMOVED_KEY = 'prem'
+PLAYERS_VERSION_KEY = 'pver'
 LEADER_KEY = 'leader'
 
 # Request Parameter Keys
@@ -84,6 +90,18 @@ MESSAGE_COUNT_KEY = 'count'
 MESSAGE_RECIPIENTS_KEY = 'mrec'
 MESSAGE_TIME_KEY = 'mtime'
 INSTANCE_PUBLIC_KEY = 'makepublic'
+MESSAGE_WAIT_KEY = 'wait'
+BATCH_COMMANDS_KEY = 'commands'
+BATCH_PARAMS_KEY = 'params'
+
+# Batch Response Keys
+BATCH_RESPONSES_KEY = 'responses'
+
+# Long poll settings. App Engine aborts requests after 30 seconds, so
+# a waiting request is never held open for longer than
+# MAX_MESSAGE_WAIT_SECONDS.
+MAX_MESSAGE_WAIT_SECONDS = 25
+MESSAGE_WAIT_POLL_SECONDS = 1
 
 ####################
 # Response Helpers #
@@ -107,14 +125,46 @@ def run_with_response_as_transaction(req_handler, operation, *args, **kwargs):
   handler with the error message as its contents and the error key
   set to True.
   """
+  run_with_response(req_handler, db.run_in_transaction, operation,
+                    *args, **kwargs)
+
+def run_with_response(req_handler, operation, *args, **kwargs):
+  """ Run operation and write its response to req_handler.
+
+  Args:
+    req_handler: The request handler to write a response to.
+    operation: The callable function to run.
+    args: Positional arguments to pass to operation.
+    kwargs: Keyword arguments to pass to operation.
+
+  Behaves like run_with_response_as_transaction, but does not run
+  operation as a transaction. This is for operations that run
+  transactions of their own, such as wait_for_messages.
+  """
   try:
-    response = db.run_in_transaction(operation, *args, **kwargs)
+    response = operation(*args, **kwargs)
     OperationResponse(response = response).write_to_handler(req_handler)
   except BaseException, e:
     logging.debug('exception encountered: %s' % traceback.format_exc())
     OperationResponse(response = e.__str__(),
                        error = True).write_to_handler(req_handler)
 
+def get_players_version(request):
+  """ Return the players list version sent with a request.
+
+  Args:
+    request: The request to a request handler.
+
+  Returns:
+    The integer value of the request's pver parameter, or None if it
+    is missing or not an integer. Clients send pver only when they
+    have the players list of the instance named by the request.
+  """
+  try:
+    return int(request.get(PLAYERS_VERSION_KEY))
+  except ValueError:
+    return None
+
 class OperationResponse():
   """ Class for handling server operation responses and writing output.
 
@@ -134,6 +184,8 @@ class OperationResponse():
     iid: The instance id of the game instance.
     leader: The current leader of the game instance.
     players: A list of players in the game instance
+    instance: The game instance, or None if this operation did not
+      operate on an instance.
   """
   def __init__(self, response, error=False):
     """ Fill in parameters based on the error value and the model returned.
@@ -157,6 +209,7 @@ class OperationResponse():
     self.leader = ''
     self.gid = ''
     self.players = []
+    self.instance = None
 
     if self.error:
       self.response = response
@@ -167,6 +220,7 @@ class OperationResponse():
         self.iid = model.key().name()
         self.leader = model.leader
         self.players = model.players
+        self.instance = model
       elif model and model.__class__.__name__ == 'Game':
         self.gid = model.key().name()
 
@@ -200,7 +254,8 @@ class OperationResponse():
         <em>The server will send this to the component:</em>
         <p />''')
     req_handler.response.out.write(
-        self.get_response_object(req_handler.request.path))
+        self.get_response_object(req_handler.request.path,
+                                 get_players_version(req_handler.request)))
     req_handler.response.out.write('''
     <p><a href="/">
     <i>Return to Game Server Main Page</i>
@@ -215,25 +270,42 @@ class OperationResponse():
     """
     req_handler.response.headers['Content-Type'] = 'application/json'
     req_handler.response.out.write(
-        self.get_response_object(req_handler.request.path))
+        self.get_response_object(req_handler.request.path,
+                                 get_players_version(req_handler.request)))
 
-  def get_response_object(self, request_type):
+  def get_response_object(self, request_type, players_version = None):
     """ Return a JSON object as a string with the fields of this response.
 
     Args:
       request_type: The type of server request that caused this
         operation.
+      players_version: The version of the instance's players list
+        that the client already has, or None if it has none.
 
     Creates a dictionary out of the fields of this object and encodes
     them in JSON.
+
+    If this operation was on an instance, the response includes the
+    version of its players list. If the instance can provide the
+    changes since players_version, the response holds those changes
+    as lists of players added and removed instead of the full players
+    list.
     """
-    response = simplejson.dumps({REQUEST_TYPE_KEY : request_type,
-                                 ERROR_KEY : self.error,
-                                 RESPONSE_KEY : self.response,
-                                 GAME_ID_KEY : self.gid,
-                                 INSTANCE_ID_KEY : self.iid,
-                                 LEADER_KEY : self.leader,
-                                 PLAYERS_KEY : self.players})
+    fields = {REQUEST_TYPE_KEY : request_type,
+              ERROR_KEY : self.error,
+              RESPONSE_KEY : self.response,
+              GAME_ID_KEY : self.gid,
+              INSTANCE_ID_KEY : self.iid,
+              LEADER_KEY : self.leader,
+              PLAYERS_KEY : self.players}
+    if self.instance:
+      fields[PLAYERS_VERSION_KEY] = self.instance.players_version
+      if players_version is not None:
+        delta = self.instance.get_players_delta(players_version)
+        if delta is not None:
+          del fields[PLAYERS_KEY]
+          fields[PLAYERS_ADDED_KEY], fields[PLAYERS_REMOVED_KEY] = delta
+    response = simplejson.dumps(fields)
     logging.debug('response object: %s' % response)
     return response
 
@@ -446,6 +518,34 @@ def get_messages(gid, iid, message_type, recipient, count, time):
   return instance, {MESSAGE_COUNT_KEY : len(messages),
                     'messages' : messages}
 
+def wait_for_messages(gid, iid, message_type, recipient, count, time,
+                      wait):
+  """ Retrieve messages, waiting for them to arrive if there are none.
+
+  Args:
+    gid, iid, message_type, recipient, count, time: As in
+      get_messages.
+    wait: The maximum number of seconds to wait for a message. This
+      is limited to MAX_MESSAGE_WAIT_SECONDS.
+
+  Runs get_messages as a transaction every MESSAGE_WAIT_POLL_SECONDS
+  until it returns at least one message or wait seconds have passed.
+  This lets a client hold a single request open instead of polling
+  repeatedly. Each check is a separate transaction so that no
+  transaction is held open while waiting.
+
+  Returns:
+    The result of the last call to get_messages.
+  """
+  deadline = clock() + max(0, min(wait, MAX_MESSAGE_WAIT_SECONDS))
+  while True:
+    model, response = db.run_in_transaction(get_messages, gid, iid,
+                                            message_type, recipient,
+                                            count, time)
+    if response[MESSAGE_COUNT_KEY] > 0 or clock() >= deadline:
+      return model, response
+    sleep(MESSAGE_WAIT_POLL_SECONDS)
+
 def new_instance(gid, iid_prefix, pid, make_public = False):
   """ Create a new instance of the specified game.
 
@@ -811,6 +911,7 @@ class MainPage(webapp.RequestHandler):
         <li><a href="/leaveinstance">/leaveinstance</a></li>
         <li><a href="/newmessage">/newmessage</a></li>
         <li><a href="/messages">/messages</a></li>
+        <li><a href="/waitmessages">/waitmessages</a></li>
         <li><a href="/setleader">/setleader</a></li>
         <li><a href="/getinstance">/getinstance</a></li>
         <li><a href="/getinstancelists">/getinstancelists</a></li>
@@ -873,33 +974,52 @@ class GetMessages(webapp.RequestHandler):
     """
     logging.debug('/messages?%s\n|%s|' %
                   (self.request.query_string, self.request.body))
-    gid = self.request.get(GAME_ID_KEY)
-    iid = self.request.get(INSTANCE_ID_KEY)
-    message_type = self.request.get(TYPE_KEY)
-    recipient = self.request.get(PLAYER_ID_KEY)
+    run_with_response_as_transaction(self, get_messages,
+                                     *get_messages_arguments(self.request))
 
-    count = 1000
-    try:
-      count = int(self.request.get(MESSAGE_COUNT_KEY))
-    except ValueError:
-      pass
+  def get(self):
+    """ Write a short HTML form to perform a get_messages operation."""
+    self.response.out.write('''
+    <html><body>
+    <form action="/messages" method="post"
+          enctype=application/x-www-form-urlencoded>
+       <p>Game ID <input type="text" name="gid" /></p>
+       <p>Instance ID <input type="text" name="iid" /></p>
+       <p>Message type <input type="text" name="type" /> </p>
+       <p>Email <input type="text" name="pid" /> </p>
+       <p>Count <input type="text" name="count" /> </p>
+       <p>Time <input type="text" name="mtime" /> </p>
+       <input type="hidden" name="fmt" value="html">
+       <input type="submit" value="Get Messages">
+    </form></body></html>\n''')
 
-    time = datetime.min
+class WaitMessages(webapp.RequestHandler):
+  """ Request handler for the wait_for_messages operation. """
+  def post(self):
+    """ Execute wait_for_messages and write the response to the handler.
+
+    Request parameters:
+      gid, iid, pid, type, count, mtime: As for GetMessages.
+      wait: The maximum number of seconds to wait for a message to
+        arrive. Defaults to MAX_MESSAGE_WAIT_SECONDS if there is a
+        failure retrieving the parameter.
+    """
+    logging.debug('/waitmessages?%s\n|%s|' %
+                  (self.request.query_string, self.request.body))
+    wait = MAX_MESSAGE_WAIT_SECONDS
     try:
-      time_string = self.request.get(MESSAGE_TIME_KEY)
-      if time_string is not None and time_string != '':
-        time = iso8601.parse_date(time_string)
+      wait = int(self.request.get(MESSAGE_WAIT_KEY))
     except ValueError:
       pass
 
-    run_with_response_as_transaction(self, get_messages, gid, iid,
-                                     message_type, recipient, count, time)
+    arguments = get_messages_arguments(self.request) + (wait,)
+    run_with_response(self, wait_for_messages, *arguments)
 
   def get(self):
-    """ Write a short HTML form to perform a get_messages operation."""
+    """ Write a short HTML form to perform a wait_for_messages operation."""
     self.response.out.write('''
     <html><body>
-    <form action="/messages" method="post"
+    <form action="/waitmessages" method="post"
           enctype=application/x-www-form-urlencoded>
        <p>Game ID <input type="text" name="gid" /></p>
        <p>Instance ID <input type="text" name="iid" /></p>
@@ -907,10 +1027,43 @@ class GetMessages(webapp.RequestHandler):
        <p>Email <input type="text" name="pid" /> </p>
        <p>Count <input type="text" name="count" /> </p>
        <p>Time <input type="text" name="mtime" /> </p>
+       <p>Wait (seconds) <input type="text" name="wait" /> </p>
        <input type="hidden" name="fmt" value="html">
-       <input type="submit" value="Get Messages">
+       <input type="submit" value="Wait For Messages">
     </form></body></html>\n''')
 
+def get_messages_arguments(request):
+  """ Return the arguments to get_messages from a request.
+
+  Args:
+    request: The request to a GetMessages or WaitMessages handler.
+
+  Returns:
+    A tuple of gid, iid, message type, recipient, count and time. The
+    count defaults to 1000 and the time to datetime.min if there is a
+    failure retrieving or parsing them.
+  """
+  gid = request.get(GAME_ID_KEY)
+  iid = request.get(INSTANCE_ID_KEY)
+  message_type = request.get(TYPE_KEY)
+  recipient = request.get(PLAYER_ID_KEY)
+
+  count = 1000
+  try:
+    count = int(request.get(MESSAGE_COUNT_KEY))
+  except ValueError:
+    pass
+
+  time = datetime.min
+  try:
+    time_string = request.get(MESSAGE_TIME_KEY)
+    if time_string is not None and time_string != '':
+      time = iso8601.parse_date(time_string)
+  except ValueError:
+    pass
+
+  return gid, iid, message_type, recipient, count, time
+
 class InvitePlayer(webapp.RequestHandler):
   """ Request handler for the invite_player operation."""
   def post(self):
@@ -1174,6 +1327,89 @@ class SetLeader(webapp.RequestHandler):
     </form>''')
     self.response.out.write('</body></html>\n')
 
+class Batch(webapp.RequestHandler):
+  """ Request handler for running several operations in one request. """
+  def post(self):
+    """ Run each command in the batch and write their responses.
+
+    Request parameters:
+      commands: A JSON array of objects, each with two fields:
+        command: The name of the request to run, such as 'newmessage'.
+          Any request in BATCHABLE_HANDLERS may be used.
+        params: A JSON object holding the request's parameters.
+
+    Each command is run in turn, as its own transaction, exactly as
+    if it had been posted separately, so one failing command does not
+    affect the others. This saves clients making several requests in
+    quick succession from opening a connection for each one.
+
+    The response is a JSON object whose 'responses' field is an array
+    holding the response object of each command, in order. If the
+    batch itself cannot be parsed, an error OperationResponse is
+    written instead.
+    """
+    logging.debug('/batch?%s\n|%s|' %
+                  (self.request.query_string, self.request.body))
+    try:
+      commands = simplejson.loads(self.request.get(BATCH_COMMANDS_KEY))
+      requests = [(command[COMMAND_KEY], command.get(BATCH_PARAMS_KEY, {}))
+                  for command in commands]
+    except BaseException, e:
+      logging.debug('exception encountered: %s' % traceback.format_exc())
+      OperationResponse(response = 'Malformed batch: %s' % e,
+                        error = True).write_to_handler(self)
+      return
+
+    responses = [run_batched_command(command, params)
+                 for command, params in requests]
+    self.response.headers['Content-Type'] = 'application/json'
+    self.response.out.write(simplejson.dumps(
+        {REQUEST_TYPE_KEY : self.request.path,
+         ERROR_KEY : False,
+         BATCH_RESPONSES_KEY : responses}))
+
+def run_batched_command(command, params):
+  """ Run one command from a batch and return its response object.
+
+  Args:
+    command: The name of the request to run.
+    params: A dictionary of the request's parameters.
+
+  Runs the post method of the request's handler on a request built
+  from params, so that the command behaves exactly as if it had been
+  posted on its own.
+
+  Returns:
+    The dictionary the handler wrote as JSON, or an error response if
+    the command cannot be batched.
+  """
+  path = '/%s' % command
+  handler_class = BATCHABLE_HANDLERS.get(path)
+  if handler_class is None:
+    return simplejson.loads(OperationResponse(
+        response = 'Command %s cannot be batched.' % command,
+        error = True).get_response_object(path))
+  query = urllib.urlencode([(unicode(key).encode('utf-8'),
+                             unicode(value).encode('utf-8'))
+                            for key, value in params.iteritems()])
+  handler = handler_class()
+  handler.initialize(webapp.Request.blank('%s?%s' % (path, query)),
+                     webapp.Response())
+  handler.post()
+  return simplejson.loads(handler.response.out.getvalue())
+
+# The requests that may be run as part of a batch. WaitMessages is
+# left out because it could hold up the rest of the batch.
+BATCHABLE_HANDLERS = {'/newinstance' : NewInstance,
+                      '/invite' : InvitePlayer,
+                      '/joininstance' : JoinInstance,
+                      '/leaveinstance' : LeaveInstance,
+                      '/newmessage' : NewMessage,
+                      '/getinstancelists' : GetInstanceLists,
+                      '/messages' : GetMessages,
+                      '/setleader' : SetLeader,
+                      '/servercommand' : ServerCommand}
+
 #############################################
 # Handlers not used by GameClient component #
 #############################################
@@ -1234,6 +1470,8 @@ def application(custom_command_dict):
                                  ('/newmessage', NewMessage),
                                  ('/getinstancelists', GetInstanceLists),
                                  ('/messages', GetMessages),
+                                 ('/waitmessages', WaitMessages),
+                                 ('/batch', Batch),
                                  ('/setleader', SetLeader),
                                  ('/servercommand', ServerCommand),
                                  ('/getinstance', GetInstance)],
@@ -0,0 +1,59 @@
+# Copyright 2011 Google Inc.
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+
+#      http://www.apache.org/licenses/LICENSE-2.0
+
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+"""
+A local stand-in for the game server, for testing clients.
+
+Serves the game server application from an in-memory datastore on a
+multithreaded WSGI server. Unlike dev_appserver, which handles one
+request at a time, this lets a GameClient hold a /waitmessages request
+open while it and other clients send messages.
+
+To run it from the app_inv_game_server directory, with the App Engine
+SDK and the test packages installed as described in the README:
+PYTHONPATH=.:google_appengine:google_appengine/lib/django \\
+    python2.5 tests/stand_in_server.py 9999
+
+Then set the GameClient's ServiceURL to http://<this machine>:9999.
+The datastore is discarded when the server stops.
+"""
+
+import sys
+from SocketServer import ThreadingMixIn
+from wsgiref.simple_server import make_server
+from wsgiref.simple_server import WSGIServer
+from custom_modules.commands import custom_command_dict
+from game_server.server import application
+from tests import test_utils
+
+DEFAULT_PORT = 9999
+
+class ThreadingWSGIServer(ThreadingMixIn, WSGIServer):
+  """ A WSGIServer that handles each request in its own thread. """
+  daemon_threads = True
+
+def main(argv):
+  """ Start the stand-in server on the port given in argv. """
+  port = DEFAULT_PORT
+  if len(argv) > 1:
+    port = int(argv[1])
+  test_utils.clear_data_store()
+  server = make_server('', port, application(custom_command_dict),
+                       server_class = ThreadingWSGIServer)
+  print 'Stand-in game server listening on port %d' % port
+  try:
+    server.serve_forever()
+  except KeyboardInterrupt:
+    pass
+
+if __name__ == '__main__':
+  main(sys.argv)
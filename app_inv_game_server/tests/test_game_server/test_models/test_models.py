@@ -21,6 +21,7 @@ import unittest
 from datetime import datetime
 from game_server.models.game import Game
 from game_server.models.game_instance import GameInstance
+from game_server.models.game_instance import PLAYERS_LOG_LENGTH
 from game_server.models.message import Message
 from google.appengine.ext import db
 from tests import test_utils
@@ -110,3 +111,50 @@ def test_delete_messages():
   instance.delete_messages('blah')
   messages = Message.all(keys_only = True).ancestor(instance.key()).fetch(1000)
   assert len(messages) == 0
+
+def test_players_delta():
+  iid = 'instance_delta_iid'
+  player = 'test@test.com'
+  game = Game.get_or_insert(key_name = gid)
+  instance = GameInstance(parent = game,
+                          key_name = iid,
+                          players = [player],
+                          leader = player)
+  instance.put()
+  assert instance.players_version == 0
+  assert instance.get_players_delta(0) == ([], [])
+
+  instance.players.append('test2@test.com')
+  instance.put()
+  assert instance.players_version == 1
+  instance.players.remove(player)
+  instance.players.append('test3@test.com')
+  instance.put()
+  assert instance.players_version == 2
+  assert instance.get_players_delta(1) == (['test3@test.com'], [player])
+  assert instance.get_players_delta(0) == (['test2@test.com',
+                                            'test3@test.com'], [player])
+
+  instance = GameInstance.get(instance.key())
+  instance.players.remove('test2@test.com')
+  instance.put()
+  assert instance.get_players_delta(0) == (['test3@test.com'], [player])
+  assert instance.get_players_delta(4) is None
+  assert instance.get_players_delta(-1) is None
+
+def test_players_log_is_bounded():
+  iid = 'instance_log_iid'
+  player = 'test@test.com'
+  game = Game.get_or_insert(key_name = gid)
+  instance = GameInstance(parent = game,
+                          key_name = iid,
+                          players = [player],
+                          leader = player,
+                          public = True)
+  for i in xrange(PLAYERS_LOG_LENGTH + 1):
+    instance.players.append('player%d@test.com' % i)
+    instance.put()
+  assert len(instance.players_log) < PLAYERS_LOG_LENGTH
+  assert instance.get_players_delta(0) is None
+  added, removed = instance.get_players_delta(instance.players_version - 1)
+  assert added == ['player%d@test.com' % PLAYERS_LOG_LENGTH]
@@ -16,7 +16,9 @@ Tests for the server post commands.
 
 __authors__ = ['"Bill Magnuson" <billmag@mit.edu>']
 
+from game_server import server
 from tests import test_utils
+from time import sleep
 from webtest import TestApp
 
 gid = test_utils.gid
@@ -100,6 +102,29 @@ def test_new_public_instance_false():
   assert iid in response['response']['joined']
   assert test_utils.get_instance_model(iid).public == False
 
+def test_players_delta_response():
+  test_iid = test_utils.make_instance()
+  response = app.post('/messages', {'gid' : gid, 'iid' : test_iid,
+                                    'pid' : firstpid}).json
+  assert response['players'] == [firstpid]
+  version = response['pver']
+
+  player = 'test2@test.com'
+  test_utils.add_player(test_iid, player)
+  response = app.post('/messages', {'gid' : gid, 'iid' : test_iid,
+                                    'pid' : firstpid,
+                                    'pver' : version}).json
+  assert 'players' not in response
+  assert response['padd'] == [player]
+  assert response['prem'] == []
+  assert response['pver'] == version + 1
+
+  response = app.post('/messages', {'gid' : gid, 'iid' : test_iid,
+                                    'pid' : firstpid,
+                                    'pver' : version + 1}).json
+  assert response['padd'] == []
+  assert response['prem'] == []
+
 def test_invite_player():
   test_iid = test_utils.make_instance()
   invitee = 'invitee@test.com'
@@ -289,6 +314,68 @@ def test_messages_email_strip():
                                      pid = '"Bob Johnson" <test@test.com>')
   assert response[0]['type'] == mtype
 
+def test_wait_for_messages_returns_existing_messages():
+  test_iid = test_utils.make_instance()
+  mtype = 'test'
+  contents = ['quack', 'duck']
+  test_utils.send_new_message(test_iid, mtype, [firstpid], contents)
+
+  response = test_utils.wait_for_messages(test_iid, mtype, '', 1, 0)
+  assert response[0]['type'] == mtype
+  assert response[0]['contents'] == contents
+
+def test_wait_for_messages_times_out():
+  test_iid = test_utils.make_instance()
+  response = test_utils.wait_for_messages(test_iid, 'test', '', 1, 0)
+  assert len(response) == 0
+
+def test_wait_for_messages_waits_for_new_message():
+  test_iid = test_utils.make_instance()
+  mtype = 'test'
+  contents = ['quack', 'duck']
+  sleeps = []
+  def send_message_while_sleeping(seconds):
+    sleeps.append(seconds)
+    test_utils.send_new_message(test_iid, mtype, [firstpid], contents)
+
+  server.sleep = send_message_while_sleeping
+  try:
+    response = test_utils.wait_for_messages(test_iid, mtype, '', 1, 10)
+  finally:
+    server.sleep = sleep
+  assert sleeps == [server.MESSAGE_WAIT_POLL_SECONDS]
+  assert response[0]['contents'] == contents
+
+def test_batch():
+  test_iid = test_utils.make_instance()
+  mtype = 'test'
+  contents = ['quack', 'duck']
+  commands = [{'command' : 'newmessage',
+               'params' : {'gid' : gid, 'iid' : test_iid, 'pid' : firstpid,
+                           'type' : mtype,
+                           'mrec' : test_utils.simplejson.dumps([firstpid]),
+                           'contents' : test_utils.simplejson.dumps(contents)}},
+              {'command' : 'messages',
+               'params' : {'gid' : gid, 'iid' : test_iid, 'pid' : firstpid,
+                           'type' : mtype, 'count' : 10}},
+              {'command' : 'waitmessages', 'params' : {}}]
+  response = app.post('/batch', {'commands' :
+                                 test_utils.simplejson.dumps(commands)}).json
+  assert response['e'] is False
+  assert response['request_type'] == '/batch'
+  responses = response['responses']
+  assert len(responses) == 3
+  assert responses[0]['e'] is False
+  assert responses[0]['request_type'] == '/newmessage'
+  assert responses[1]['e'] is False
+  assert responses[1]['iid'] == test_iid
+  assert responses[1]['response']['messages'][0]['contents'] == contents
+  assert responses[2]['e'] is True
+
+def test_malformed_batch():
+  response = app.post('/batch', {'commands' : 'not json'}).json
+  assert response['e'] is True
+
 def test_get_all_types():
   test_iid = test_utils.make_instance()
   mtype = 'test'
@@ -109,6 +109,20 @@ def get_messages(iid, mtype, time, count, pid = firstpid, gid = gid):
   assert response['response']['count'] <= count
   return response['response']['messages']
 
+def wait_for_messages(iid, mtype, time, count, wait, pid = firstpid,
+                      gid = gid):
+  response = app.post('/waitmessages', {'gid': gid,
+                                        'iid' : iid,
+                                        'type' : mtype,
+                                        'pid' : pid,
+                                        'mtime' : time,
+                                        'count' : count,
+                                        'wait' : wait}).json
+  assert response['e'] is False
+  assert response['request_type'] == '/waitmessages'
+  assert response['response']['count'] <= count
+  return response['response']['messages']
+
 def get_instance_model(instanceid, gameid = gid):
   game_key = Key.from_path('Game', gameid, 'GameInstance', instanceid)
   model = GameInstance.get(game_key)
@@ -9,6 +9,7 @@ import com.google.devtools.simple.runtime.annotations.SimpleFunction;
 import com.google.devtools.simple.runtime.annotations.SimpleObject;
 import com.google.devtools.simple.runtime.annotations.SimpleProperty;
 import com.google.devtools.simple.runtime.components.util.BoundingBox;
+import com.google.devtools.simple.runtime.components.util.CollisionMask;
 import com.google.devtools.simple.runtime.errors.AssertionFailure;
 
 /**
@@ -22,6 +23,30 @@ import com.google.devtools.simple.runtime.errors.AssertionFailure;
  */
 @SimpleObject
 public abstract class SpriteComponent extends VisibleComponent implements AlarmHandler {
+  /**
+   * Collision shape of a sprite that covers its whole bounding rectangle.
+   */
+  protected static final int COLLISION_SHAPE_RECTANGLE = 1;
+
+  /**
+   * Collision shape of a sprite that covers the circle inscribed in its
+   * (square) bounding box.
+   */
+  protected static final int COLLISION_SHAPE_CIRCLE = 2;
+
+  /**
+   * Collision shape of a sprite whose covered pixels are given by
+   * {@link #getCollisionMask()}.
+   */
+  protected static final int COLLISION_SHAPE_MASK = 3;
+
+  /**
+   * Collision shape of a sprite that can only be described by
+   * {@link #containsPoint(double, double)}.  Collisions involving such a
+   * sprite are checked point by point, which is slow.
+   */
+  protected static final int COLLISION_SHAPE_ARBITRARY = 4;
+
   protected int interval;      // number of milliseconds until next move
   protected boolean visible = true;
   // TODO(user): Convert to have co-ordinates be center, not upper left.
@@ -49,6 +74,10 @@ public abstract class SpriteComponent extends VisibleComponent implements AlarmH
   private double headingCos;      // cosine(heading)
   private double headingSin;      // sine(heading)
 
+  // Mask built from containsPoint() for colliding with COLLISION_SHAPE_MASK
+  // sprites, cached until the width or height changes.
+  private CollisionMask shapeMask;
+
   // Getters
 
   double getUserHeading() {
@@ -401,6 +430,12 @@ public abstract class SpriteComponent extends VisibleComponent implements AlarmH
    * merely see whether the rectangular regions around each intersect, since
    * some types of sprite, such as BallSprite, are not rectangular.
    *
+   * <p>Once the bounding boxes are known to intersect, rectangles and circles
+   * are tested against each other in closed form, and sprites with a
+   * {@link #COLLISION_SHAPE_MASK} shape are tested by overlapping their
+   * masks.  Only sprites of {@link #COLLISION_SHAPE_ARBITRARY} shape fall
+   * back to checking every point in the intersection.
+   *
    * @param sprite1 one sprite
    * @param sprite2 another sprite
    * @return {@code true} if they are in collision, {@code false} otherwise
@@ -413,6 +448,24 @@ public abstract class SpriteComponent extends VisibleComponent implements AlarmH
       return false;
     }
 
+    int shape1 = sprite1.getCollisionShape();
+    int shape2 = sprite2.getCollisionShape();
+    if (shape1 == COLLISION_SHAPE_MASK || shape2 == COLLISION_SHAPE_MASK) {
+      return masksOverlap(sprite1, sprite2);
+    }
+    if (shape1 == COLLISION_SHAPE_RECTANGLE && shape2 == COLLISION_SHAPE_RECTANGLE) {
+      return rectanglesOverlap(sprite1, sprite2);
+    }
+    if (shape1 == COLLISION_SHAPE_CIRCLE && shape2 == COLLISION_SHAPE_CIRCLE) {
+      return circlesOverlap(sprite1, sprite2);
+    }
+    if (shape1 == COLLISION_SHAPE_CIRCLE && shape2 == COLLISION_SHAPE_RECTANGLE) {
+      return circleOverlapsRectangle(sprite1, sprite2);
+    }
+    if (shape1 == COLLISION_SHAPE_RECTANGLE && shape2 == COLLISION_SHAPE_CIRCLE) {
+      return circleOverlapsRectangle(sprite2, sprite1);
+    }
+
     // If we get here, rect1 has been mutated to hold the intersection of the
     // two bounding boxes.  Now check every point in the intersection to see if
     // both sprites contain that point.
@@ -427,6 +480,90 @@ public abstract class SpriteComponent extends VisibleComponent implements AlarmH
     return false;
   }
 
+  private static boolean rectanglesOverlap(SpriteComponent sprite1, SpriteComponent sprite2) {
+    return sprite1.xLeft < sprite2.xLeft + sprite2.Width() &&
+        sprite2.xLeft < sprite1.xLeft + sprite1.Width() &&
+        sprite1.yTop < sprite2.yTop + sprite2.Height() &&
+        sprite2.yTop < sprite1.yTop + sprite1.Height();
+  }
+
+  private static boolean circlesOverlap(SpriteComponent circle1, SpriteComponent circle2) {
+    double radius1 = circle1.Width() / 2.0;
+    double radius2 = circle2.Width() / 2.0;
+    double dx = (circle1.xLeft + radius1) - (circle2.xLeft + radius2);
+    double dy = (circle1.yTop + radius1) - (circle2.yTop + radius2);
+    return dx * dx + dy * dy <= (radius1 + radius2) * (radius1 + radius2);
+  }
+
+  private static boolean circleOverlapsRectangle(SpriteComponent circle, SpriteComponent rect) {
+    int width = rect.Width();
+    int height = rect.Height();
+    if (width <= 0 || height <= 0) {
+      return false;
+    }
+    double radius = circle.Width() / 2.0;
+    double xCenter = circle.xLeft + radius;
+    double yCenter = circle.yTop + radius;
+    // Find the point of the rectangle closest to the circle's center.
+    double xNearest = Math.max(rect.xLeft, Math.min(xCenter, rect.xLeft + width));
+    double yNearest = Math.max(rect.yTop, Math.min(yCenter, rect.yTop + height));
+    double dx = xCenter - xNearest;
+    double dy = yCenter - yNearest;
+    return dx * dx + dy * dy <= radius * radius;
+  }
+
+  private static boolean masksOverlap(SpriteComponent sprite1, SpriteComponent sprite2) {
+    CollisionMask mask1 = sprite1.getCollisionMask();
+    CollisionMask mask2 = sprite2.getCollisionMask();
+    return CollisionMask.overlap(
+        mask1,
+        (int) Math.round(sprite1.xLeft) + mask1.getOffsetX(),
+        (int) Math.round(sprite1.yTop) + mask1.getOffsetY(),
+        mask2,
+        (int) Math.round(sprite2.xLeft) + mask2.getOffsetX(),
+        (int) Math.round(sprite2.yTop) + mask2.getOffsetY());
+  }
+
+  /**
+   * Returns the shape used by {@link #colliding(SpriteComponent, SpriteComponent)}
+   * for this sprite: one of {@link #COLLISION_SHAPE_RECTANGLE},
+   * {@link #COLLISION_SHAPE_CIRCLE}, {@link #COLLISION_SHAPE_MASK} or
+   * {@link #COLLISION_SHAPE_ARBITRARY}.  Subclasses that override
+   * {@link #containsPoint(double, double)} should override this method too.
+   *
+   * @return the collision shape of this sprite
+   */
+  protected int getCollisionShape() {
+    return COLLISION_SHAPE_RECTANGLE;
+  }
+
+  /**
+   * Returns a mask of the pixels covered by this sprite, positioned relative
+   * to its upper left corner.  This is used when colliding with a sprite
+   * whose shape is {@link #COLLISION_SHAPE_MASK}.  The implementation here
+   * samples {@link #containsPoint(double, double)} and caches the result
+   * until the sprite's size changes; sprites that return
+   * {@link #COLLISION_SHAPE_MASK} must override it.
+   *
+   * @return the collision mask
+   */
+  protected CollisionMask getCollisionMask() {
+    int width = Width();
+    int height = Height();
+    if (shapeMask == null || shapeMask.getWidth() != width || shapeMask.getHeight() != height) {
+      CollisionMask mask = new CollisionMask(width, height, 0, 0);
+      for (int y = 0; y < height; y++) {
+        for (int x = 0; x < width; x++) {
+          if (containsPoint(xLeft + x + 0.5, yTop + y + 0.5)) {
+            mask.set(x, y);
+          }
+        }
+      }
+      shapeMask = mask;
+    }
+    return shapeMask;
+  }
+
   /**
    * Determines whether this sprite intersects with the given rectangle.
    *
@@ -440,6 +577,32 @@ public abstract class SpriteComponent extends VisibleComponent implements AlarmH
       return false;
     }
 
+    switch (getCollisionShape()) {
+      case COLLISION_SHAPE_RECTANGLE:
+        return xLeft <= rect.getRight() && rect.getLeft() < xLeft + Width() &&
+            yTop <= rect.getBottom() && rect.getTop() < yTop + Height();
+
+      case COLLISION_SHAPE_CIRCLE: {
+        double radius = Width() / 2.0;
+        double xCenter = xLeft + radius;
+        double yCenter = yTop + radius;
+        double dx = xCenter - Math.max(rect.getLeft(), Math.min(xCenter, rect.getRight()));
+        double dy = yCenter - Math.max(rect.getTop(), Math.min(yCenter, rect.getBottom()));
+        return dx * dx + dy * dy <= radius * radius;
+      }
+
+      case COLLISION_SHAPE_MASK: {
+        CollisionMask mask = getCollisionMask();
+        int maskLeft = (int) Math.round(xLeft) + mask.getOffsetX();
+        int maskTop = (int) Math.round(yTop) + mask.getOffsetY();
+        return mask.intersects(
+            (int) Math.floor(rect.getLeft()) - maskLeft,
+            (int) Math.floor(rect.getTop()) - maskTop,
+            (int) Math.ceil(rect.getRight()) - maskLeft,
+            (int) Math.ceil(rect.getBottom()) - maskTop);
+      }
+    }
+
     // If we get here, rect1 has been mutated to hold the intersection of the
     // two bounding boxes.  Now check every point in the intersection to see if
     // the sprite contains it.
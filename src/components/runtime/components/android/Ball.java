@@ -93,6 +93,11 @@ public final class Ball extends Sprite {
         <= radius * radius;
   }
 
+  @Override
+  protected int getCollisionShape() {
+    return COLLISION_SHAPE_CIRCLE;
+  }
+
 
   // Additional properties
 
@@ -101,7 +101,8 @@ public final class BluetoothServer extends BluetoothConnectionBase {
       return;
     }
 
-    AsynchUtil.runAsynchronously(new Runnable() {
+    // accept() blocks until a client connects or StopAccepting is called.
+    AsynchUtil.runInNewThread("BluetoothServer-accept", new Runnable() {
       public void run() {
         Object acceptedBluetoothSocket = null;
 
@@ -15,6 +15,7 @@ import com.google.devtools.simple.runtime.annotations.SimpleProperty;
 import com.google.devtools.simple.runtime.annotations.UsesPermissions;
 import com.google.devtools.simple.runtime.components.Component;
 import com.google.devtools.simple.runtime.components.android.util.DonutUtil;
+import com.google.devtools.simple.runtime.components.android.util.DrawCommandBuffer;
 import com.google.devtools.simple.runtime.components.android.util.FileUtil;
 import com.google.devtools.simple.runtime.components.android.util.MediaUtil;
 import com.google.devtools.simple.runtime.components.android.util.PaintUtil;
@@ -22,6 +23,8 @@ import com.google.devtools.simple.runtime.components.android.util.SdkLevel;
 import com.google.devtools.simple.runtime.components.android.util.ViewUtil;
 import com.google.devtools.simple.runtime.components.util.BoundingBox;
 import com.google.devtools.simple.runtime.components.util.ErrorMessages;
+import com.google.devtools.simple.runtime.components.util.SpriteGrid;
+import com.google.devtools.simple.runtime.components.util.YailList;
 import com.google.devtools.simple.runtime.events.EventDispatcher;
 
 import android.app.Activity;
@@ -30,9 +33,10 @@ import android.graphics.Bitmap;
 import android.graphics.Paint;
 import android.graphics.PorterDuff;
 import android.graphics.Rect;
-import android.graphics.RectF;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.MotionEvent;
 import android.view.View;
@@ -41,8 +45,14 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.lang.ref.SoftReference;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * A two-dimensional touch-sensitive rectangular panel on which drawing can
@@ -87,12 +97,55 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
   private String backgroundImagePath = "";
   private Drawable backgroundDrawable;
   private int textAlignment;
+  private boolean lowMemoryBitmap;
 
   private static final float DEFAULT_LINE_WIDTH = 2;
 
   // Keep track of enclosed sprites
   private final List<Sprite> sprites;
 
+  // Broad phase for collision detection: only sprites sharing a grid cell
+  // with a moved sprite need to be tested against it.
+  private final SpriteGrid<Sprite> spriteGrid;
+
+  // Scratch set of collision candidates, reused by findSpriteCollisions().
+  private final Set<Sprite> collisionCandidates;
+
+  // Moves all enabled sprites from a single timer
+  private final SpriteScheduler spriteScheduler;
+
+  // While the scheduler is moving sprites, changed sprites are collected here
+  // and collision checks and redrawing are deferred until all have moved.
+  private boolean deferringChanges;
+  private final Set<Sprite> changedSprites;
+
+  // The number of pixels around a sprite's bounding box that are redrawn
+  // when it changes, allowing for rounding and anti-aliasing.
+  private static final int SPRITE_DAMAGE_MARGIN = 2;
+
+  // The area each sprite covered when it was last changed, and the union of
+  // the areas that need to be redrawn since the view was last invalidated.
+  private final Map<Sprite, Rect> spriteBounds;
+  private final Rect damage;
+
+  // Drawing primitives (DrawPoint, DrawLine, ...) are recorded here and drawn
+  // into the view's bitmap together once the current event handler has
+  // finished, so that a loop drawing thousands of points invalidates the
+  // view once instead of thousands of times.
+  private final DrawCommandBuffer drawCommands;
+  private final Handler androidUIHandler;
+  private boolean drawFlushPosted;
+
+  // The most drawing commands that are buffered before being drawn anyway
+  private static final int MAX_BUFFERED_DRAW_COMMANDS = 4096;
+
+  private final Runnable drawFlusher = new Runnable() {
+    public void run() {
+      drawFlushPosted = false;
+      flushDrawCommands();
+    }
+  };
+
   // Handle touches and drags
   private final MotionEventParser motionEventParser;
 
@@ -153,10 +206,14 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
     private static final int HALF_FINGER_HEIGHT = FINGER_HEIGHT / 2;
 
     /**
-     * The set of sprites encountered in a touch or drag sequence.  Checks are
-     * only made for sprites at the endpoints of each drag.
+     * The set of sprites encountered in a touch or drag sequence, in the
+     * order they were encountered.  Checks are only made for sprites at the
+     * endpoints of each drag.
      */
-    private final List<Sprite> draggedSprites = new ArrayList<Sprite>();
+    private final Set<Sprite> draggedSprites = new LinkedHashSet<Sprite>();
+
+    // Scratch set of the sprites whose grid cells overlap the finger
+    private final Set<Sprite> touchCandidates = new HashSet<Sprite>();
 
     // startX and startY hold the coordinates of where a touch/drag started
     private static final int UNSET = -1;
@@ -196,11 +253,7 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
           lastX = x;
           lastY = y;
           drag = false;
-          for (Sprite sprite : sprites) {
-            if (sprite.Enabled() && sprite.Visible() && sprite.intersectsWith(rect)) {
-              draggedSprites.add(sprite);
-            }
-          }
+          addTouchedSprites(rect);
           break;
 
         case MotionEvent.ACTION_MOVE:
@@ -219,13 +272,7 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
 
           // Update draggedSprites by adding any that are currently being
           // touched.
-          for (Sprite sprite : sprites) {
-            if (!draggedSprites.contains(sprite)
-                && sprite.Enabled() && sprite.Visible()
-                && sprite.intersectsWith(rect)) {
-              draggedSprites.add(sprite);
-            }
-          }
+          addTouchedSprites(rect);
 
           // Raise a Dragged event for any affected sprites
           boolean handled = false;
@@ -268,6 +315,157 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
           break;
       }
     }
+
+    /**
+     * Adds to {@link #draggedSprites} every enabled, visible sprite that
+     * intersects the given rectangle.  Only sprites sharing a cell of
+     * {@link Canvas#spriteGrid} with the rectangle are tested for overlap,
+     * and they are added in canvas order.
+     *
+     * @param rect the area under the finger
+     */
+    private void addTouchedSprites(BoundingBox rect) {
+      touchCandidates.clear();
+      spriteGrid.findCandidates(rect, touchCandidates);
+      if (touchCandidates.isEmpty()) {
+        return;
+      }
+      // Walk the sprites in canvas order, rather than the candidates in hash
+      // order, so that overlapping sprites get their events in a stable order.
+      for (Sprite sprite : sprites) {
+        if (touchCandidates.contains(sprite)
+            && !draggedSprites.contains(sprite)
+            && sprite.Enabled() && sprite.Visible()
+            && sprite.intersectsWith(rect)) {
+          draggedSprites.add(sprite);
+        }
+      }
+      touchCandidates.clear();
+    }
+  }
+
+  /**
+   * Shared timer that moves all of the canvas's enabled sprites, replacing a
+   * separate {@link com.google.devtools.simple.runtime.components.android.util.TimerInternal}
+   * per sprite.  It runs on a fixed timestep of {@link #TICK_INTERVAL}
+   * milliseconds: on each tick, every sprite whose
+   * {@link Sprite#Interval()} has elapsed is moved by calling
+   * {@link Sprite#alarm()}, then collisions are checked once for all the
+   * sprites that moved, and finally the view is invalidated once.  Each
+   * sprite keeps its own schedule, so its interval is honored to within a
+   * tick, and sprites whose interval is shorter than a tick move once per
+   * tick.
+   *
+   */
+  private final class SpriteScheduler implements Runnable {
+    /**
+     * The length of a tick, in milliseconds.
+     */
+    public static final int TICK_INTERVAL = 10;
+
+    private final Handler handler = new Handler();
+
+    // When each enabled sprite is next due to move, in uptime milliseconds.
+    private final Map<Sprite, Long> alarmTimes = new HashMap<Sprite, Long>();
+
+    // Scratch list of the sprites moving in the current tick
+    private final List<Sprite> dueSprites = new ArrayList<Sprite>();
+
+    // The time of the pending tick, or UNSCHEDULED if there is none
+    private static final long UNSCHEDULED = -1;
+    private long scheduledTime = UNSCHEDULED;
+
+    /**
+     * Starts or stops moving the sprite, depending on whether it is enabled.
+     * A sprite that is started, or whose interval changes, is next moved one
+     * full interval from now.
+     *
+     * @param sprite the sprite whose timer properties have changed
+     */
+    void update(Sprite sprite) {
+      if (sprite.Enabled()) {
+        alarmTimes.put(sprite, SystemClock.uptimeMillis() + Math.max(0, sprite.Interval()));
+      } else {
+        alarmTimes.remove(sprite);
+      }
+      reschedule();
+    }
+
+    /**
+     * Stops moving the sprite.
+     *
+     * @param sprite the sprite to stop
+     */
+    void remove(Sprite sprite) {
+      alarmTimes.remove(sprite);
+      reschedule();
+    }
+
+    // Makes sure the next tick happens at the first tick boundary at which a
+    // sprite is due.
+    private void reschedule() {
+      if (alarmTimes.isEmpty()) {
+        if (scheduledTime != UNSCHEDULED) {
+          handler.removeCallbacks(this);
+          scheduledTime = UNSCHEDULED;
+        }
+        return;
+      }
+
+      long next = Long.MAX_VALUE;
+      for (long alarmTime : alarmTimes.values()) {
+        next = Math.min(next, alarmTime);
+      }
+      // Round up to a tick boundary, strictly in the future, so that sprites
+      // falling due in the same tick are moved together.
+      next = Math.max(next, SystemClock.uptimeMillis() + 1);
+      next = ((next + TICK_INTERVAL - 1) / TICK_INTERVAL) * TICK_INTERVAL;
+
+      if (scheduledTime != UNSCHEDULED && scheduledTime <= next) {
+        return;
+      }
+      handler.removeCallbacks(this);
+      scheduledTime = next;
+      handler.postAtTime(this, next);
+    }
+
+    // Runnable implementation
+
+    public void run() {
+      scheduledTime = UNSCHEDULED;
+      long now = SystemClock.uptimeMillis();
+
+      // Find the due sprites, in the order they were added to the canvas, and
+      // work out when each is next due.
+      dueSprites.clear();
+      for (Sprite sprite : sprites) {
+        Long alarmTime = alarmTimes.get(sprite);
+        if (alarmTime != null && alarmTime <= now) {
+          dueSprites.add(sprite);
+          int interval = Math.max(0, sprite.Interval());
+          long next = alarmTime + interval;
+          if (next <= now) {
+            // We've fallen behind; don't try to catch up with a burst of moves.
+            next = now + interval;
+          }
+          alarmTimes.put(sprite, next);
+        }
+      }
+
+      // Move them all, then check collisions and redraw once.
+      deferringChanges = true;
+      try {
+        for (Sprite sprite : dueSprites) {
+          sprite.alarm();
+        }
+      } finally {
+        deferringChanges = false;
+        dueSprites.clear();
+      }
+      flushChanges();
+
+      reschedule();
+    }
   }
 
   /**
@@ -276,65 +474,115 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
    */
   private final class CanvasView extends View {
     private android.graphics.Canvas canvas;
+
+    // The bitmap holding the drawing.  It may be larger than the drawing,
+    // whose size is given by bitmapWidth and bitmapHeight, because bitmaps
+    // are reused across size changes (see resizeBitmap()).
     private Bitmap bitmap;
+    private int bitmapWidth;
+    private int bitmapHeight;
+
+    // The bitmap that held the drawing before the last size change, kept to
+    // be drawn into at the next one, and the largest width and height the
+    // drawing has had.  The spare bitmap is only softly held, so that it
+    // doesn't double the memory used by the drawing when memory is short.
+    private SoftReference<Bitmap> spareBitmap;
+    private int maxBitmapWidth;
+    private int maxBitmapHeight;
 
     public CanvasView(Context context) {
       super(context);
-      bitmap = Bitmap.createBitmap(ComponentConstants.CANVAS_PREFERRED_WIDTH,
-                                   ComponentConstants.CANVAS_PREFERRED_HEIGHT,
-                                   Bitmap.Config.ARGB_8888);
+      bitmapWidth = ComponentConstants.CANVAS_PREFERRED_WIDTH;
+      bitmapHeight = ComponentConstants.CANVAS_PREFERRED_HEIGHT;
+      maxBitmapWidth = bitmapWidth;
+      maxBitmapHeight = bitmapHeight;
+      bitmap = Bitmap.createBitmap(bitmapWidth, bitmapHeight, Bitmap.Config.ARGB_8888);
       canvas = new android.graphics.Canvas(bitmap);
     }
 
+    // Scratch rectangles used by onDraw()
+    private final Rect clipBounds = new Rect();
+    private final Rect drawnBounds = new Rect();
+
     @Override
     public void onDraw(android.graphics.Canvas canvas0) {
       super.onDraw(canvas0);  // Redraw the canvas itself
       canvas0.drawBitmap(bitmap, 0, 0, null);
+      // Only draw the sprites that overlap the area being redrawn.
+      canvas0.getClipBounds(clipBounds);
       for (Sprite sprite : sprites) {
-        sprite.onDraw(canvas0);
+        computeDrawnBounds(sprite, drawnBounds);
+        if (Rect.intersects(clipBounds, drawnBounds)) {
+          sprite.onDraw(canvas0);
+        }
       }
       drawn = true;
     }
 
     @Override
     protected void onSizeChanged(int w, int h, int oldW, int oldH) {
-      int oldBitmapWidth = bitmap.getWidth();
-      int oldBitmapHeight = bitmap.getHeight();
-      if (w != oldBitmapWidth || h != oldBitmapHeight) {
-        Bitmap oldBitmap = bitmap;
-
-        // Create a new bitmap.
-        // The documentation for Bitmap.createScaledBitmap doesn't specify whether it creates a
-        // mutable or immutable bitmap. Looking at the source code shows that it calls
-        // Bitmap.createBitmap(Bitmap, int, int, int, int, Matrix, boolean), which is documented as
-        // returning an immutable bitmap. However, it actually returns a mutable bitmap.
-        // It's possible that the behavior could change in the future if they "fix" that bug.
-        // Try Bitmap.createScaledBitmap, but if it gives us an immutable bitmap, we'll have to
-        // create a mutable bitmap and scale the old bitmap using Canvas.drawBitmap.
-        Bitmap scaledBitmap = Bitmap.createScaledBitmap(oldBitmap, w, h, false);
-        if (scaledBitmap.isMutable()) {
-          // scaledBitmap is mutable; we can use it in a canvas.
-          bitmap = scaledBitmap;
-          // NOTE(user) - I tried just doing canvas.setBitmap(bitmap), but after that the
-          // canvas.drawCircle() method did not work correctly. So, we need to create a whole new
-          // canvas.
-          canvas = new android.graphics.Canvas(bitmap);
+      // Draw anything pending into the old bitmap before it is scaled.
+      flushDrawCommands();
+      if (w != bitmapWidth || h != bitmapHeight) {
+        resizeBitmap(w, h, bitmapConfig());
+      }
+    }
 
-        } else {
-          // scaledBitmap is immutable; we can't use it in a canvas.
-
-          bitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
-          // NOTE(user) - I tried just doing canvas.setBitmap(bitmap), but after that the
-          // canvas.drawCircle() method did not work correctly. So, we need to create a whole new
-          // canvas.
-          canvas = new android.graphics.Canvas(bitmap);
-
-          // Draw the old bitmap into the new canvas, scaling as necessary.
-          Rect src = new Rect(0, 0, oldBitmapWidth, oldBitmapHeight);
-          RectF dst = new RectF(0, 0, w, h);
-          canvas.drawBitmap(oldBitmap, src, dst, null);
+    /**
+     * Changes the size and/or format of the drawing, scaling the existing
+     * drawing to fit.  Rather than allocating a new bitmap (or two, as
+     * Bitmap.createScaledBitmap may) on every change, the bitmap that held
+     * the drawing before the previous change is reused if it is big enough
+     * and has the right format.  New bitmaps are allocated with the largest
+     * width and height seen so far, so that after the first orientation
+     * change, switching between portrait and landscape allocates nothing,
+     * unless the spare bitmap has been reclaimed.  With LowMemoryBitmap set,
+     * no spare bitmap is kept.
+     *
+     * @param w the new width
+     * @param h the new height
+     * @param config the new format
+     */
+    void resizeBitmap(int w, int h, Bitmap.Config config) {
+      if (w <= 0 || h <= 0) {
+        return;
+      }
+      maxBitmapWidth = Math.max(maxBitmapWidth, w);
+      maxBitmapHeight = Math.max(maxBitmapHeight, h);
+
+      Bitmap newBitmap = (spareBitmap != null) ? spareBitmap.get() : null;
+      spareBitmap = null;
+      if (newBitmap == null || newBitmap.getConfig() != config ||
+          newBitmap.getWidth() < w || newBitmap.getHeight() < h) {
+        if (newBitmap != null) {
+          newBitmap.recycle();
         }
+        newBitmap = Bitmap.createBitmap(maxBitmapWidth, maxBitmapHeight, config);
       }
+      // An opaque bitmap can't hold transparency, so start it with the
+      // background color instead.
+      newBitmap.eraseColor(config == Bitmap.Config.ARGB_8888 ? 0 : backgroundPaint.getColor());
+
+      // NOTE(user) - I tried just doing canvas.setBitmap(bitmap), but after that the
+      // canvas.drawCircle() method did not work correctly. So, we need to create a whole new
+      // canvas.
+      android.graphics.Canvas newCanvas = new android.graphics.Canvas(newBitmap);
+
+      // Draw the old drawing into the new canvas, scaling as necessary.
+      Rect src = new Rect(0, 0, bitmapWidth, bitmapHeight);
+      Rect dst = new Rect(0, 0, w, h);
+      newCanvas.drawBitmap(bitmap, src, dst, null);
+
+      if (bitmap.getConfig() == config && !lowMemoryBitmap) {
+        spareBitmap = new SoftReference<Bitmap>(bitmap);
+      } else {
+        bitmap.recycle();
+      }
+      bitmap = newBitmap;
+      canvas = newCanvas;
+      bitmapWidth = w;
+      bitmapHeight = h;
+      invalidate();
     }
 
     @Override
@@ -403,6 +651,8 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
 
     paint = new Paint();
     backgroundPaint = new Paint();
+    drawCommands = new DrawCommandBuffer();
+    androidUIHandler = new Handler();
 
     // Set default properties.
     paint.setStrokeWidth(DEFAULT_LINE_WIDTH);
@@ -412,10 +662,18 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
     FontSize(Component.FONT_DEFAULT_SIZE);
 
     sprites = new ArrayList<Sprite>();
+    spriteGrid = new SpriteGrid<Sprite>();
+    collisionCandidates = new HashSet<Sprite>();
+    spriteScheduler = new SpriteScheduler();
+    changedSprites = new LinkedHashSet<Sprite>();
+    spriteBounds = new HashMap<Sprite, Rect>();
+    damage = new Rect();
     motionEventParser = new MotionEventParser();
   }
 
   private void clearViewCanvas() {
+    // Anything not yet drawn would be cleared anyway.
+    drawCommands.clear();
     // We avoid drawing the default background color over an explicit background image.
     if (backgroundDrawable == null) {
       // There is no background image.
@@ -429,6 +687,31 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
     view.invalidate();
   }
 
+  /**
+   * Returns the format in which the drawing should be stored.  RGB_565
+   * needs half the memory of ARGB_8888 but has no transparency, so it can't
+   * be used when the background image has to show through the drawing.
+   *
+   * @return the bitmap format
+   */
+  private Bitmap.Config bitmapConfig() {
+    return (lowMemoryBitmap && backgroundDrawable == null)
+        ? Bitmap.Config.RGB_565
+        : Bitmap.Config.ARGB_8888;
+  }
+
+  /**
+   * Converts the drawing to the format given by {@link #bitmapConfig()}, if
+   * it isn't already in that format.
+   */
+  private void updateBitmapConfig() {
+    Bitmap.Config config = bitmapConfig();
+    if (view.bitmap.getConfig() != config) {
+      flushDrawCommands();
+      view.resizeBitmap(view.bitmapWidth, view.bitmapHeight, config);
+    }
+  }
+
   @Override
   public View getView() {
     return view;
@@ -456,6 +739,8 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
    */
   public void addSprite(Sprite sprite) {
     sprites.add(sprite);
+    spriteGrid.update(sprite);
+    spriteScheduler.update(sprite);
   }
 
   /**
@@ -465,6 +750,13 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
    */
   public void removeSprite(Sprite sprite) {
     sprites.remove(sprite);
+    spriteGrid.remove(sprite);
+    spriteScheduler.remove(sprite);
+    changedSprites.remove(sprite);
+    Rect bounds = spriteBounds.remove(sprite);
+    if (bounds != null) {
+      view.invalidate(bounds);
+    }
   }
 
   @Override
@@ -495,16 +787,130 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
   // Methods executed when a child sprite has changed its location or appearance
 
   /**
-   * Indicates that a sprite has changed, triggering invalidation of the view
-   * and a check for collisions.
+   * Indicates that a sprite has changed, triggering invalidation of the part
+   * of the view it covered before and after the change and a check for
+   * collisions.
    *
    * @param sprite the sprite whose location, size, or appearance has changed
    */
   void registerChange(Sprite sprite) {
-    view.invalidate();
+    spriteGrid.update(sprite);
+    addSpriteDamage(sprite);
+    if (deferringChanges) {
+      changedSprites.add(sprite);
+      return;
+    }
+    invalidateDamage();
     findSpriteCollisions(sprite);
   }
 
+  /**
+   * Computes the area of the view that a sprite may draw on, which is its
+   * bounding box plus {@link #SPRITE_DAMAGE_MARGIN}.
+   *
+   * @param sprite the sprite
+   * @param bounds the rectangle in which to store the result
+   */
+  private static void computeDrawnBounds(Sprite sprite, Rect bounds) {
+    BoundingBox box = sprite.getBoundingBox(SPRITE_DAMAGE_MARGIN);
+    bounds.set((int) Math.floor(box.getLeft()), (int) Math.floor(box.getTop()),
+        (int) Math.ceil(box.getRight()) + 1, (int) Math.ceil(box.getBottom()) + 1);
+  }
+
+  /**
+   * Adds the area the sprite covered when it last changed, and the area it
+   * covers now, to {@link #damage}.
+   *
+   * @param sprite the sprite that has changed
+   */
+  private void addSpriteDamage(Sprite sprite) {
+    Rect bounds = spriteBounds.get(sprite);
+    if (bounds == null) {
+      bounds = new Rect();
+      spriteBounds.put(sprite, bounds);
+    } else {
+      damage.union(bounds);
+    }
+    computeDrawnBounds(sprite, bounds);
+    damage.union(bounds);
+  }
+
+  /**
+   * Arranges for the drawing commands just recorded in {@link #drawCommands}
+   * to be drawn once the current event handler has finished, or draws them
+   * now if too many are pending.
+   */
+  private void scheduleDrawCommands() {
+    if (drawCommands.size() >= MAX_BUFFERED_DRAW_COMMANDS) {
+      flushDrawCommands();
+    } else if (!drawFlushPosted) {
+      drawFlushPosted = true;
+      androidUIHandler.post(drawFlusher);
+    }
+  }
+
+  /**
+   * Draws any buffered drawing commands into the view's bitmap and
+   * invalidates the area they affected.  This must be called before the
+   * bitmap is read or replaced.
+   */
+  private void flushDrawCommands() {
+    if (!drawCommands.isEmpty()) {
+      drawCommands.draw(view.canvas, damage);
+      invalidateDamage();
+    }
+  }
+
+  /**
+   * Invalidates the part of the view covered by {@link #damage}.
+   */
+  private void invalidateDamage() {
+    if (!damage.isEmpty()) {
+      view.invalidate(damage);
+      damage.setEmpty();
+    }
+  }
+
+  /**
+   * Checks for collisions involving each sprite that changed while changes
+   * were being deferred, then invalidates the damaged part of the view once.
+   */
+  private void flushChanges() {
+    if (changedSprites.isEmpty()) {
+      return;
+    }
+    for (Sprite sprite : changedSprites) {
+      findSpriteCollisions(sprite);
+    }
+    changedSprites.clear();
+    invalidateDamage();
+  }
+
+  /**
+   * Indicates that a sprite's {@link Sprite#Interval()} or
+   * {@link Sprite#Enabled()} property has changed, so that it is started,
+   * stopped, or rescheduled by the canvas's shared sprite timer.
+   *
+   * @param sprite the sprite whose timer properties have changed
+   */
+  void registerTimerChange(Sprite sprite) {
+    spriteScheduler.update(sprite);
+  }
+
+  /**
+   * Indicates that a sprite that has not yet been initialized has changed.
+   * No collisions are checked, but the view is invalidated and the sprite's
+   * entry in {@link #spriteGrid} is kept current so that it is found once
+   * other sprites start moving.
+   *
+   * @param sprite the sprite whose location, size, or appearance has changed
+   */
+  void registerUninitializedChange(Sprite sprite) {
+    spriteGrid.update(sprite);
+    addSpriteDamage(sprite);
+    invalidateDamage();
+  }
+
 
   // Methods for detecting collisions
 
@@ -521,11 +927,23 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
    * and
    * {@link com.google.devtools.simple.runtime.components.android.Sprite#Enabled()}.
    *
+   * <p>Only sprites that share a cell of {@link #spriteGrid} with the moved
+   * sprite, or that were colliding with it before the move, are examined;
+   * no other sprite can be entering or leaving a collision with it.
+   *
    * @param movedSprite the sprite that has just changed position
    */
   protected void findSpriteCollisions(Sprite movedSprite) {
+    collisionCandidates.clear();
+    spriteGrid.findCandidates(movedSprite.getBoundingBox(1), collisionCandidates);
+    movedSprite.collectRegisteredCollisions(collisionCandidates);
+    if (collisionCandidates.isEmpty()) {
+      return;
+    }
+    // Walk the sprites in canvas order, rather than the candidates in hash
+    // order, so that collision events are raised in a stable order.
     for (Sprite sprite : sprites) {
-      if (sprite != movedSprite) {
+      if (sprite != movedSprite && collisionCandidates.contains(sprite)) {
         // Check whether we already raised an event for their collision.
         if (movedSprite.CollidingWith(sprite)) {
           // If they no longer conflict, note that.
@@ -551,6 +969,7 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
         }
       }
     }
+    collisionCandidates.clear();
   }
 
 
@@ -627,6 +1046,7 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
     }
 
     ViewUtil.setBackgroundImage(view, backgroundDrawable);
+    updateBitmapConfig();
     clearViewCanvas();
   }
 
@@ -705,6 +1125,37 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
     paint.setStrokeWidth(width);
   }
 
+  /**
+   * Returns whether the drawing is stored with 16 bits per pixel rather
+   * than 32.
+   *
+   * @return {@code true} if the drawing is stored at 16 bits per pixel
+   */
+  @SimpleProperty(
+      description = "If true, the canvas stores its drawing with 16 bits per pixel instead " +
+      "of 32, halving the memory it uses, at the cost of less precise colors and no " +
+      "transparency.  This has no effect while a BackgroundImage is set, since the image " +
+      "must show through the drawing.",
+      category = PropertyCategory.BEHAVIOR)
+  public boolean LowMemoryBitmap() {
+    return lowMemoryBitmap;
+  }
+
+  /**
+   * Specifies whether the drawing is stored with 16 bits per pixel rather
+   * than 32.  The existing drawing is kept, converted to the new format.
+   *
+   * @param lowMemoryBitmap {@code true} to store the drawing at 16 bits per
+   *        pixel
+   */
+  @DesignerProperty(editorType = DesignerProperty.PROPERTY_TYPE_BOOLEAN,
+      defaultValue = "False")
+  @SimpleProperty
+  public void LowMemoryBitmap(boolean lowMemoryBitmap) {
+    this.lowMemoryBitmap = lowMemoryBitmap;
+    updateBitmapConfig();
+  }
+
   /**
    * Returns the alignment of the canvas's text: center, normal
    * (starting at the specified point in drawText()), or opposite
@@ -811,8 +1262,8 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
    */
   @SimpleFunction
   public void DrawPoint(int x, int y) {
-    view.canvas.drawPoint(x, y, paint);
-    view.invalidate();
+    drawCommands.recordPoint(paint, x, y);
+    scheduleDrawCommands();
   }
 
   /**
@@ -825,8 +1276,8 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
    */
   @SimpleFunction
   public void DrawCircle(int x, int y, float r) {
-    view.canvas.drawCircle(x, y, r, paint);
-    view.invalidate();
+    drawCommands.recordCircle(paint, x, y, r);
+    scheduleDrawCommands();
   }
 
   /**
@@ -839,8 +1290,123 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
    */
   @SimpleFunction
   public void DrawLine(int x1, int y1, int x2, int y2) {
-    view.canvas.drawLine(x1, y1, x2, y2, paint);
-    view.invalidate();
+    drawCommands.recordLine(paint, x1, y1, x2, y2);
+    scheduleDrawCommands();
+  }
+
+  /**
+   * Draws a point at each of the given coordinates on the canvas.
+   *
+   * @param points the points, as a list of (x y) pairs or as a flat list
+   *        x1, y1, x2, y2, ...
+   */
+  @SimpleFunction(description = "Draws a point at each of the given points.  The points " +
+      "can be a list of (x y) pairs or a list of numbers x1, y1, x2, y2, and so on.")
+  public void DrawPoints(YailList points) {
+    float[] coordinates = coordinatesFromList("DrawPoints", points);
+    if (coordinates != null && coordinates.length > 0) {
+      drawCommands.recordPoints(paint, coordinates);
+      scheduleDrawCommands();
+    }
+  }
+
+  /**
+   * Draws lines joining each of the given points to the next.
+   *
+   * @param points the points, as a list of (x y) pairs or as a flat list
+   *        x1, y1, x2, y2, ...
+   */
+  @SimpleFunction(description = "Draws lines joining each of the given points to the next.  " +
+      "The points can be a list of (x y) pairs or a list of numbers x1, y1, x2, y2, and so on.")
+  public void DrawPolyline(YailList points) {
+    drawConnectedLines("DrawPolyline", points, false);
+  }
+
+  /**
+   * Draws the outline of the polygon with the given vertices, joining each
+   * point to the next and the last point to the first.
+   *
+   * @param points the vertices, as a list of (x y) pairs or as a flat list
+   *        x1, y1, x2, y2, ...
+   */
+  @SimpleFunction(description = "Draws the outline of the polygon with the given vertices, " +
+      "joining each point to the next and the last point to the first.  The points can be a " +
+      "list of (x y) pairs or a list of numbers x1, y1, x2, y2, and so on.")
+  public void DrawPolygon(YailList points) {
+    drawConnectedLines("DrawPolygon", points, true);
+  }
+
+  // Helper method for DrawPolyline and DrawPolygon
+  private void drawConnectedLines(String functionName, YailList points, boolean closed) {
+    float[] coordinates = coordinatesFromList(functionName, points);
+    if (coordinates == null) {
+      return;
+    }
+    int pointCount = coordinates.length / 2;
+    int segmentCount = closed ? pointCount : pointCount - 1;
+    if (pointCount < 2 || segmentCount < 1) {
+      return;
+    }
+    // Canvas.drawLines() takes separate segments, so each interior point
+    // appears twice.
+    float[] segments = new float[segmentCount * 4];
+    for (int i = 0; i < segmentCount; i++) {
+      int from = i * 2;
+      int to = ((i + 1) % pointCount) * 2;
+      segments[i * 4] = coordinates[from];
+      segments[i * 4 + 1] = coordinates[from + 1];
+      segments[i * 4 + 2] = coordinates[to];
+      segments[i * 4 + 3] = coordinates[to + 1];
+    }
+    drawCommands.recordLines(paint, segments);
+    scheduleDrawCommands();
+  }
+
+  /**
+   * Converts a list of points into an array of coordinates x1, y1, x2, y2,
+   * .... The list can either hold (x y) pairs or be a flat list of numbers.
+   * If the list can't be converted, the Screen's ErrorOccurred event is
+   * raised and null is returned.  A trailing unpaired number is ignored.
+   *
+   * @param functionName the name of the calling function, for errors
+   * @param points the list of points
+   * @return the coordinates, or null if the list is invalid
+   */
+  private float[] coordinatesFromList(String functionName, YailList points) {
+    Object[] items = points.toArray();
+    boolean pairs = items.length > 0 && items[0] instanceof YailList;
+    float[] coordinates = new float[pairs ? items.length * 2 : items.length - items.length % 2];
+    int i = 0;
+    try {
+      if (pairs) {
+        for (; i < items.length; i++) {
+          if (!(items[i] instanceof YailList) || ((YailList) items[i]).size() < 2) {
+            throw new NumberFormatException();
+          }
+          Object[] pair = ((YailList) items[i]).toArray();
+          coordinates[i * 2] = coordinateFromObject(pair[0]);
+          coordinates[i * 2 + 1] = coordinateFromObject(pair[1]);
+        }
+      } else {
+        for (; i < coordinates.length; i++) {
+          coordinates[i] = coordinateFromObject(items[i]);
+        }
+      }
+    } catch (NumberFormatException e) {
+      container.$form().dispatchErrorOccurredEvent(this, functionName,
+          ErrorMessages.ERROR_CANVAS_INVALID_POINT_LIST, i + 1);
+      return null;
+    }
+    return coordinates;
+  }
+
+  private static float coordinateFromObject(Object item) {
+    // We use Object.toString for anything but a Number because the element
+    // might be a String.
+    if (item instanceof Number) {
+      return ((Number) item).floatValue();
+    }
+    return Float.parseFloat(String.valueOf(item));
   }
 
   /**
@@ -854,8 +1420,8 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
    */
   @SimpleFunction
   public void DrawText(String text, int x, int y) {
-    view.canvas.drawText(text, (float) x, (float) y, paint);
-    view.invalidate();
+    drawCommands.recordText(paint, text, x, y, 0);
+    scheduleDrawCommands();
   }
 
   /**
@@ -870,11 +1436,108 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
    */
   @SimpleFunction
   public void DrawTextAtAngle(String text, int x, int y, float angle) {
-    view.canvas.save();
-    view.canvas.rotate(-angle, (float) x, (float) y);
-    view.canvas.drawText(text, (float) x, (float) y, paint);
-    view.canvas.restore();
-    view.invalidate();
+    drawCommands.recordText(paint, text, x, y, angle);
+    scheduleDrawCommands();
+  }
+
+  /**
+   * Returns the color of the given pixel of the canvas's drawing, which
+   * includes the background color and everything drawn with the Draw
+   * functions but not the background image or sprites.
+   *
+   * @param x the x-coordinate
+   * @param y the y-coordinate
+   * @return the color in the format 0xAARRGGBB, or
+   *         {@link Component#COLOR_NONE} if the point is off the canvas
+   */
+  @SimpleFunction(description = "Gets the color of the given pixel of the canvas, " +
+      "including the background color and anything drawn on it, but not the background " +
+      "image or sprites.  Returns None if the point is outside the canvas.")
+  public int GetPixelColor(int x, int y) {
+    flushDrawCommands();
+    if (x < 0 || y < 0 || x >= view.bitmapWidth || y >= view.bitmapHeight) {
+      return Component.COLOR_NONE;
+    }
+    return view.bitmap.getPixel(x, y);
+  }
+
+  /**
+   * Returns the colors of a rectangular region of the canvas's drawing, as
+   * {@link #GetPixelColor(int, int)} would, read in a single call.
+   *
+   * @param x the x-coordinate of the left edge of the region
+   * @param y the y-coordinate of the top edge of the region
+   * @param width the width of the region
+   * @param height the height of the region
+   * @return a list of {@code width * height} colors, row by row
+   */
+  @SimpleFunction(description = "Gets the colors of the pixels in a rectangular region of " +
+      "the canvas, as a single list of width times height colors, row by row.")
+  public List<Integer> GetPixelRegion(int x, int y, int width, int height) {
+    flushDrawCommands();
+    if (!checkPixelRegion("GetPixelRegion", x, y, width, height)) {
+      return new ArrayList<Integer>();
+    }
+    int[] pixels = new int[width * height];
+    view.bitmap.getPixels(pixels, 0, width, x, y, width, height);
+    List<Integer> colors = new ArrayList<Integer>(pixels.length);
+    for (int pixel : pixels) {
+      colors.add(pixel);
+    }
+    return colors;
+  }
+
+  /**
+   * Sets the colors of a rectangular region of the canvas's drawing in a
+   * single call.
+   *
+   * @param x the x-coordinate of the left edge of the region
+   * @param y the y-coordinate of the top edge of the region
+   * @param width the width of the region
+   * @param height the height of the region
+   * @param colors a list of {@code width * height} colors, row by row, in the
+   *        format 0xAARRGGBB
+   */
+  @SimpleFunction(description = "Sets the colors of the pixels in a rectangular region of " +
+      "the canvas from a single list of width times height colors, row by row, as returned " +
+      "by GetPixelRegion.")
+  public void SetPixelRegion(int x, int y, int width, int height, YailList colors) {
+    flushDrawCommands();
+    if (!checkPixelRegion("SetPixelRegion", x, y, width, height)) {
+      return;
+    }
+    Object[] items = colors.toArray();
+    int[] pixels = new int[width * height];
+    try {
+      if (items.length != pixels.length) {
+        throw new NumberFormatException();
+      }
+      for (int i = 0; i < pixels.length; i++) {
+        // The colors are usually numbers but might be Strings.
+        pixels[i] = (items[i] instanceof Number)
+            ? ((Number) items[i]).intValue()
+            : (int) Long.parseLong(String.valueOf(items[i]));
+      }
+    } catch (NumberFormatException e) {
+      container.$form().dispatchErrorOccurredEvent(this, "SetPixelRegion",
+          ErrorMessages.ERROR_CANVAS_INVALID_PIXEL_LIST, pixels.length);
+      return;
+    }
+    view.bitmap.setPixels(pixels, 0, width, x, y, width, height);
+    view.invalidate(x, y, x + width, y + height);
+  }
+
+  // Helper method for GetPixelRegion and SetPixelRegion
+  private boolean checkPixelRegion(String functionName, int x, int y, int width, int height) {
+    // Compare against the space left rather than x + width and y + height,
+    // which can overflow and pass the check.
+    if (x < 0 || y < 0 || width <= 0 || height <= 0 ||
+        width > view.bitmapWidth - x || height > view.bitmapHeight - y) {
+      container.$form().dispatchErrorOccurredEvent(this, functionName,
+          ErrorMessages.ERROR_CANVAS_PIXEL_REGION_OUT_OF_BOUNDS, x, y, width, height);
+      return false;
+    }
+    return true;
   }
 
   /**
@@ -934,6 +1597,7 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
 
   // Helper method for Save and SaveAs
   private String saveFile(File file, Bitmap.CompressFormat format, String method) {
+    flushDrawCommands();
     try {
       boolean success = false;
       FileOutputStream fos = new FileOutputStream(file);
@@ -17,6 +17,7 @@ import com.google.devtools.simple.runtime.components.HandlesEventDispatching;
 import com.google.devtools.simple.runtime.components.android.collect.Lists;
 import com.google.devtools.simple.runtime.components.android.collect.Maps;
 import com.google.devtools.simple.runtime.components.android.collect.Sets;
+import com.google.devtools.simple.runtime.components.android.util.AsynchUtil;
 import com.google.devtools.simple.runtime.components.android.util.MediaUtil;
 import com.google.devtools.simple.runtime.components.android.util.SdkLevel;
 import com.google.devtools.simple.runtime.components.android.util.ViewUtil;
@@ -115,6 +116,7 @@ public class Form extends Activity
   private final HashMap<Integer, ActivityResultListener> activityResultMap = Maps.newHashMap();
   private final Set<OnStopListener> onStopListeners = Sets.newHashSet();
   private final Set<OnResumeListener> onResumeListeners = Sets.newHashSet();
+  private final Set<OnDestroyListener> onDestroyListeners = Sets.newHashSet();
 
   // Set to the optional String-valued Extra passed in via an Intent on startup.
   private String startupValue = "";
@@ -283,14 +285,25 @@ public class Form extends Activity
     // for debugging and future growth
     Log.d(LOG_TAG, "Form " + formName + " got onDestroy");
 
+    for (OnDestroyListener onDestroyListener : onDestroyListeners) {
+      onDestroyListener.onDestroy();
+    }
+
     // Unregister events for components in this form.
     EventDispatcher.removeDispatchDelegate(this);
+
+    // Let the worker threads exit once pending Web requests have returned.
+    AsynchUtil.shutdown();
   }
 
   public void registerForOnStop(OnStopListener component) {
     onStopListeners.add(component);
   }
 
+  public void registerForOnDestroy(OnDestroyListener component) {
+    onDestroyListeners.add(component);
+  }
+
   /**
    * Compiler-generated method to initialize and add application components to
    * the form.  We just provide an implementation here to artificially make
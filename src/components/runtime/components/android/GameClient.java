@@ -16,6 +16,7 @@ import com.google.devtools.simple.runtime.components.Component;
 import com.google.devtools.simple.runtime.components.android.collect.Lists;
 import com.google.devtools.simple.runtime.components.android.util.AsyncCallbackPair;
 import com.google.devtools.simple.runtime.components.android.util.AsynchUtil;
+import com.google.devtools.simple.runtime.components.android.util.CircuitBreaker;
 import com.google.devtools.simple.runtime.components.android.util.GameInstance;
 import com.google.devtools.simple.runtime.components.android.util.LoginServiceUtil;
 import com.google.devtools.simple.runtime.components.android.util.PlayerListDelta;
@@ -27,6 +28,7 @@ import com.google.devtools.simple.runtime.events.EventDispatcher;
 
 import android.app.Activity;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.apache.http.NameValuePair;
@@ -36,7 +38,14 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * GameClient provides a way for AppInventor applications to
@@ -60,7 +69,9 @@ import java.util.List;
  * represented uniquely by the email address registered to their
  * phones.
  *
- * All call functions perform POSTs to a web server. Upon successful
+ * All call functions perform POSTs to a web server. Calls that do
+ * not change the instance and are made within a few milliseconds of
+ * each other are sent together as a single batch. Upon successful
  * completion of these POST requests, FunctionCompleted will be
  * triggered with the function name as an argument. If the post
  * fails, WebServiceError will trigger with the function name and the
@@ -109,6 +120,10 @@ public class GameClient extends AndroidNonvisibleComponent
   private static final String JOINED_LIST_KEY = "joined";
   private static final String INVITED_LIST_KEY = "invited";
   private static final String PLAYERS_LIST_KEY = "players";
+  private static final String PLAYERS_ADDED_KEY = "padd";
+  private static final String PLAYERS_REMOVED_KEY = "prem";
+  private static final String PLAYERS_VERSION_KEY = "pver";
+  private static final String WAIT_KEY = "wait";
 
   // Command keys
   private static final String GET_INSTANCE_LISTS_COMMAND = "getinstancelists";
@@ -120,6 +135,43 @@ public class GameClient extends AndroidNonvisibleComponent
   private static final String NEW_MESSAGE_COMMAND = "newmessage";
   private static final String SERVER_COMMAND = "servercommand";
   private static final String SET_LEADER_COMMAND = "setleader";
+  private static final String WAIT_MESSAGES_COMMAND = "waitmessages";
+  private static final String BATCH_COMMAND = "batch";
+
+  // The minimum time between two polling requests for the same data.
+  private static final long MIN_POLL_INTERVAL_MILLIS = 500;
+
+  // How long calls are collected before being sent to the server together.
+  private static final long BATCH_WINDOW_MILLIS = 50;
+
+  // How long the server holds a listening request open when there are no
+  // messages, and how long the client waits for its response.  The client
+  // allows for the time taken to send the request and the response.
+  private static final int LISTEN_WAIT_SECONDS = 15;
+  private static final int LISTEN_TIMEOUT_MILLIS = (LISTEN_WAIT_SECONDS + 15) * 1000;
+  private static final int LISTEN_MESSAGE_COUNT = 1000;
+
+  // Bounds on the delay before listening again after a failed request.  The
+  // delay doubles with each consecutive failure.
+  private static final long MIN_LISTEN_RETRY_MILLIS = 1000;
+  private static final long MAX_LISTEN_RETRY_MILLIS = 60000;
+
+  // The response fields that WebServiceUtil decodes directly into the lists
+  // passed to blocks, rather than into JSON arrays.
+  private static final Set<String> LIST_KEYS = Collections.singleton(MESSAGE_CONTENT_KEY);
+
+  // Polling for messages and instance lists can safely be repeated, so
+  // those requests are retried if they fail because the server isn't
+  // responding.  Other commands are not retried.  Listening requests are
+  // held open by the server, so they need a longer timeout; they are not
+  // retried here since listening has a backoff of its own.
+  private static final int MAX_RETRIES = 2;
+  private static final Set<String> RETRIED_COMMANDS = new HashSet<String>(
+      Arrays.asList(GET_MESSAGES_COMMAND, GET_INSTANCE_LISTS_COMMAND));
+  private static final WebServiceUtil retryingWebService =
+      WebServiceUtil.getInstance(WebServiceUtil.DEFAULT_TIMEOUT_MILLIS, MAX_RETRIES);
+  private static final WebServiceUtil listeningWebService =
+      WebServiceUtil.getInstance(LISTEN_TIMEOUT_MILLIS);
 
   // URL for accessing the game server
   private String serviceUrl;
@@ -137,6 +189,41 @@ public class GameClient extends AndroidNonvisibleComponent
   // Game instances which have been made public.
   private List<String> publicInstances;
 
+  // Polling requests (GetMessages and GetInstanceLists) that are waiting to
+  // be sent or awaiting a response, keyed by (command, game id, instance id,
+  // type).  Also guards lastPollTimes.
+  private final Set<List<String>> pendingPolls = new HashSet<List<String>>();
+  // The uptime at which each polling request was last sent, by key, for the
+  // requests sent less than MIN_POLL_INTERVAL_MILLIS ago.
+  private final Map<List<String>, Long> lastPollTimes = new HashMap<List<String>, Long>();
+
+  // Whether StartListening is in effect, and a count incremented by
+  // StartListening and StopListening so that a listening loop started
+  // earlier knows to stop.
+  private volatile boolean listening;
+  private volatile int listenGeneration;
+
+  // Notified when listenGeneration changes, so that a listening loop
+  // waiting to retry a failed request ends right away.
+  private final Object listenLock = new Object();
+
+  // Calls waiting for the batching window to close.  Also guards
+  // batchFlushPosted.
+  private final List<Runnable> batchedCalls = new ArrayList<Runnable>();
+  private boolean batchFlushPosted;
+  private final Runnable batchFlusher = new Runnable() {
+    public void run() {
+      flushBatchedCalls();
+    }
+  };
+  // The batch being assembled on the current thread, if any.
+  private final ThreadLocal<Batch> assemblingBatch = new ThreadLocal<Batch>();
+  // Cleared if the server turns out not to accept batches.
+  private volatile boolean batchingSupported = true;
+
+  // Whether the game server was available after the last response
+  private boolean serviceAvailable = true;
+
   /**
    * Creates a new GameClient component.
    *
@@ -246,6 +333,18 @@ public class GameClient extends AndroidNonvisibleComponent
     return joinedInstances;
   }
 
+  /**
+   * Returns whether this client is listening for messages, as started by
+   * {@link #StartListening}.
+   */
+  @SimpleProperty(
+      description = "Whether this client is listening for messages, as " +
+      "started by StartListening.",
+      category = PropertyCategory.BEHAVIOR)
+  public boolean Listening() {
+    return listening;
+  }
+
   /**
    * Returns the game's leader. At any time, each game instance has
    * only one leader, but the leader may change with time.
@@ -320,6 +419,7 @@ public class GameClient extends AndroidNonvisibleComponent
     } else {
       this.serviceUrl = url;
     }
+    batchingSupported = true;
   }
 
   /**
@@ -605,6 +705,26 @@ public class GameClient extends AndroidNonvisibleComponent
       }});
   }
 
+  /**
+   * Indicates that the game server has stopped responding, or has
+   * started responding again.
+   *
+   * @param available whether the game server is responding
+   */
+  @SimpleEvent(description = "Indicates that the game server has " +
+                "stopped responding, or has started responding again. " +
+                "While it is not responding, requests fail with a " +
+                "WebServiceError without being sent, and are only sent " +
+                "again from time to time to find out whether it has " +
+                "recovered.")
+  public void ServiceAvailabilityChanged(final boolean available) {
+    Log.d(LOG_TAG, "ServiceAvailabilityChanged: " + available);
+    androidUIHandler.post(new Runnable() {
+      public void run() {
+        EventDispatcher.dispatchEvent(GameClient.this, "ServiceAvailabilityChanged", available);
+      }});
+  }
+
   //----------------------------------------------------------------
   // Functions
 
@@ -618,7 +738,7 @@ public class GameClient extends AndroidNonvisibleComponent
                 "InstancesInvited lists. This procedure can be called " +
                 "before setting the InstanceId.")
   public void GetInstanceLists() {
-    AsynchUtil.runAsynchronously(new Runnable() {
+    pollGameServer(GET_INSTANCE_LISTS_COMMAND, "", new Runnable() {
         public void run() { postGetInstanceLists(); }});
   }
 
@@ -686,12 +806,11 @@ public class GameClient extends AndroidNonvisibleComponent
    * players from receiving the same message again if they later
    * request the specific message type.
    *
-   * Note that the message receive times are not updated until after
-   * the messages are actually received. Thus, if multiple message
-   * requests are made before the previous ones return, they could
-   * send stale time values and thus receive the same messages more
-   * than once. To avoid this, application creators should wait for
-   * the get messages function to return before calling it again.
+   * Requests are sent one at a time. A call made while a request for
+   * the same type is still waiting to be sent or awaiting a response
+   * is folded into that request, and requests for the same type are
+   * sent at most twice a second, so calling this from a fast Clock
+   * timer does not flood a slow server.
    *
    * @param type The type of message to retrieve. If the empty string
    * is used as the message type then all message types will be
@@ -702,35 +821,14 @@ public class GameClient extends AndroidNonvisibleComponent
   @SimpleFunction(
       description = "Retrieves messages of the specified type.")
   public void GetMessages(final String type, final int count) {
-    AsynchUtil.runAsynchronously(new Runnable() {
+    pollGameServer(GET_MESSAGES_COMMAND, type, new Runnable() {
       public void run() { postGetMessages(type, count); }});
   }
 
   private void postGetMessages(final String requestedType, final int count) {
     AsyncCallbackPair<JSONObject> myCallback = new AsyncCallbackPair<JSONObject>() {
       public void onSuccess(final JSONObject result) {
-        try {
-          int count = result.getInt(COUNT_KEY);
-          JSONArray messages = result.getJSONArray(MESSAGES_LIST_KEY);
-          for (int i = 0; i < count; i++) {
-            JSONObject message = messages.getJSONObject(i);
-            String type = message.getString(TYPE_KEY);
-            String sender = message.getString(MESSAGE_SENDER_KEY);
-            String time = message.getString(MESSAGE_TIME_KEY);
-            List<Object> contents = JsonUtil.getListFromJsonArray(message.
-                getJSONArray(MESSAGE_CONTENT_KEY));
-            // Assumes that the server is going to return messages in
-            // chronological order.
-            if (requestedType.equals("")) {
-              instance.putMessageTime(requestedType, time);
-            }
-            instance.putMessageTime(type, time);
-            GotMessage(type, sender, contents);
-          }
-        } catch (JSONException e) {
-          Log.w(LOG_TAG, e);
-          Info("Failed to parse messages response.");
-        }
+        processMessages(requestedType, result);
         FunctionCompleted("GetMessages");
       }
 
@@ -755,6 +853,164 @@ public class GameClient extends AndroidNonvisibleComponent
         myCallback);
   }
 
+  /*
+   * Returns the contents of a message or of a server command's response,
+   * which WebServiceUtil has already decoded into a list.
+   */
+  private static List<Object> getContents(JSONObject result) throws JSONException {
+    Object contents = result.get(MESSAGE_CONTENT_KEY);
+    if (!(contents instanceof List)) {
+      throw new JSONException("JSONObject[" + JSONObject.quote(MESSAGE_CONTENT_KEY) +
+          "] is not a list.");
+    }
+    return (List<Object>) contents;
+  }
+
+  private void processMessages(String requestedType, JSONObject result) {
+    try {
+      int count = result.getInt(COUNT_KEY);
+      JSONArray messages = result.getJSONArray(MESSAGES_LIST_KEY);
+      for (int i = 0; i < count; i++) {
+        JSONObject message = messages.getJSONObject(i);
+        String type = message.getString(TYPE_KEY);
+        String sender = message.getString(MESSAGE_SENDER_KEY);
+        String time = message.getString(MESSAGE_TIME_KEY);
+        List<Object> contents = getContents(message);
+        // Assumes that the server is going to return messages in
+        // chronological order.
+        if (requestedType.equals("")) {
+          instance.putMessageTime(requestedType, time);
+        }
+        instance.putMessageTime(type, time);
+        GotMessage(type, sender, contents);
+      }
+    } catch (JSONException e) {
+      Log.w(LOG_TAG, e);
+      Info("Failed to parse messages response.");
+    }
+  }
+
+  /**
+   * Starts listening for messages of the specified type.
+   *
+   * Rather than polling with GetMessages, the client sends a request
+   * that the server holds open until a new message arrives or a
+   * timeout passes, and then immediately sends another. GotMessage
+   * is raised for each message as soon as it is received. If a
+   * request fails, WebServiceError is raised and the client waits
+   * before trying again, doubling the wait (up to one minute) after
+   * each consecutive failure.
+   *
+   * Listening continues until StopListening is called or the player
+   * leaves the instance. Calling StartListening again replaces the
+   * type being listened for. Applications that listen should not
+   * also call GetMessages for the same type.
+   *
+   * @param type The type of message to listen for. If the empty
+   * string is used then messages of all types are received.
+   */
+  @SimpleFunction(description = "Starts listening for messages of the " +
+      "specified type. GotMessage is raised as soon as each message " +
+      "arrives, without the need to call GetMessages.")
+  public void StartListening(String type) {
+    if (InstanceId().equals("")) {
+      Info("You must join an instance before listening for messages.");
+      return;
+    }
+    listening = true;
+    synchronized (listenLock) {
+      listenGeneration++;
+      listenLock.notifyAll();
+    }
+    listen(listenGeneration, type);
+  }
+
+  /**
+   * Stops listening for messages. Messages already on their way are
+   * still received.
+   */
+  @SimpleFunction(description = "Stops listening for messages.")
+  public void StopListening() {
+    listening = false;
+    synchronized (listenLock) {
+      listenGeneration++;
+      listenLock.notifyAll();
+    }
+  }
+
+  /*
+   * Starts a thread that sends listening requests one after another until
+   * listening is stopped or restarted: right away after a request that
+   * succeeded, or after a growing delay after one that did not.  Since the
+   * server holds each request open while it waits for messages, the loop
+   * has a thread of its own rather than holding a shared worker thread or
+   * this component's serial lane.
+   */
+  private void listen(final int generation, final String type) {
+    AsynchUtil.runInNewThread("GameClient-listen", new Runnable() {
+      public void run() {
+        long retryDelay = 0;
+        while (generation == listenGeneration) {
+          retryDelay = postWaitMessages(type, retryDelay);
+          if (retryDelay < 0) {
+            return;
+          }
+          if (retryDelay > 0) {
+            synchronized (listenLock) {
+              if (generation == listenGeneration) {
+                try {
+                  listenLock.wait(retryDelay);
+                } catch (InterruptedException e) {
+                  return;
+                }
+              }
+            }
+          }
+        }
+      }
+    });
+  }
+
+  /*
+   * Sends one listening request.  Returns how long to wait before sending
+   * the next one, 0 if the request succeeded, or -1 if listening must stop.
+   */
+  private long postWaitMessages(final String requestedType, long retryDelay) {
+    if (InstanceId().equals("")) {
+      listening = false;
+      return -1;
+    }
+
+    final long[] nextDelay = {
+        Math.min(Math.max(retryDelay * 2, MIN_LISTEN_RETRY_MILLIS), MAX_LISTEN_RETRY_MILLIS)
+    };
+    AsyncCallbackPair<JSONObject> myCallback = new AsyncCallbackPair<JSONObject>() {
+      public void onSuccess(final JSONObject result) {
+        processMessages(requestedType, result);
+        nextDelay[0] = 0;
+      }
+
+      public void onFailure(String message) {
+        WebServiceError("StartListening", message);
+      }
+    };
+
+    postCommandToGameServer(WAIT_MESSAGES_COMMAND,
+        Lists.<NameValuePair>newArrayList(
+            new BasicNameValuePair(GAME_ID_KEY, GameId()),
+            new BasicNameValuePair(INSTANCE_ID_KEY, InstanceId()),
+            new BasicNameValuePair(PLAYER_ID_KEY, UserEmailAddress()),
+            new BasicNameValuePair(COUNT_KEY, Integer.toString(LISTEN_MESSAGE_COUNT)),
+            new BasicNameValuePair(MESSAGE_TIME_KEY, instance.getMessageTime(requestedType)),
+            new BasicNameValuePair(TYPE_KEY, requestedType),
+            new BasicNameValuePair(WAIT_KEY, Integer.toString(LISTEN_WAIT_SECONDS))),
+        myCallback);
+
+    // The request has completed, successfully or not, or its response was
+    // ignored because it was for another instance.
+    return nextDelay[0];
+  }
+
   /**
    * Invites a player to this game instance.
    *
@@ -771,7 +1027,7 @@ public class GameClient extends AndroidNonvisibleComponent
   @SimpleFunction(
       description = "Invites a player to this game instance.")
   public void Invite(final String playerEmail) {
-    AsynchUtil.runAsynchronously(new Runnable() {
+    runBatchable(new Runnable() {
       public void run() { postInvite(playerEmail); }});
   }
 
@@ -827,7 +1083,7 @@ public class GameClient extends AndroidNonvisibleComponent
    */
   @SimpleFunction(description = "Leaves the current instance.")
   public void LeaveInstance() {
-    AsynchUtil.runAsynchronously(new Runnable() {
+    runUnbatched(new Runnable() {
       public void run() {
         postLeaveInstance();
       }
@@ -878,7 +1134,7 @@ public class GameClient extends AndroidNonvisibleComponent
   @SimpleFunction(description = "Asks the server to create a new " +
                 "instance of this game.")
   public void MakeNewInstance(final String instanceId, final boolean makePublic) {
-    AsynchUtil.runAsynchronously(new Runnable() {
+    runUnbatched(new Runnable() {
       public void run() { postMakeNewInstance(instanceId, makePublic); }});
   }
 
@@ -925,7 +1181,7 @@ public class GameClient extends AndroidNonvisibleComponent
                 "recipients in the recipients list. The message will " +
                 "consist of the contents list.")
   public void SendMessage(final String type, final YailList recipients, final YailList contents) {
-    AsynchUtil.runAsynchronously(new Runnable() {
+    runBatchable(new Runnable() {
       public void run() { postNewMessage(type, recipients, contents); }});
   }
 
@@ -973,7 +1229,7 @@ public class GameClient extends AndroidNonvisibleComponent
   @SimpleFunction(description = "Sends the specified command to " +
                 "the game server.")
   public void ServerCommand(final String command, final YailList arguments) {
-    AsynchUtil.runAsynchronously(new Runnable() {
+    runBatchable(new Runnable() {
       public void run() { postServerCommand(command, arguments); }});
   }
 
@@ -981,8 +1237,7 @@ public class GameClient extends AndroidNonvisibleComponent
     AsyncCallbackPair<JSONObject> myCallback = new AsyncCallbackPair<JSONObject>() {
       public void onSuccess(final JSONObject result) {
         try {
-          ServerCommandSuccess(command, JsonUtil.getListFromJsonArray(result.
-              getJSONArray(MESSAGE_CONTENT_KEY)));
+          ServerCommandSuccess(command, getContents(result));
         } catch (JSONException e) {
           Log.w(LOG_TAG, e);
           Info("Server command response failed to parse.");
@@ -1016,7 +1271,7 @@ public class GameClient extends AndroidNonvisibleComponent
   @SimpleFunction(description = "Sets InstanceId and joins the " +
                 "specified instance.")
   public void SetInstance(final String instanceId) {
-    AsynchUtil.runAsynchronously(new Runnable() {
+    runUnbatched(new Runnable() {
       public void run() {
         if (instanceId.equals("")) {
           Log.d(LOG_TAG, "Instance id set to empty string.");
@@ -1069,7 +1324,7 @@ public class GameClient extends AndroidNonvisibleComponent
                 "leader to playerId. Only the current leader may " +
                 "successfully set a new leader.")
   public void SetLeader(final String playerEmail) {
-    AsynchUtil.runAsynchronously(new Runnable() {
+    runBatchable(new Runnable() {
       public void run() { postSetLeader(playerEmail); }});
   }
 
@@ -1121,6 +1376,63 @@ public class GameClient extends AndroidNonvisibleComponent
   //----------------------------------------------------------------
   // Utility Methods
 
+  /*
+   * Runs a polling request unless an identical request is already pending,
+   * in which case the caller gets the events raised by that request instead.
+   * The request is delayed if an identical one was sent less than
+   * MIN_POLL_INTERVAL_MILLIS ago.
+   */
+  private void pollGameServer(final String commandName, String type, final Runnable call) {
+    final List<String> key = Arrays.asList(commandName, GameId(), InstanceId(), type);
+    long delay = 0;
+    synchronized (pendingPolls) {
+      if (!pendingPolls.add(key)) {
+        Log.d(LOG_TAG, "Coalesced " + commandName + " with a pending request.");
+        return;
+      }
+      Long lastPollTime = lastPollTimes.get(key);
+      if (lastPollTime != null) {
+        delay = lastPollTime + MIN_POLL_INTERVAL_MILLIS - SystemClock.uptimeMillis();
+      }
+    }
+
+    final Runnable poll = new Runnable() {
+      public void run() {
+        try {
+          synchronized (pendingPolls) {
+            long now = SystemClock.uptimeMillis();
+            // Forget the polls sent long enough ago not to delay another, so
+            // that the map only holds recent keys.
+            for (Iterator<Long> times = lastPollTimes.values().iterator(); times.hasNext(); ) {
+              if (now - times.next() >= MIN_POLL_INTERVAL_MILLIS) {
+                times.remove();
+              }
+            }
+            lastPollTimes.put(key, now);
+          }
+          call.run();
+        } finally {
+          whenPosted(new Runnable() {
+            public void run() {
+              synchronized (pendingPolls) {
+                pendingPolls.remove(key);
+              }
+            }
+          });
+        }
+      }
+    };
+    if (delay > 0) {
+      androidUIHandler.postDelayed(new Runnable() {
+        public void run() {
+          runBatchable(poll);
+        }
+      }, delay);
+    } else {
+      runBatchable(poll);
+    }
+  }
+
   private void postCommandToGameServer(final String commandName,
       List<NameValuePair> params, final AsyncCallbackPair<JSONObject> callback) {
     postCommandToGameServer(commandName, params, callback, false);
@@ -1129,9 +1441,25 @@ public class GameClient extends AndroidNonvisibleComponent
   private void postCommandToGameServer(final String commandName,
       final List<NameValuePair> params, final AsyncCallbackPair<JSONObject> callback,
       final boolean allowInstanceIdChange) {
+    // If the command is for the current instance, send the version of its
+    // players list so that the server only needs to send the changes.
+    GameInstance requestInstance = instance;
+    final int sentPlayersVersion = requestInstance.getPlayersVersion();
+    if (sentPlayersVersion >= 0) {
+      for (NameValuePair param : params) {
+        if (param.getName().equals(INSTANCE_ID_KEY) &&
+            param.getValue().equals(requestInstance.getInstanceId())) {
+          params.add(new BasicNameValuePair(PLAYERS_VERSION_KEY,
+              Integer.toString(sentPlayersVersion)));
+          break;
+        }
+      }
+    }
+
     AsyncCallbackPair<JSONObject> thisCallback = new AsyncCallbackPair<JSONObject>() {
       public void onSuccess(JSONObject responseObject) {
         Log.d(LOG_TAG, "Received response for " + commandName + ": " + responseObject.toString());
+        checkServiceAvailability();
 
         try {
           if (responseObject.getBoolean(ERROR_RESPONSE_KEY)) {
@@ -1149,11 +1477,11 @@ public class GameClient extends AndroidNonvisibleComponent
             }
 
             if (responseInstanceId.equals(InstanceId())) {
-              updateInstanceInfo(responseObject);
+              updateInstanceInfo(responseObject, sentPlayersVersion);
             } else {
               if (allowInstanceIdChange || InstanceId().equals("")) {
                 instance = new GameInstance(responseInstanceId);
-                updateInstanceInfo(responseObject);
+                updateInstanceInfo(responseObject, -1);
                 InstanceIdChanged(responseInstanceId);
               } else {
                 Info("Ignored server response to " + commandName + " for incorrect instance " +
@@ -1171,26 +1499,184 @@ public class GameClient extends AndroidNonvisibleComponent
       public void onFailure(String failureMessage) {
         Log.d(LOG_TAG, "Posting to server failed for " + commandName + " with arguments " +
             params + "\n Failure message: " +  failureMessage);
+        checkServiceAvailability();
         callback.onFailure(failureMessage);
       }
     };
 
-    WebServiceUtil.getInstance().postCommandReturningObject(ServiceUrl(), commandName, params,
-        thisCallback);
+    Batch batch = assemblingBatch.get();
+    if (batch != null) {
+      batch.commands.add(new WebServiceUtil.BatchedCommand(commandName, params, thisCallback));
+    } else {
+      getWebService(commandName).postCommandReturningObject(ServiceUrl(), commandName, params,
+          LIST_KEYS, thisCallback);
+    }
+  }
+
+  /*
+   * Runs a call that posts a command that does not change the instance.
+   * Such calls made within BATCH_WINDOW_MILLIS of each other are run
+   * together on this component's serial lane, and the commands they post
+   * are sent to the server as a single batch.
+   */
+  private void runBatchable(Runnable call) {
+    synchronized (batchedCalls) {
+      batchedCalls.add(call);
+      if (!batchFlushPosted) {
+        batchFlushPosted = true;
+        androidUIHandler.postDelayed(batchFlusher, BATCH_WINDOW_MILLIS);
+      }
+    }
+  }
+
+  /*
+   * Runs a call on this component's serial lane by itself, after any calls
+   * waiting to be batched.  This is used for commands that may change the
+   * instance, since the commands in a batch are all built before any
+   * response is received.
+   */
+  private void runUnbatched(Runnable call) {
+    flushBatchedCalls();
+    AsynchUtil.runSerially(this, call);
   }
 
-  private void updateInstanceInfo(JSONObject responseObject) throws JSONException {
+  private void flushBatchedCalls() {
+    final List<Runnable> calls;
+    synchronized (batchedCalls) {
+      if (batchFlushPosted) {
+        androidUIHandler.removeCallbacks(batchFlusher);
+        batchFlushPosted = false;
+      }
+      if (batchedCalls.isEmpty()) {
+        return;
+      }
+      calls = new ArrayList<Runnable>(batchedCalls);
+      batchedCalls.clear();
+    }
+    AsynchUtil.runSerially(this, new Runnable() {
+      public void run() {
+        runBatch(calls);
+      }
+    });
+  }
+
+  private void runBatch(List<Runnable> calls) {
+    Batch batch = new Batch();
+    assemblingBatch.set(batch);
+    try {
+      for (Runnable call : calls) {
+        call.run();
+      }
+    } finally {
+      assemblingBatch.set(null);
+    }
+    try {
+      postBatch(batch.commands);
+    } finally {
+      for (Runnable completion : batch.completions) {
+        completion.run();
+      }
+    }
+  }
+
+  // Raises ServiceAvailabilityChanged if the response just received shows
+  // that the game server has stopped or started responding.
+  private synchronized void checkServiceAvailability() {
+    boolean available = CircuitBreaker.isServiceAvailable(ServiceUrl());
+    if (available != serviceAvailable) {
+      serviceAvailable = available;
+      ServiceAvailabilityChanged(available);
+    }
+  }
+
+  /*
+   * Returns the WebServiceUtil through which to post the given command.
+   */
+  private static WebServiceUtil getWebService(String commandName) {
+    if (commandName.equals(WAIT_MESSAGES_COMMAND)) {
+      return listeningWebService;
+    } else if (RETRIED_COMMANDS.contains(commandName)) {
+      return retryingWebService;
+    }
+    return WebServiceUtil.getInstance();
+  }
+
+  private void postBatch(List<WebServiceUtil.BatchedCommand> commands) {
+    if (commands.size() > 1 && batchingSupported) {
+      // A batch is only retried if all its commands may be.
+      WebServiceUtil batchWebService = retryingWebService;
+      for (WebServiceUtil.BatchedCommand command : commands) {
+        if (!RETRIED_COMMANDS.contains(command.getCommandName())) {
+          batchWebService = WebServiceUtil.getInstance();
+          break;
+        }
+      }
+      int outcome =
+          batchWebService.postCommandBatch(ServiceUrl(), BATCH_COMMAND, commands, LIST_KEYS);
+      if (outcome == WebServiceUtil.BATCH_ANSWERED) {
+        return;
+      } else if (outcome == WebServiceUtil.BATCH_REJECTED) {
+        Log.i(LOG_TAG, "Server does not accept batches; sending commands separately.");
+        batchingSupported = false;
+      } else if (outcome == WebServiceUtil.BATCH_FAILED) {
+        // The server may have run any of the commands, so only those that
+        // can safely be run twice are sent again.
+        List<WebServiceUtil.BatchedCommand> repeatable =
+            new ArrayList<WebServiceUtil.BatchedCommand>();
+        for (WebServiceUtil.BatchedCommand command : commands) {
+          if (RETRIED_COMMANDS.contains(command.getCommandName())) {
+            repeatable.add(command);
+          } else {
+            command.getCallback().onFailure("Communication with the web service failed while " +
+                "sending " + command.getCommandName() + ".");
+          }
+        }
+        commands = repeatable;
+      }
+      // Otherwise the batch wasn't sent, and the commands report why when
+      // they are sent separately.
+    }
+    for (WebServiceUtil.BatchedCommand command : commands) {
+      getWebService(command.getCommandName()).postCommandReturningObject(ServiceUrl(),
+          command.getCommandName(), command.getParams(), LIST_KEYS, command.getCallback());
+    }
+  }
+
+  /*
+   * Runs the given code once the command just built by the current call has
+   * been posted: immediately, unless the command is part of a batch being
+   * assembled, in which case after the batch has been sent.
+   */
+  private void whenPosted(Runnable completion) {
+    Batch batch = assemblingBatch.get();
+    if (batch != null) {
+      batch.completions.add(completion);
+    } else {
+      completion.run();
+    }
+  }
+
+  /*
+   * The commands posted by the calls in a batch, and the code to run once
+   * they have been sent.
+   */
+  private static class Batch {
+    final List<WebServiceUtil.BatchedCommand> commands =
+        new ArrayList<WebServiceUtil.BatchedCommand>();
+    final List<Runnable> completions = new ArrayList<Runnable>();
+  }
+
+  private void updateInstanceInfo(JSONObject responseObject, int sentPlayersVersion)
+      throws JSONException {
     boolean newLeader = false;
     String leader = responseObject.getString(LEADER_KEY);
-    List<String> receivedPlayers = JsonUtil.getStringListFromJsonArray(responseObject.
-        getJSONArray(PLAYERS_LIST_KEY));
 
     if (!Leader().equals(leader)) {
       instance.setLeader(leader);
       newLeader = true;
     }
 
-    PlayerListDelta playersDelta = instance.setPlayers(receivedPlayers);
+    PlayerListDelta playersDelta = updatePlayers(responseObject, sentPlayersVersion);
     if (playersDelta != PlayerListDelta.NO_CHANGE) {
       for (final String player : playersDelta.getPlayersRemoved()) {
         PlayerLeft(player);
@@ -1204,4 +1690,39 @@ public class GameClient extends AndroidNonvisibleComponent
       NewLeader(Leader());
     }
   }
+
+  /*
+   * Updates the players of the current instance from a response, which
+   * holds either the full players list or, if the request sent the version
+   * of the list the client had, the players added and removed since then.
+   * A response older than the list the client has is ignored.
+   */
+  private PlayerListDelta updatePlayers(JSONObject responseObject, int sentPlayersVersion)
+      throws JSONException {
+    int responseVersion = responseObject.optInt(PLAYERS_VERSION_KEY, -1);
+    GameInstance currentInstance = instance;
+    synchronized (currentInstance) {
+      int currentVersion = currentInstance.getPlayersVersion();
+      if (responseVersion >= 0 && responseVersion <= currentVersion) {
+        return PlayerListDelta.NO_CHANGE;
+      }
+
+      PlayerListDelta playersDelta;
+      if (responseObject.has(PLAYERS_LIST_KEY)) {
+        playersDelta = currentInstance.setPlayers(JsonUtil.getStringListFromJsonArray(
+            responseObject.getJSONArray(PLAYERS_LIST_KEY)));
+      } else if (currentVersion == sentPlayersVersion) {
+        playersDelta = currentInstance.changePlayers(
+            JsonUtil.getStringListFromJsonArray(responseObject.getJSONArray(PLAYERS_ADDED_KEY)),
+            JsonUtil.getStringListFromJsonArray(responseObject.getJSONArray(PLAYERS_REMOVED_KEY)));
+      } else {
+        // The changes are relative to a list the client no longer has, so
+        // ask for the full list with the next request.
+        currentInstance.setPlayersVersion(-1);
+        return PlayerListDelta.NO_CHANGE;
+      }
+      currentInstance.setPlayersVersion(responseVersion);
+      return playersDelta;
+    }
+  }
 }
@@ -11,9 +11,12 @@ import com.google.devtools.simple.runtime.annotations.SimpleObject;
 import com.google.devtools.simple.runtime.annotations.SimpleProperty;
 import com.google.devtools.simple.runtime.annotations.UsesPermissions;
 import com.google.devtools.simple.runtime.components.android.util.MediaUtil;
+import com.google.devtools.simple.runtime.components.util.BoundingBox;
+import com.google.devtools.simple.runtime.components.util.CollisionMask;
 
 import android.graphics.Bitmap;
-import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.util.Log;
@@ -42,7 +45,10 @@ import java.io.IOException;
     "image as the sprite's <code>Heading</code> changes.  Checking for collisions " +
     "with a rotated sprite currently checks the sprite's unrotated position " +
     "so that collision checking will be inaccurate for tall narrow or short " +
-    "wide sprites that are rotated.  Any of the sprite properties " +
+    "wide sprites that are rotated, unless the sprite's " +
+    "<code>PixelCollisions</code> property is <code>True</code>, in which case " +
+    "only the non-transparent pixels of the rotated image are checked.  " +
+    "Any of the sprite properties " +
     "can be changed at any time under program control.</p> ",
     category = ComponentCategory.ANIMATION)
 @SimpleObject
@@ -55,14 +61,25 @@ public class ImageSprite extends Sprite {
   private String picturePath = "";  // Picture property
   private boolean rotates;
 
-  private Matrix mat;
-
   private Bitmap unrotatedBitmap;
-  private Bitmap rotatedBitmap;
 
-  private BitmapDrawable rotatedDrawable;
-  private double cachedRotationHeading;
-  private boolean rotationCached;
+  // Used to draw the picture rotated.  Rotation is done by the canvas as the
+  // picture is drawn, so no rotated copy of the bitmap is ever allocated.
+  private final Paint rotatedPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+  private final Rect drawnBounds = new Rect();
+
+  // Pixels with an alpha at or below this value don't count for collisions.
+  private static final int COLLISION_ALPHA_THRESHOLD = 0;
+
+  private boolean pixelCollisions;
+
+  // Collision mask of the unrotated picture at its natural size, built on
+  // first use, and the mask for the current size and heading derived from it.
+  private CollisionMask pictureMask;
+  private CollisionMask collisionMask;
+  private int collisionMaskWidth;
+  private int collisionMaskHeight;
+  private double collisionMaskRotation;
 
   /**
    * Constructor for ImageSprite.
@@ -72,9 +89,7 @@ public class ImageSprite extends Sprite {
   public ImageSprite(ComponentContainer container) {
     super(container);
     form = container.$form();
-    mat = new Matrix();
     rotates = true;
-    rotationCached = false;
   }
 
   public void onDraw(android.graphics.Canvas canvas) {
@@ -83,49 +98,22 @@ public class ImageSprite extends Sprite {
       int yinit = (int) Math.round(yTop);
       int w = Width();
       int h = Height();
-      // If the sprite doesn't rotate,  use the original drawable
-      // otherwise use the bitmapDrawable
-      if (!rotates) {
+      // If the sprite doesn't rotate, or isn't currently rotated, use the
+      // original drawable.
+      double rotation = drawnRotation();
+      if (rotation % 360 == 0) {
         drawable.setBounds(xinit, yinit, xinit + w, yinit + h);
         drawable.draw(canvas);
       } else {
-        // compute the new rotated image if the heading has changed
-        if (!rotationCached || (cachedRotationHeading != Heading())) {
-          // Set up the matrix for the rotation transformation
-          // Rotate around the center of the sprite image (w/2, h/2)
-          // TODO(user): Add a way for the user to specify the center of rotation.
-          mat.setRotate((float) -Heading(), w / 2, h / 2);
-          // Next create the rotated bitmap
-          // Careful: We use getWidth and getHeight of the unrotated bitmap, rather than the
-          // Width and Height of the sprite.  Doing the latter produces an illegal argument
-          // exception in creating the bitmap, if the user sets the Width or Height of the
-          // sprite to be larger than the image size.
-          rotatedBitmap = Bitmap.createBitmap(
-              unrotatedBitmap,
-              0, 0,
-              unrotatedBitmap.getWidth(), unrotatedBitmap.getHeight(),
-              mat, true);
-          // make a drawable for the rotated image and cache the heading
-          rotatedDrawable = new BitmapDrawable(rotatedBitmap);
-          cachedRotationHeading = Heading();
-        }
-        // Position the drawable:
-        // We want the center of the image to remain fixed under the rotation.
-        // To do this, we have to take account of the fact that, since the original
-        // and the rotated bitmaps are rectangular, the offset of the center point from (0,0)
-        // in the rotated bitmap will in general be different from the offset
-        // in the unrotated bitmap.  Namely, rather than being 1/2 the width and height of the
-        // unrotated bitmap, the offset is 1/2 the width and height of the rotated bitmap.
-        // So when we display on the canvas, we  need to displace the upper left away
-        // from (xinit, yinit) to take account of the difference in the offsets.
-        rotatedDrawable.setBounds(
-            xinit + w / 2 - rotatedBitmap.getWidth() / 2,
-            yinit + h / 2 - rotatedBitmap.getHeight() / 2 ,
-            // add in the width and height of the rotated bitmap
-            // to get the other right and bottom edges
-            xinit + w / 2 + rotatedBitmap.getWidth() / 2,
-            yinit + h / 2 + rotatedBitmap.getHeight() / 2);
-        rotatedDrawable.draw(canvas);
+        // Rotate the canvas around the center of the sprite (w/2, h/2) and
+        // draw the unrotated bitmap into the sprite's bounds, so that the
+        // center of the image stays fixed under the rotation.
+        // TODO(user): Add a way for the user to specify the center of rotation.
+        drawnBounds.set(xinit, yinit, xinit + w, yinit + h);
+        canvas.save();
+        canvas.rotate((float) rotation, xinit + w / 2f, yinit + h / 2f);
+        canvas.drawBitmap(unrotatedBitmap, null, drawnBounds, rotatedPaint);
+        canvas.restore();
       }
     }
   }
@@ -164,6 +152,8 @@ public class ImageSprite extends Sprite {
       drawable = null;
       unrotatedBitmap = null;
     }
+    pictureMask = null;
+    collisionMask = null;
     registerChange();
   }
 
@@ -240,4 +230,105 @@ public class ImageSprite extends Sprite {
     this.rotates = rotates;
     registerChange();
   }
+
+  /**
+   * PixelCollisions property getter method.
+   *
+   * @return  {@code true} indicates that collisions are checked against the
+   * non-transparent pixels of the (possibly rotated) picture, {@code false}
+   * indicates that they are checked against the sprite's unrotated rectangle.
+   */
+  @SimpleProperty(
+      description = "If true, collisions are checked against the non-transparent " +
+      "pixels of the sprite's picture, rotated to match its heading if the sprite " +
+      "rotates.  If false, collisions are checked against the sprite's unrotated " +
+      "rectangle, which is faster.",
+      category = PropertyCategory.BEHAVIOR)
+  public boolean PixelCollisions() {
+    return pixelCollisions;
+  }
+
+  /**
+   * PixelCollisions property setter method.
+   *
+   * @param pixelCollisions  {@code true} indicates that collisions are checked
+   * against the non-transparent pixels of the picture, {@code false}
+   * indicates that they are checked against the sprite's unrotated rectangle.
+   */
+  @DesignerProperty(editorType = DesignerProperty.PROPERTY_TYPE_BOOLEAN,
+      defaultValue = "False")
+  @SimpleProperty
+  public void PixelCollisions(boolean pixelCollisions) {
+    this.pixelCollisions = pixelCollisions;
+    registerChange();
+  }
+
+  // Methods supporting collision detection
+
+  // Returns the clockwise rotation, in degrees, with which the picture is drawn.
+  private double drawnRotation() {
+    return rotates ? -Heading() : 0;
+  }
+
+  /**
+   * Provides the bounding box for this sprite.  For a sprite whose picture is
+   * drawn rotated, this covers the whole rotated picture.
+   *
+   * @param border the number of pixels outside the sprite to include in the
+   *        bounding box
+   * @return the bounding box for this sprite
+   */
+  @Override
+  public BoundingBox getBoundingBox(int border) {
+    double rotation = drawnRotation();
+    if (rotation % 180 == 0) {
+      return super.getBoundingBox(border);
+    }
+    double radians = Math.toRadians(rotation);
+    double cos = Math.abs(Math.cos(radians));
+    double sin = Math.abs(Math.sin(radians));
+    int w = Width();
+    int h = Height();
+    double halfWidth = (w * cos + h * sin) / 2;
+    double halfHeight = (w * sin + h * cos) / 2;
+    double xCenter = X() + w / 2.0;
+    double yCenter = Y() + h / 2.0;
+    return new BoundingBox(
+        Math.floor(xCenter - halfWidth) - border, Math.floor(yCenter - halfHeight) - border,
+        Math.ceil(xCenter + halfWidth) - 1 + border, Math.ceil(yCenter + halfHeight) - 1 + border);
+  }
+
+  @Override
+  protected int getCollisionShape() {
+    return (pixelCollisions && unrotatedBitmap != null)
+        ? COLLISION_SHAPE_MASK
+        : COLLISION_SHAPE_RECTANGLE;
+  }
+
+  @Override
+  protected CollisionMask getCollisionMask() {
+    if (!pixelCollisions || unrotatedBitmap == null) {
+      return super.getCollisionMask();
+    }
+    if (pictureMask == null) {
+      int bitmapWidth = unrotatedBitmap.getWidth();
+      int bitmapHeight = unrotatedBitmap.getHeight();
+      int[] pixels = new int[bitmapWidth * bitmapHeight];
+      unrotatedBitmap.getPixels(pixels, 0, bitmapWidth, 0, 0, bitmapWidth, bitmapHeight);
+      pictureMask = CollisionMask.fromPixels(pixels, bitmapWidth, bitmapHeight,
+          COLLISION_ALPHA_THRESHOLD);
+      collisionMask = null;
+    }
+    int w = Width();
+    int h = Height();
+    double rotation = drawnRotation();
+    if (collisionMask == null || collisionMaskRotation != rotation ||
+        collisionMaskWidth != w || collisionMaskHeight != h) {
+      collisionMask = pictureMask.transform(w, h, rotation);
+      collisionMaskWidth = w;
+      collisionMaskHeight = h;
+      collisionMaskRotation = rotation;
+    }
+    return collisionMask;
+  }
 }
@@ -0,0 +1,12 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.devtools.simple.runtime.components.android;
+
+/**
+ * Listener for distributing the Activity onDestroy() method to interested components.
+ *
+ */
+
+public interface OnDestroyListener {
+  public void onDestroy();
+}
@@ -9,13 +9,13 @@ import com.google.devtools.simple.runtime.annotations.SimpleProperty;
 import com.google.devtools.simple.runtime.components.Component;
 import com.google.devtools.simple.runtime.components.HandlesEventDispatching;
 import com.google.devtools.simple.runtime.components.SpriteComponent;
-import com.google.devtools.simple.runtime.components.android.util.TimerInternal;
 import com.google.devtools.simple.runtime.errors.IllegalArgumentError;
 import com.google.devtools.simple.runtime.events.EventDispatcher;
 
 import android.os.Handler;
 import android.util.Log;
 
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -28,14 +28,18 @@ import java.util.Set;
 @SimpleObject
 public abstract class Sprite extends SpriteComponent implements Deleteable {
   protected final Canvas canvas;
-  private TimerInternal timerInternal;
   private Handler androidUIHandler;
 
+  // Timer properties, along with the interval inherited from
+  // SpriteComponent.  The sprite is moved by its canvas's shared timer,
+  // which must be told when these change.
+  private boolean enabled = true;
+
   // Keeps track of which other sprites are currently colliding with this one.
   // That way, we don't raise CollidedWith() more than once for each collision.
   // Events are only raised when sprites are added to this collision set.  They
   // are removed when they no longer collide.
-  private Set<SpriteComponent> registeredCollisions;
+  private Set<Sprite> registeredCollisions;
 
   // This variable prevents events from being raised before construction of
   // all components has taken place.  This was added to fix bug 2262218.
@@ -58,15 +62,16 @@ public abstract class Sprite extends SpriteComponent implements Deleteable {
     if (!(container instanceof Canvas)) {
       throw new IllegalArgumentError("Sprite constructor called with container " + container);
     }
+    // Adding the sprite also sets it in motion, so its interval must be
+    // set first.
+    interval = 1000;
     this.canvas = (Canvas) container;
     this.canvas.addSprite(this);
 
-    // Set in motion.
-    timerInternal = new TimerInternal(this);
     Heading(0);  // Default initial heading
 
     // Maintain a list of collisions.
-    registeredCollisions = new HashSet<SpriteComponent>();
+    registeredCollisions = new HashSet<Sprite>();
   }
 
   @Override
@@ -148,6 +153,16 @@ public abstract class Sprite extends SpriteComponent implements Deleteable {
     return registeredCollisions.contains(other);
   }
 
+  /**
+   * Adds every sprite currently registered as colliding with this one to the
+   * given collection.
+   *
+   * @param result the collection to which colliding sprites are added
+   */
+  void collectRegisteredCollisions(Collection<? super Sprite> result) {
+    result.addAll(registeredCollisions);
+  }
+
   /**
    * Moves the sprite back in bounds if part of it extends out of bounds,
    * having no effect otherwise. If the sprite is too wide to fit on the
@@ -185,7 +200,7 @@ public abstract class Sprite extends SpriteComponent implements Deleteable {
   @Override
   @SimpleProperty
   public int Interval() {
-    return timerInternal.Interval();
+    return interval;
   }
 
   /**
@@ -198,7 +213,8 @@ public abstract class Sprite extends SpriteComponent implements Deleteable {
       defaultValue = "1000")
   @SimpleProperty
   public void Interval(int interval) {
-    timerInternal.Interval(interval);
+    this.interval = interval;
+    canvas.registerTimerChange(this);
   }
 
   /**
@@ -212,7 +228,7 @@ public abstract class Sprite extends SpriteComponent implements Deleteable {
       defaultValue = "True")
   @SimpleProperty
   public boolean Enabled() {
-    return timerInternal.Enabled();
+    return enabled;
   }
 
   /**
@@ -223,7 +239,8 @@ public abstract class Sprite extends SpriteComponent implements Deleteable {
   @Override
   @SimpleProperty
   public void Enabled(boolean enabled) {
-    timerInternal.Enabled(enabled);
+    this.enabled = enabled;
+    canvas.registerTimerChange(this);
   }
 
   // Methods supporting move-related functionality
@@ -234,7 +251,7 @@ public abstract class Sprite extends SpriteComponent implements Deleteable {
     // before all components had been constructed.
     if (!initialized) {
       // During REPL, components are not initalized, but we still want to repaint the canvas.
-      canvas.getView().invalidate();
+      canvas.registerUninitializedChange(this);
       return;
     }
     super.registerChange();
@@ -269,7 +286,6 @@ public abstract class Sprite extends SpriteComponent implements Deleteable {
 
   @Override
   public void onDelete() {
-    timerInternal.Enabled(false);
     canvas.removeSprite(this);
   }
 
@@ -16,11 +16,20 @@ import com.google.devtools.simple.runtime.components.Component;
 import com.google.devtools.simple.runtime.components.android.collect.Lists;
 import com.google.devtools.simple.runtime.components.android.util.AsyncCallbackPair;
 import com.google.devtools.simple.runtime.components.android.util.AsynchUtil;
+import com.google.devtools.simple.runtime.components.android.util.CircuitBreaker;
+import com.google.devtools.simple.runtime.components.android.util.PendingStoreQueue;
+import com.google.devtools.simple.runtime.components.android.util.ValueCache;
 import com.google.devtools.simple.runtime.components.android.util.WebServiceUtil;
 import com.google.devtools.simple.runtime.components.util.JsonUtil;
 import com.google.devtools.simple.runtime.errors.YailRuntimeError;
 import com.google.devtools.simple.runtime.events.EventDispatcher;
 
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.os.Handler;
 
 import org.apache.http.NameValuePair;
@@ -28,6 +37,11 @@ import org.apache.http.message.BasicNameValuePair;
 import org.json.JSONArray;
 import org.json.JSONException;
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 
 // When the component is installed in App Inventor, the Javadoc
 // comments will become included in the automatically-generated system
@@ -64,8 +78,10 @@ import org.json.JSONException;
     nonVisible = true,
     iconName = "images/tinyWebDB.png")
 @SimpleObject
-@UsesPermissions(permissionNames = "android.permission.INTERNET")
-public class TinyWebDB extends AndroidNonvisibleComponent implements Component {
+@UsesPermissions(permissionNames = "android.permission.INTERNET, " +
+    "android.permission.ACCESS_NETWORK_STATE")
+public class TinyWebDB extends AndroidNonvisibleComponent
+    implements Component, Deleteable, OnDestroyListener {
 
   private static final String LOG_TAG = "TinyWebDB";
   private static final String STOREAVALUE_COMMAND = "storeavalue";
@@ -73,8 +89,48 @@ public class TinyWebDB extends AndroidNonvisibleComponent implements Component {
   private static final String VALUE_PARAMETER = "value";
   private static final String GETVALUE_COMMAND = "getvalue";
 
+  // Storing and getting values can both safely be repeated, so requests
+  // that fail because the service isn't responding are retried.
+  private static final int MAX_RETRIES = 2;
+  private static final WebServiceUtil webService =
+      WebServiceUtil.getInstance(WebServiceUtil.DEFAULT_TIMEOUT_MILLIS, MAX_RETRIES);
+
+  // How long to wait before trying again to send stored values after
+  // sending one failed
+  private static final long FLUSH_RETRY_MILLIS = 30 * 1000;
+  // Identifies the serial lanes on which the pending stores are sent.  All
+  // the components sending to the same service share a lane, so that
+  // their passes never send the same values at once.
+  private static final String FLUSH_LANE = "TinyWebDB.flush";
+
+  private static final int DEFAULT_CACHE_TIME_TO_LIVE_MILLIS = 60 * 1000;
+
   private String serviceURL;
   private Handler androidUIHandler;
+  private final Context context;
+  private boolean cacheValues;
+  private int cacheTimeToLive = DEFAULT_CACHE_TIME_TO_LIVE_MILLIS;
+  // Values retrieved from the Web service, if cacheValues is true
+  private final ValueCache valueCache;
+  // Values stored but not yet sent to the Web service
+  private final PendingStoreQueue pendingStores;
+  // The service URLs for which a pass sending the pending stores has been
+  // scheduled and not yet started
+  private final Set<String> flushesScheduled = new HashSet<String>();
+  // The service URLs whose pending stores are waiting for the device to
+  // connect to a network, or for a failed pass to be retried.  Only used
+  // in the UI thread.
+  private final Set<String> waitingFlushURLs = new HashSet<String>();
+  // Listens for the device connecting to a network while there are
+  // pending stores.  Only used in the UI thread.
+  private BroadcastReceiver connectivityReceiver;
+  private final Runnable flushRetry = new Runnable() {
+    public void run() {
+      retryWaitingFlushes();
+    }
+  };
+  // Whether the Web service was available after the last request
+  private boolean serviceAvailable = true;
 
   /**
    * Creates a new TinyWebDB component.
@@ -92,6 +148,12 @@ public class TinyWebDB extends AndroidNonvisibleComponent implements Component {
     // We set the initial value of serviceURL to be the
     // demo Web service.
     serviceURL = "http://appinvtinywebdb.appspot.com/";
+    context = container.$context();
+    pendingStores = PendingStoreQueue.getInstance(context);
+    valueCache = ValueCache.getInstance(context);
+    form.registerForOnDestroy(this);
+    // Send any values left over from the last time the application ran.
+    scheduleFlush(serviceURL);
   }
 
   // The two procedures below give the getter and setter for the
@@ -125,6 +187,51 @@ public class TinyWebDB extends AndroidNonvisibleComponent implements Component {
   @SimpleProperty
   public void ServiceURL(String url) {
     serviceURL = url;
+    scheduleFlush(url);
+  }
+
+  /**
+   * Returns whether values retrieved by GetValue are cached on the device.
+   */
+  @SimpleProperty(category = PropertyCategory.BEHAVIOR,
+      description = "Whether values retrieved by GetValue are cached on the device. " +
+      "A cached value is returned by GetValue right away; once it is older than " +
+      "CacheTimeToLive, it is also checked with the Web service, and GotValue is " +
+      "signaled again if the service's value is different.")
+  public boolean CacheValues() {
+    return cacheValues;
+  }
+
+  /**
+   * Specifies whether values retrieved by GetValue are cached on the device.
+   */
+  @DesignerProperty(editorType = DesignerProperty.PROPERTY_TYPE_BOOLEAN,
+      defaultValue = "false")
+  @SimpleProperty
+  public void CacheValues(boolean cacheValues) {
+    this.cacheValues = cacheValues;
+  }
+
+  /**
+   * Returns how long, in milliseconds, a cached value is used without
+   * checking it with the Web service.
+   */
+  @SimpleProperty(category = PropertyCategory.BEHAVIOR,
+      description = "How long, in milliseconds, a cached value is returned by GetValue " +
+      "without checking it with the Web service.")
+  public int CacheTimeToLive() {
+    return cacheTimeToLive;
+  }
+
+  /**
+   * Specifies how long, in milliseconds, a cached value is used without
+   * checking it with the Web service.
+   */
+  @DesignerProperty(editorType = DesignerProperty.PROPERTY_TYPE_INTEGER,
+      defaultValue = "60000")
+  @SimpleProperty
+  public void CacheTimeToLive(int cacheTimeToLive) {
+    this.cacheTimeToLive = Math.max(0, cacheTimeToLive);
   }
 
   // StoreValue (and GetValue below) show how use the
@@ -139,7 +246,11 @@ public class TinyWebDB extends AndroidNonvisibleComponent implements Component {
   // for part (b) to run in a separate thread.
 
   /**
-   * Asks the Web service to store the given value under the given tag
+   * Asks the Web service to store the given value under the given tag.
+   * The value is saved on the device first, and is sent when the device
+   * is next connected, so values stored while offline are not lost.  If
+   * the tag is stored again before the value has been sent, only the
+   * newer value is sent.
    *
    * @param tag The tag to use
    * @param valueToStore The value to store. Can be any type of value (e.g.
@@ -148,72 +259,215 @@ public class TinyWebDB extends AndroidNonvisibleComponent implements Component {
   @SimpleFunction
   // The @SimpleFunction annotation arranges for this to be a
   // function (StoreValue)  associated with the component.
-  public void StoreValue(final String tag, final Object valueToStore) {
+  public void StoreValue(String tag, Object valueToStore) {
+    // The value is converted to JSON here, rather than when it is sent,
+    // so that a value that can't be converted is reported right away.
+    String jsonValue;
+    try {
+      jsonValue = JsonUtil.getJsonRepresentation(valueToStore);
+    } catch (JSONException e) {
+      throw new YailRuntimeError("Value failed to convert to JSON.", "JSON Creation Error.");
+    }
+    pendingStores.put(serviceURL, tag, jsonValue, this);
+    // The cached value is out of date.  Until the new value has been sent,
+    // GetValue returns it from the pending stores.
+    valueCache.remove(serviceURL, tag);
+    scheduleFlush(serviceURL);
+  }
+
+  // Arranges for the pending stores for the service to be sent in the
+  // separate thread, unless that has already been arranged.
+  private void scheduleFlush(final String url) {
+    synchronized (this) {
+      if (!flushesScheduled.add(url)) {
+        return;
+      }
+    }
     final Runnable call = new Runnable() {
-      public void run() { postStoreValue(tag, valueToStore); }};
-      AsynchUtil.runAsynchronously(call);
+      public void run() { flushPendingStores(url); }};
+    AsynchUtil.runSerially(Arrays.asList(FLUSH_LANE, url), call);
   }
 
   // Here's part (b): The actual communication, which runs
-  // asynchronously.  It uses postCommand, from the WebServiceUtil
+  // asynchronously.  flushPendingStores sends the stored values one
+  // after another, in the order in which they were stored, using
+  // postStoreValue.  It stops at the first value that can't be sent,
+  // so that a tag's values can't reach the service out of order, and
+  // tries again when the device connects to a network, or after a while
+  // if it is already connected.  It runs on a lane shared by all the
+  // components using the service, since they share the pending stores.
+
+  private void flushPendingStores(String url) {
+    synchronized (this) {
+      flushesScheduled.remove(url);
+    }
+    List<PendingStoreQueue.Entry> entries = pendingStores.getEntries(url);
+    if (entries.isEmpty()) {
+      postFlushFinished(url);
+      return;
+    }
+    if (!isConnected()) {
+      // Wait for a connection.
+      androidUIHandler.post(new Runnable() {
+        public void run() {
+          waitingFlushURLs.add(url);
+          registerConnectivityReceiver();
+        }
+      });
+      return;
+    }
+    for (PendingStoreQueue.Entry entry : entries) {
+      if (!postStoreValue(entry)) {
+        androidUIHandler.post(new Runnable() {
+          public void run() {
+            waitingFlushURLs.add(url);
+            registerConnectivityReceiver();
+            androidUIHandler.removeCallbacks(flushRetry);
+            androidUIHandler.postDelayed(flushRetry, FLUSH_RETRY_MILLIS);
+          }
+        });
+        return;
+      }
+    }
+    // Values stored while this pass ran are sent by the pass their
+    // StoreValue scheduled, which also finishes once nothing is left.
+    if (pendingStores.getEntries(url).isEmpty()) {
+      postFlushFinished(url);
+    }
+  }
+
+  // Stops waiting to send the pending stores for the service, and stops
+  // listening for connections once no service has stores waiting.
+  private void postFlushFinished(final String url) {
+    androidUIHandler.post(new Runnable() {
+      public void run() {
+        waitingFlushURLs.remove(url);
+        if (waitingFlushURLs.isEmpty()) {
+          unregisterConnectivityReceiver();
+        }
+      }
+    });
+  }
+
+  // Sends the pending stores for each service that has stores waiting.
+  // This runs in the UI thread.
+  private void retryWaitingFlushes() {
+    for (String url : waitingFlushURLs) {
+      scheduleFlush(url);
+    }
+  }
+
+  // postStoreValue uses postCommand, from the WebServiceUtil
   // library.  PostCommand here takes four arguments: (1) The URL of
   // the Web service; (2) The name of the command to be posted to the
   // Web service; (3) parameters for the command; (4) an
   // AsyncCallbackPair, which specifies an onSuccess callback and an
-  // onFailure callback.
+  // onFailure callback.  postCommand calls one of them before it
+  // returns.
 
   // The onSuccess callback is called with the response from the Web
-  // server.  Here, for postStoreValue, we ignore the response, and
-  // simply signal a ValueStored event.
-
-  // The onFailure callback is called with an error message.  It calls
-  // WebServiceError, which will signal a WebServiceError event for the
-  // application.
-
-  private void postStoreValue(String tag, Object valueToStore) {
+  // server.  Here, for postStoreValue, we ignore the response, remove
+  // the value from the pending stores, and signal a ValueStored event on
+  // the component that stored the value, if it was stored since the
+  // application started.
+
+  // The onFailure callback is called with an error message.  The value
+  // stays pending, to be sent again later, unless the Web service
+  // refused it with a client error (4xx) status, which sending it again
+  // won't change.  In that case it is dropped and WebServiceError
+  // signals a WebServiceError event for the application.  Failures
+  // without a response, and server errors (5xx), never lose a value.
+
+  // Returns whether the flush may go on to the next value.
+  private boolean postStoreValue(final PendingStoreQueue.Entry entry) {
     // The commented-out Log.w command writes a message to the
     // AppInventor Web server log.  It's useful to include these
     // commands to aid in debugging while the component is being
     // developed, and then commenting them out when the component is
     // deployed.
     // Log.w(LOG_TAG, "postStoreValue: sending tag = " +
-    // tag + " and value = " + valueToStore);
+    // entry.getTag() + " and value = " + entry.getJsonValue());
+    final boolean[] sent = new boolean[1];
+    final String[] failureMessage = new String[1];
     // Here we define the AsyncCallbackPair, myCallback.
     AsyncCallbackPair<String> myCallback = new AsyncCallbackPair<String>() {
       public void onSuccess(String response) {
         // the result here will be the JSON-encoded list ["STORED", tag, value]
         // but the component ignores this
         // Log.w(LOG_TAG, "postStoreValue: got result " + result);
-        androidUIHandler.post(new Runnable() {
-            public void run() {
-              // Signal an event to indicate that the value was
-              // stored.  We post this to run in the Applcation's main
-              // UI thread, rather than in the separate thread where
-              // postStoreValue is running.
-              ValueStored();
-            }
-          });
+        sent[0] = true;
+        pendingStores.remove(entry);
+        final Object owner = entry.getOwner();
+        if (owner instanceof TinyWebDB) {
+          androidUIHandler.post(new Runnable() {
+              public void run() {
+                // Signal an event to indicate that the value was
+                // stored.  We post this to run in the Applcation's main
+                // UI thread, rather than in the separate thread where
+                // postStoreValue is running.
+                ((TinyWebDB) owner).ValueStored();
+              }
+            });
+        }
       }
-      public void onFailure(final String message) {
-        // Pass any failure message from the Web service command back
-        // to the error handler.
-        androidUIHandler.post(new Runnable() {
-          public void run() {
-            WebServiceError(message);
-          }
-        });
+      public void onFailure(String message) {
+        failureMessage[0] = message;
       }
     };
-    try {
-      WebServiceUtil.getInstance().postCommand(serviceURL,
-                  STOREAVALUE_COMMAND,
-                  Lists.<NameValuePair>newArrayList(
-                      new BasicNameValuePair(TAG_PARAMETER, tag),
-                      new BasicNameValuePair(VALUE_PARAMETER,
-                                             JsonUtil.getJsonRepresentation(valueToStore))),
-                  myCallback);
-    } catch (JSONException e) {
-      throw new YailRuntimeError("Value failed to convert to JSON.", "JSON Creation Error.");
+    int errorStatus = webService.postCommand(entry.getServiceURL(),
+                STOREAVALUE_COMMAND,
+                Lists.<NameValuePair>newArrayList(
+                    new BasicNameValuePair(TAG_PARAMETER, entry.getTag()),
+                    new BasicNameValuePair(VALUE_PARAMETER, entry.getJsonValue())),
+                myCallback);
+    checkServiceAvailability(entry.getServiceURL());
+    if (!sent[0] && errorStatus >= 400 && errorStatus < 500) {
+      // Give up on the value, and pass the failure message from the
+      // Web service command back to the error handler of the component
+      // that stored it, or of this one if it was stored by an earlier run.
+      pendingStores.remove(entry);
+      sent[0] = true;
+      final Object owner = entry.getOwner();
+      final TinyWebDB component = (owner instanceof TinyWebDB) ? (TinyWebDB) owner : this;
+      final String message = "The Web service refused the value for the tag " +
+          entry.getTag() + " (status " + errorStatus + "): " + failureMessage[0];
+      androidUIHandler.post(new Runnable() {
+        public void run() {
+          component.WebServiceError(message);
+        }
+      });
+    }
+    return sent[0];
+  }
+
+  private boolean isConnected() {
+    ConnectivityManager connectivityManager =
+        (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+    NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+    return networkInfo != null && networkInfo.isConnected();
+  }
+
+  private void registerConnectivityReceiver() {
+    if (connectivityReceiver == null) {
+      connectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+          if (!intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false)) {
+            retryWaitingFlushes();
+          }
+        }
+      };
+      context.registerReceiver(connectivityReceiver,
+          new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+  }
+
+  private void unregisterConnectivityReceiver() {
+    waitingFlushURLs.clear();
+    androidUIHandler.removeCallbacks(flushRetry);
+    if (connectivityReceiver != null) {
+      context.unregisterReceiver(connectivityReceiver);
+      connectivityReceiver = null;
     }
   }
 
@@ -256,11 +510,52 @@ public class TinyWebDB extends AndroidNonvisibleComponent implements Component {
    */
   @SimpleFunction
   public void GetValue(final String tag) {
-    final Runnable call = new Runnable() { public void run() { postGetValue(tag); }};
-    AsynchUtil.runAsynchronously(call);
+    // Values on the device are returned right away, here in the UI
+    // thread, rather than after the requests already waiting to be sent.
+    // A value stored but not yet sent is newer than the one the Web
+    // service has, so return it instead.
+    final String url = serviceURL;
+    PendingStoreQueue.Entry pending = pendingStores.get(url, tag);
+    if (pending != null) {
+      try {
+        signalGotValue(tag, pending.getJsonValue());
+        return;
+      } catch (JSONException e) {
+        // Can't happen, since the value was converted to JSON by
+        // StoreValue, but ask the Web service anyway.
+      }
+    }
+    // A cached value is returned right away.  If it is still fresh, that's
+    // all; otherwise the Web service is asked as well, and GotValue is
+    // signaled again if the service's value is different.
+    ValueCache.Entry cached = cacheValues ? valueCache.get(url, tag) : null;
+    if (cached != null) {
+      try {
+        signalGotValue(tag, cached.getJsonValue());
+        if (!cached.isStale(cacheTimeToLive)) {
+          return;
+        }
+      } catch (JSONException e) {
+        // Ask the Web service.
+        valueCache.remove(url, tag);
+        cached = null;
+      }
+    }
+    final ValueCache.Entry signaled = cached;
+    final boolean cacheResult = cacheValues;
+    // A value stored while the request is on its way makes its result out
+    // of date, so it is only cached if the count hasn't changed by then.
+    final int removalCount = valueCache.getRemovalCount(url, tag);
+    final Runnable call = new Runnable() {
+      public void run() { postGetValue(url, tag, signaled, cacheResult, removalCount); }};
+    AsynchUtil.runSerially(this, call);
   }
 
-  private void postGetValue(final String tag) {
+  // Asks the Web service for the value of the tag.  cached is the cached
+  // value already signaled by GetValue, if any, and removalCount is the
+  // cache's count of removals for the tag when GetValue was called.
+  private void postGetValue(final String url, final String tag, final ValueCache.Entry cached,
+      final boolean cacheResult, final int removalCount) {
     // Log.w(LOG_TAG, "postGetValue: sending tag = " + tag);
     AsyncCallbackPair<JSONArray> myCallback = new AsyncCallbackPair<JSONArray>() {
       public void onSuccess(JSONArray result) {
@@ -278,18 +573,17 @@ public class TinyWebDB extends AndroidNonvisibleComponent implements Component {
           try {
             // Log.w(LOG_TAG, "postGetValue: got result " + result);
             // The Web service is designed to return the JSON encoded list ["VALUE", tag, value]
-            final String tagFromWebDB = result.getString(1);
+            String tagFromWebDB = result.getString(1);
             String value = result.getString(2);
-            // If there's no entry with tag as a key then return the empty string.
-            final Object valueFromWebDB = (value.length() == 0) ? "" :
-                JsonUtil.getObjectFromJson(value);
-            androidUIHandler.post(new Runnable() {
-              public void run() {
-                // signal an event to indicate that a good value was returned.  Note
-                // that the event handler takes the value as an argument.
-                GotValue(tagFromWebDB, valueFromWebDB);
-              }
-            });
+            if (cached != null && value.equals(cached.getJsonValue())) {
+              // GotValue has already been signaled with this value.
+              valueCache.put(url, tag, value, removalCount);
+              return;
+            }
+            signalGotValue(tagFromWebDB, value);
+            if (cacheResult) {
+              valueCache.put(url, tag, value, removalCount);
+            }
           } catch (JSONException e) {
             // Signal a Web error event to indicate the the server
             // returned a garbled value.  From the user's perspective, there may be no practical
@@ -317,14 +611,50 @@ public class TinyWebDB extends AndroidNonvisibleComponent implements Component {
         return;
       }
     };
-    WebServiceUtil.getInstance().postCommandReturningArray(
-        serviceURL,
+    webService.postCommandReturningArray(
+        url,
         GETVALUE_COMMAND,
         Lists.<NameValuePair>newArrayList(new BasicNameValuePair(TAG_PARAMETER, tag)),
         myCallback);
+    checkServiceAvailability(url);
     return;
   }
 
+  // Decodes a value returned by the Web service, and signals GotValue with
+  // it in the UI thread.
+  private void signalGotValue(final String tagFromWebDB, String value) throws JSONException {
+    // If there's no entry with tag as a key then return the empty string.
+    final Object valueFromWebDB = (value.length() == 0) ? "" :
+        JsonUtil.getObjectFromJson(value);
+    androidUIHandler.post(new Runnable() {
+      public void run() {
+        // signal an event to indicate that a good value was returned.  Note
+        // that the event handler takes the value as an argument.
+        GotValue(tagFromWebDB, valueFromWebDB);
+      }
+    });
+  }
+
+  // Signals a ServiceAvailabilityChanged event if the request just made to
+  // the given service found that it has stopped or started responding.
+  // Requests to a service other than the current one, such as those
+  // sending values stored before ServiceURL changed, are not reported.
+  // This runs in the separate thread, after the request.
+  private synchronized void checkServiceAvailability(String url) {
+    if (!url.equals(serviceURL)) {
+      return;
+    }
+    final boolean available = CircuitBreaker.isServiceAvailable(url);
+    if (available != serviceAvailable) {
+      serviceAvailable = available;
+      androidUIHandler.post(new Runnable() {
+        public void run() {
+          ServiceAvailabilityChanged(available);
+        }
+      });
+    }
+  }
+
   /**
    * Indicates that a GetValue server request has succeeded.
    *
@@ -348,4 +678,31 @@ public class TinyWebDB extends AndroidNonvisibleComponent implements Component {
     // Log.w(LOG_TAG, "calling error event handler: " + message);
     EventDispatcher.dispatchEvent(this, "WebServiceError", message);
   }
+
+  /**
+   * Indicates that the Web service has stopped responding, or has started
+   * responding again.  While it is not responding, requests fail with a
+   * WebServiceError without being sent, and are only sent again from time
+   * to time to find out whether it has recovered.
+   *
+   * @param available whether the Web service is responding
+   */
+  @SimpleEvent
+  public void ServiceAvailabilityChanged(boolean available) {
+    // Invoke the application's "ServiceAvailabilityChanged" event handler
+    EventDispatcher.dispatchEvent(this, "ServiceAvailabilityChanged", available);
+  }
+
+  // Deleteable implementation
+
+  public void onDelete() {
+    unregisterConnectivityReceiver();
+  }
+
+  // OnDestroyListener implementation
+
+  public void onDestroy() {
+    // The pending stores are sent the next time the application runs.
+    unregisterConnectivityReceiver();
+  }
 }
@@ -17,6 +17,7 @@ import com.google.devtools.simple.runtime.components.Component;
 import com.google.devtools.simple.runtime.components.android.collect.Lists;
 import com.google.devtools.simple.runtime.components.android.util.AsyncCallbackPair;
 import com.google.devtools.simple.runtime.components.android.util.AsynchUtil;
+import com.google.devtools.simple.runtime.components.android.util.CircuitBreaker;
 import com.google.devtools.simple.runtime.components.android.util.WebServiceUtil;
 import com.google.devtools.simple.runtime.events.EventDispatcher;
 
@@ -92,7 +93,16 @@ public class Voting extends AndroidNonvisibleComponent implements Component {
   private static final String USER_ID_PARAMETER = "userid";
 
   // private HttpClient httpClient;
+  // Requesting a ballot can safely be repeated, so requests that fail
+  // because the service isn't responding are retried.  Sending a ballot is
+  // not retried.
+  private static final int MAX_RETRIES = 2;
+  private static final WebServiceUtil retryingWebService =
+      WebServiceUtil.getInstance(WebServiceUtil.DEFAULT_TIMEOUT_MILLIS, MAX_RETRIES);
+
   private Handler androidUIHandler;
+  // Whether the Web service was available after the last request
+  private boolean serviceAvailable = true;
   private ComponentContainer theContainer;
   private Activity activityContext;
 
@@ -299,7 +309,7 @@ public class Voting extends AndroidNonvisibleComponent implements Component {
   public void RequestBallot() {
     final Runnable call = new Runnable() {
       public void run() { postRequestBallot(); }};
-      AsynchUtil.runAsynchronously(call);
+      AsynchUtil.runSerially(this, call);
   }
 
   private void postRequestBallot(){
@@ -368,11 +378,12 @@ public class Voting extends AndroidNonvisibleComponent implements Component {
       }
     };
 
-    WebServiceUtil.getInstance().postCommandReturningObject(
+    retryingWebService.postCommandReturningObject(
         serviceURL,
         REQUESTBALLOT_COMMAND,
         null,
         myCallback);
+    checkServiceAvailability();
     return;
   }
 
@@ -418,7 +429,7 @@ public class Voting extends AndroidNonvisibleComponent implements Component {
   public void SendBallot() {
     final Runnable call = new Runnable() {
       public void run() { postSendBallot(userChoice, userId); }};
-      AsynchUtil.runAsynchronously(call);
+      AsynchUtil.runSerially(this, call);
   }
 
   private void postSendBallot(String userChoice, String userEmailAddress){
@@ -450,7 +461,21 @@ public class Voting extends AndroidNonvisibleComponent implements Component {
             new BasicNameValuePair(USER_CHOICE_PARAMETER, userChoice),
             new BasicNameValuePair(USER_ID_PARAMETER, userEmailAddress)),
             myCallback);
+    checkServiceAvailability();
+  }
 
+  // Signals a ServiceAvailabilityChanged event if the request just made
+  // found that the Web service has stopped or started responding.
+  private synchronized void checkServiceAvailability() {
+    final boolean available = CircuitBreaker.isServiceAvailable(serviceURL);
+    if (available != serviceAvailable) {
+      serviceAvailable = available;
+      androidUIHandler.post(new Runnable() {
+        public void run() {
+          ServiceAvailabilityChanged(available);
+        }
+      });
+    }
   }
 
   /**
@@ -473,4 +498,20 @@ public class Voting extends AndroidNonvisibleComponent implements Component {
     // Invoke the application's "WebServiceError" event handler
     EventDispatcher.dispatchEvent(this, "WebServiceError", message);
   }
+
+  /**
+   * Event indicating that the Web service has stopped responding, or has
+   * started responding again.
+   *
+   * @param available whether the Web service is responding
+   */
+  @SimpleEvent(
+      description =
+      "Event indicating that the Web service has stopped responding, or has " +
+      "started responding again.  While it is not responding, requests fail " +
+      "with a <code>WebServiceError</code> without being sent, and are only " +
+      "sent again from time to time to find out whether it has recovered.")
+  public void ServiceAvailabilityChanged(boolean available) {
+    EventDispatcher.dispatchEvent(this, "ServiceAvailabilityChanged", available);
+  }
 }
@@ -13,31 +13,49 @@ import com.google.devtools.simple.runtime.annotations.SimpleObject;
 import com.google.devtools.simple.runtime.annotations.SimpleProperty;
 import com.google.devtools.simple.runtime.annotations.UsesPermissions;
 import com.google.devtools.simple.runtime.components.Component;
-import com.google.devtools.simple.runtime.components.android.util.AsynchUtil;
 import com.google.devtools.simple.runtime.components.android.util.FileUtil;
+import com.google.devtools.simple.runtime.components.android.util.HttpResponseCache;
+import com.google.devtools.simple.runtime.components.android.util.HttpTransport;
 import com.google.devtools.simple.runtime.components.android.util.MediaUtil;
+import com.google.devtools.simple.runtime.components.android.util.RequestQueue;
+import com.google.devtools.simple.runtime.components.android.util.StreamingUploadEntity;
+import com.google.devtools.simple.runtime.components.android.util.TransferProgressListener;
 import com.google.devtools.simple.runtime.components.util.ErrorMessages;
+import com.google.devtools.simple.runtime.components.util.JsonStreamParser;
 import com.google.devtools.simple.runtime.components.util.JsonUtil;
 import com.google.devtools.simple.runtime.events.EventDispatcher;
 
 import android.app.Activity;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.util.EntityUtils;
 import org.json.JSONException;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
 import java.net.URLEncoder;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 
@@ -56,6 +74,40 @@ public class Web extends AndroidNonvisibleComponent implements Component {
 
   private static final String LOG_TAG = "Web";
 
+  // The content type sent with post requests.
+  private static final String POST_CONTENT_TYPE = "application/x-www-form-urlencoded";
+
+  // The shortest time between progress events for one request.
+  private static final long PROGRESS_INTERVAL_MILLIS = 250;
+
+  // The size of the blocks in which responses are read.
+  private static final int DOWNLOAD_BUFFER_SIZE = 16 * 1024;
+
+  // The longest response kept in memory for the GotText event.  A longer response is saved in
+  // a file, and the GotFile event is triggered instead.
+  private static final int MAX_TEXT_RESPONSE_BYTES = 1024 * 1024;
+
+  // The longest JSON text decoded for the GotJson event, in characters.  When a JSON pointer is
+  // given, only the text up to the end of the selected value counts.
+  private static final int MAX_JSON_RESPONSE_CHARS = 8 * 1024 * 1024;
+
+  // The number of times the content of a response is requested again after its connection fails.
+  private static final int MAX_RESUMES = 3;
+
+  private static final String ACCEPT_ENCODING_HEADER = "Accept-Encoding";
+  private static final String CONTENT_RANGE_HEADER = "Content-Range";
+  private static final String ETAG_HEADER = "ETag";
+  private static final String IF_RANGE_HEADER = "If-Range";
+  private static final String LAST_MODIFIED_HEADER = "Last-Modified";
+  private static final String RANGE_HEADER = "Range";
+
+  // The values of the CacheMode property
+  private static final String CACHE_MODE_NETWORK_ONLY = "NetworkOnly";
+  private static final String CACHE_MODE_CACHE_FIRST = "CacheFirst";
+  private static final String CACHE_MODE_REVALIDATE = "Revalidate";
+
+  private static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 4;
+
   private static final Map<String, Character> htmlCharacterEntities;
   static {
     htmlCharacterEntities = new HashMap<String, Character>();
@@ -92,6 +144,22 @@ public class Web extends AndroidNonvisibleComponent implements Component {
   private String urlString = "";
   private boolean saveResponse;
   private String responseFileName = "";
+  private int timeout;
+  private String cacheMode = CACHE_MODE_NETWORK_ONLY;
+  private int maxConcurrentRequests = DEFAULT_MAX_CONCURRENT_REQUESTS;
+  private int requestPriority;
+
+  // The requests made by this component that are waiting or running
+  private final RequestQueue requestQueue = new RequestQueue(DEFAULT_MAX_CONCURRENT_REQUESTS);
+  // The requests that have been sent and not yet finished, by request id
+  private final Map<Integer, HttpUriRequest> activeRequests =
+      new HashMap<Integer, HttpUriRequest>();
+  private int lastRequestId;
+  // The id of the request whose event is being dispatched
+  private int responseRequestId;
+  // Incremented by CancelAll.  A request made before the last CancelAll
+  // triggers no more events.
+  private volatile int cancelGeneration;
 
   /**
    * Creates a new Web component.
@@ -173,6 +241,189 @@ public class Web extends AndroidNonvisibleComponent implements Component {
     this.responseFileName = responseFileName;
   }
 
+  /**
+   * Returns the number of milliseconds that a request waits to connect,
+   * and then for each part of the response, before giving up.
+   */
+  @SimpleProperty(category = PropertyCategory.BEHAVIOR,
+      description = "The number of milliseconds that a web request waits to connect, and " +
+      "then for each part of the response, before giving up. If 0, there is no limit.")
+  public int Timeout() {
+    return timeout;
+  }
+
+  /**
+   * Specifies the number of milliseconds that a request waits to connect,
+   * and then for each part of the response, before giving up.  If 0, there
+   * is no limit.
+   */
+  @DesignerProperty(editorType = DesignerProperty.PROPERTY_TYPE_INTEGER,
+      defaultValue = "0")
+  @SimpleProperty
+  public void Timeout(int timeout) {
+    this.timeout = Math.max(0, timeout);
+  }
+
+  /**
+   * Returns how the responses to Get requests are cached.
+   */
+  @SimpleProperty(category = PropertyCategory.BEHAVIOR,
+      description = "How the responses to Get requests are cached on the device. " +
+      "NetworkOnly: responses are not cached. " +
+      "CacheFirst: a cached response is used without asking the server for as long as " +
+      "the server said it would stay fresh, and is then checked with the server. " +
+      "Revalidate: a cached response is checked with the server every time, and is only " +
+      "downloaded again if it has changed.")
+  public String CacheMode() {
+    return cacheMode;
+  }
+
+  /**
+   * Specifies how the responses to Get requests are cached: NetworkOnly,
+   * CacheFirst or Revalidate.
+   */
+  @DesignerProperty(editorType = DesignerProperty.PROPERTY_TYPE_STRING,
+      defaultValue = CACHE_MODE_NETWORK_ONLY)
+  @SimpleProperty
+  public void CacheMode(String cacheMode) {
+    if (cacheMode.equalsIgnoreCase(CACHE_MODE_NETWORK_ONLY)) {
+      this.cacheMode = CACHE_MODE_NETWORK_ONLY;
+    } else if (cacheMode.equalsIgnoreCase(CACHE_MODE_CACHE_FIRST)) {
+      this.cacheMode = CACHE_MODE_CACHE_FIRST;
+    } else if (cacheMode.equalsIgnoreCase(CACHE_MODE_REVALIDATE)) {
+      this.cacheMode = CACHE_MODE_REVALIDATE;
+    } else {
+      form.dispatchErrorOccurredEvent(this, "CacheMode",
+          ErrorMessages.ERROR_WEB_INVALID_CACHE_MODE, cacheMode);
+    }
+  }
+
+  /**
+   * Returns the largest number of this component's requests that are sent
+   * at once.
+   */
+  @SimpleProperty(category = PropertyCategory.BEHAVIOR,
+      description = "The largest number of this component's requests that are sent at once. " +
+      "Further requests wait until one of those finishes.")
+  public int MaxConcurrentRequests() {
+    return maxConcurrentRequests;
+  }
+
+  /**
+   * Specifies the largest number of this component's requests that are sent
+   * at once.  Further requests wait until one of those finishes.
+   */
+  @DesignerProperty(editorType = DesignerProperty.PROPERTY_TYPE_INTEGER,
+      defaultValue = "4")
+  @SimpleProperty
+  public void MaxConcurrentRequests(int maxConcurrentRequests) {
+    this.maxConcurrentRequests = Math.max(1, maxConcurrentRequests);
+    requestQueue.setMaxConcurrentRequests(this.maxConcurrentRequests);
+  }
+
+  /**
+   * Returns the priority given to requests.
+   */
+  @SimpleProperty(category = PropertyCategory.BEHAVIOR,
+      description = "The priority given to the requests made after it is set. When requests " +
+      "are waiting to be sent, those with higher priorities are sent first.")
+  public int RequestPriority() {
+    return requestPriority;
+  }
+
+  /**
+   * Specifies the priority given to the requests made after it is set.
+   * When requests are waiting to be sent, those with higher priorities are
+   * sent first.
+   */
+  @DesignerProperty(editorType = DesignerProperty.PROPERTY_TYPE_INTEGER,
+      defaultValue = "0")
+  @SimpleProperty
+  public void RequestPriority(int requestPriority) {
+    this.requestPriority = requestPriority;
+  }
+
+  /**
+   * Returns the id of the request most recently made by Get, GetJson,
+   * PostText or PostFile.
+   */
+  @SimpleProperty(category = PropertyCategory.BEHAVIOR,
+      description = "The id of the request most recently made by Get, GetJson, PostText or " +
+      "PostFile. While an event for the request is being handled, ResponseRequestId has the " +
+      "same id.")
+  public int LastRequestId() {
+    return lastRequestId;
+  }
+
+  /**
+   * Returns the id of the request whose GotText, GotFile, GotJson,
+   * DownloadProgress, UploadProgress or error event is being handled.
+   */
+  @SimpleProperty(category = PropertyCategory.BEHAVIOR,
+      description = "The id of the request whose GotText, GotFile, GotJson, DownloadProgress, " +
+      "UploadProgress or error event is being handled, as given by LastRequestId when the " +
+      "request was made.")
+  public int ResponseRequestId() {
+    return responseRequestId;
+  }
+
+  /**
+   * Cancels all the requests made by this component that haven't finished.
+   * Requests waiting to be sent are dropped, and those being sent are
+   * aborted.  No more events are triggered for any of them.
+   */
+  @SimpleFunction
+  public void CancelAll() {
+    cancelGeneration++;
+    int dropped = requestQueue.cancelAll();
+    List<HttpUriRequest> aborted;
+    synchronized (activeRequests) {
+      aborted = new ArrayList<HttpUriRequest>(activeRequests.values());
+      activeRequests.clear();
+    }
+    for (HttpUriRequest request : aborted) {
+      request.abort();
+    }
+    Log.i(LOG_TAG, "CancelAll - dropped " + dropped + " and aborted " + aborted.size() +
+        " requests");
+  }
+
+  // Returns the id for a new request.  Called in the UI thread.
+  private int nextRequestId() {
+    return ++lastRequestId;
+  }
+
+  private boolean isCancelled(int generation) {
+    return generation != cancelGeneration;
+  }
+
+  /*
+   * Runs an event for a request in the UI thread, with ResponseRequestId set to the request's
+   * id, unless the request has been cancelled.
+   */
+  private void dispatchRequestEvent(final int requestId, final int generation,
+      final Runnable event) {
+    activity.runOnUiThread(new Runnable() {
+      @Override
+      public void run() {
+        if (!isCancelled(generation)) {
+          responseRequestId = requestId;
+          event.run();
+        }
+      }
+    });
+  }
+
+  private void dispatchRequestError(int requestId, int generation, final String functionName,
+      final int errorNumber, final Object... messageArgs) {
+    dispatchRequestEvent(requestId, generation, new Runnable() {
+      @Override
+      public void run() {
+        form.dispatchErrorOccurredEvent(Web.this, functionName, errorNumber, messageArgs);
+      }
+    });
+  }
+
   /**
    * Performs an HTTP GET request using the Url property and retrieves the
    * response.<br>
@@ -180,7 +431,10 @@ public class Web extends AndroidNonvisibleComponent implements Component {
    * and the GotFile event will be triggered. The ResponseFileName property
    * can be used to specify the name of the file.<br>
    * If the SaveResponse property is false, the GotText event will be
-   * triggered.
+   * triggered, unless the response is longer than 1 MB, in which case it
+   * will be saved in a file and the GotFile event will be triggered.<br>
+   * The DownloadProgress event is triggered as the response is received.<br>
+   * The CacheMode property determines whether a cached response is used.
    */
   @SimpleFunction
   public void Get() {
@@ -188,21 +442,74 @@ public class Web extends AndroidNonvisibleComponent implements Component {
     final String urlString = this.urlString;
     final boolean saveResponse = this.saveResponse;
     final String responseFileName = this.responseFileName;
+    final int timeout = this.timeout;
+    final String cacheMode = this.cacheMode;
+    final int requestId = nextRequestId();
+    final int generation = cancelGeneration;
 
-    AsynchUtil.runAsynchronously(new Runnable() {
+    requestQueue.add(new Runnable() {
       @Override
       public void run() {
+        if (isCancelled(generation)) {
+          return;
+        }
         try {
-          performRequest(urlString, null, null, saveResponse, responseFileName);
+          performRequest(urlString, null, null, saveResponse, responseFileName, timeout,
+              cacheMode, null, requestId, generation);
         } catch (FileUtil.FileException e) {
-          form.dispatchErrorOccurredEvent(Web.this, "Get",
+          dispatchRequestError(requestId, generation, "Get",
               e.getErrorMessageNumber());
         } catch (Exception e) {
-          form.dispatchErrorOccurredEvent(Web.this, "Get",
+          dispatchRequestError(requestId, generation, "Get",
               ErrorMessages.ERROR_WEB_UNABLE_TO_GET, urlString);
         }
       }
-    });
+    }, requestPriority);
+  }
+
+  /**
+   * Performs an HTTP GET request using the Url property and decodes the
+   * response as JSON, as it is received, into lists like those returned by
+   * JsonDecodeToList.  The GotJson event is then triggered with the value
+   * selected by the given JSON pointer.<br>
+   * The DownloadProgress event is triggered as the response is received.<br>
+   * The CacheMode property determines whether a cached response is used.
+   *
+   * @param jsonPointer a JSON pointer, such as "/items/0/name", selecting
+   *        the part of the response to decode, or the empty string for the
+   *        whole response
+   */
+  @SimpleFunction(description = "Performs an HTTP GET request using the Url property and " +
+      "decodes the JSON response as it is received. The GotJson event is then triggered with " +
+      "the part of the response selected by the JSON pointer, such as /items/0/name, or with " +
+      "the whole response if the pointer is empty. Only the selected part is decoded into " +
+      "lists, so a small part of a large response can be read cheaply.")
+  public void GetJson(final String jsonPointer) {
+    // Capture property values in local variables before running asynchronously.
+    final String urlString = this.urlString;
+    final int timeout = this.timeout;
+    final String cacheMode = this.cacheMode;
+    final int requestId = nextRequestId();
+    final int generation = cancelGeneration;
+
+    requestQueue.add(new Runnable() {
+      @Override
+      public void run() {
+        if (isCancelled(generation)) {
+          return;
+        }
+        try {
+          performRequest(urlString, null, null, false, "", timeout, cacheMode, jsonPointer,
+              requestId, generation);
+        } catch (JSONException e) {
+          dispatchRequestError(requestId, generation, "GetJson",
+              ErrorMessages.ERROR_WEB_JSON_RESPONSE_DECODE_FAILED, urlString, e.getMessage());
+        } catch (Exception e) {
+          dispatchRequestError(requestId, generation, "GetJson",
+              ErrorMessages.ERROR_WEB_UNABLE_TO_GET, urlString);
+        }
+      }
+    }, requestPriority);
   }
 
   /**
@@ -212,7 +519,9 @@ public class Web extends AndroidNonvisibleComponent implements Component {
    * and the GotFile event will be triggered. The responseFileName property
    * can be used to specify the name of the file.<br>
    * If the SaveResponse property is false, the GotText event will be
-   * triggered.
+   * triggered, unless the response is longer than 1 MB, in which case it
+   * will be saved in a file and the GotFile event will be triggered.<br>
+   * The DownloadProgress event is triggered as the response is received.
    *
    * @param text the text data for the POST request
    * @param encoding the character encoding to use when sending the text. If
@@ -224,10 +533,16 @@ public class Web extends AndroidNonvisibleComponent implements Component {
     final String urlString = this.urlString;
     final boolean saveResponse = this.saveResponse;
     final String responseFileName = this.responseFileName;
+    final int timeout = this.timeout;
+    final int requestId = nextRequestId();
+    final int generation = cancelGeneration;
 
-    AsynchUtil.runAsynchronously(new Runnable() {
+    requestQueue.add(new Runnable() {
       @Override
       public void run() {
+        if (isCancelled(generation)) {
+          return;
+        }
         // Convert text to bytes using the encoding.
         byte[] postData;
         try {
@@ -237,22 +552,23 @@ public class Web extends AndroidNonvisibleComponent implements Component {
             postData = text.getBytes(encoding);
           }
         } catch (UnsupportedEncodingException e) {
-          form.dispatchErrorOccurredEvent(Web.this, "PostText",
+          dispatchRequestError(requestId, generation, "PostText",
               ErrorMessages.ERROR_WEB_UNSUPPORTED_ENCODING, encoding);
           return;
         }
 
         try {
-          performRequest(urlString, postData, null, saveResponse, responseFileName);
+          performRequest(urlString, postData, null, saveResponse, responseFileName,
+              timeout, CACHE_MODE_NETWORK_ONLY, null, requestId, generation);
         } catch (FileUtil.FileException e) {
-          form.dispatchErrorOccurredEvent(Web.this, "PostText",
+          dispatchRequestError(requestId, generation, "PostText",
               e.getErrorMessageNumber());
         } catch (Exception e) {
-          form.dispatchErrorOccurredEvent(Web.this, "PostText",
+          dispatchRequestError(requestId, generation, "PostText",
               ErrorMessages.ERROR_WEB_UNABLE_TO_POST, text, urlString);
         }
       }
-    });
+    }, requestPriority);
   }
 
   /**
@@ -262,7 +578,11 @@ public class Web extends AndroidNonvisibleComponent implements Component {
    * and the GotFile event will be triggered. The ResponseFileName property
    * can be used to specify the name of the file.<br>
    * If the SaveResponse property is false, the GotText event will be
-   * triggered.
+   * triggered, unless the response is longer than 1 MB, in which case it
+   * will be saved in a file and the GotFile event will be triggered.<br>
+   * The DownloadProgress event is triggered as the response is received.<br>
+   * The file is streamed to the server as it is read, and the UploadProgress
+   * event is triggered as it is sent.
    *
    * @param path the path of the file for the POST request
    */
@@ -272,27 +592,35 @@ public class Web extends AndroidNonvisibleComponent implements Component {
     final String urlString = this.urlString;
     final boolean saveResponse = this.saveResponse;
     final String responseFileName = this.responseFileName;
+    final int timeout = this.timeout;
+    final int requestId = nextRequestId();
+    final int generation = cancelGeneration;
 
-    AsynchUtil.runAsynchronously(new Runnable() {
+    requestQueue.add(new Runnable() {
       @Override
       public void run() {
+        if (isCancelled(generation)) {
+          return;
+        }
         try {
-          performRequest(urlString, null, path, saveResponse, responseFileName);
+          performRequest(urlString, null, path, saveResponse, responseFileName, timeout,
+              CACHE_MODE_NETWORK_ONLY, null, requestId, generation);
         } catch (FileUtil.FileException e) {
-          form.dispatchErrorOccurredEvent(Web.this, "PostFile",
+          dispatchRequestError(requestId, generation, "PostFile",
               e.getErrorMessageNumber());
         } catch (Exception e) {
-          form.dispatchErrorOccurredEvent(Web.this, "PostFile",
+          dispatchRequestError(requestId, generation, "PostFile",
               ErrorMessages.ERROR_WEB_UNABLE_TO_POST_FILE, path, urlString);
         }
       }
-    });
+    }, requestPriority);
   }
 
   /**
    * Event indicating that a request has finished.<br>
    * If responseCode is 200, then the request succeeded and responseContent
-   * contains the response.
+   * contains the response.<br>
+   * While the event is handled, ResponseRequestId is the id of the request.
    *
    * @param url the URL used for the request
    * @param responseCode the response code from the server
@@ -309,7 +637,8 @@ public class Web extends AndroidNonvisibleComponent implements Component {
   /**
    * Event indicating that a request has finished.<br>
    * If responseCode is 200, then the request succeeded and the response has
-   * been saved in a file.
+   * been saved in a file.<br>
+   * While the event is handled, ResponseRequestId is the id of the request.
    *
    * @param url the URL used for the request
    * @param responseCode the response code from the server
@@ -322,6 +651,50 @@ public class Web extends AndroidNonvisibleComponent implements Component {
     EventDispatcher.dispatchEvent(this, "GotFile", url, responseCode, responseType, fileName);
   }
 
+  /**
+   * Event indicating that a request made by GetJson has finished.<br>
+   * If responseCode is 200, then the request succeeded and json contains
+   * the selected part of the response, decoded as by JsonDecodeToList.
+   * Otherwise json is empty.<br>
+   * While the event is handled, ResponseRequestId is the id of the request.
+   *
+   * @param url the URL used for the request
+   * @param responseCode the response code from the server
+   * @param responseType the mime type of the response
+   * @param json the decoded value
+   */
+  @SimpleEvent
+  public void GotJson(String url, int responseCode, String responseType, Object json) {
+    // invoke the application's "GotJson" event handler.
+    EventDispatcher.dispatchEvent(this, "GotJson", url, responseCode, responseType, json);
+  }
+
+
+  /**
+   * Event indicating the progress of receiving the response to a request.
+   *
+   * @param url the URL used for the request
+   * @param bytesReceived the number of bytes of the response received so far
+   * @param totalBytes the length of the response, or -1 if it isn't known
+   */
+  @SimpleEvent
+  public void DownloadProgress(String url, long bytesReceived, long totalBytes) {
+    // invoke the application's "DownloadProgress" event handler.
+    EventDispatcher.dispatchEvent(this, "DownloadProgress", url, bytesReceived, totalBytes);
+  }
+
+  /**
+   * Event indicating the progress of sending the file given to PostFile.
+   *
+   * @param url the URL used for the request
+   * @param bytesSent the number of bytes of the file sent so far
+   * @param totalBytes the size of the file, or -1 if it isn't known
+   */
+  @SimpleEvent
+  public void UploadProgress(String url, long bytesSent, long totalBytes) {
+    // invoke the application's "UploadProgress" event handler.
+    EventDispatcher.dispatchEvent(this, "UploadProgress", url, bytesSent, totalBytes);
+  }
 
   /**
    * Encodes the given text value so that it can be used in a URL.
@@ -381,6 +754,53 @@ public class Web extends AndroidNonvisibleComponent implements Component {
     throw new IllegalArgumentException("jsonText is not a legal JSON text value");
   }
 
+  /**
+   * Decodes the part of the given JSON text selected by a JSON pointer into
+   * a list or a single value.  A JSON array becomes a list of its elements,
+   * and a JSON object becomes a list of (name value) pairs, sorted by name.
+   *
+   * @param jsonText the JSON text to decode
+   * @param jsonPointer a JSON pointer, such as "/items/0/name", or the
+   *        empty string to decode the whole text
+   * @return the decoded value
+   */
+  @SimpleFunction(description = "Decodes the part of the JSON text selected by the JSON " +
+      "pointer, such as /items/0/name, or the whole text if the pointer is empty. An array " +
+      "becomes a list of its elements, and an object becomes a list of (name value) pairs, " +
+      "sorted by name. The parts of the text outside the selected part are skipped without " +
+      "being decoded.")
+  public Object JsonDecodeToList(String jsonText, String jsonPointer) {
+    try {
+      return decodeJsonToList(jsonText, jsonPointer);
+    } catch (IllegalArgumentException e) {
+      form.dispatchErrorOccurredEvent(this, "JsonDecodeToList",
+          ErrorMessages.ERROR_WEB_JSON_TEXT_DECODE_FAILED, jsonText);
+      return "";
+    }
+  }
+
+  /**
+   * Decodes the part of the given JSON text selected by a JSON pointer.
+   *
+   * @param jsonText the JSON text to decode
+   * @param jsonPointer a JSON pointer, or the empty string
+   * @return the decoded value
+   * @throws IllegalArgumentException if the JSON text can't be decoded, or
+   *         the pointer selects nothing
+   */
+  // VisibleForTesting
+  Object decodeJsonToList(String jsonText, String jsonPointer) throws IllegalArgumentException {
+    try {
+      return new JsonStreamParser(new StringReader(jsonText), Integer.MAX_VALUE)
+          .nextYailValue(jsonPointer);
+    } catch (JSONException e) {
+      throw new IllegalArgumentException(e.getMessage());
+    } catch (IOException e) {
+      // A StringReader doesn't throw IOException.
+      throw new IllegalArgumentException(e.getMessage());
+    }
+  }
+
   /**
    * Decodes the given HTML text value.
    *
@@ -494,177 +914,517 @@ public class Web extends AndroidNonvisibleComponent implements Component {
    * If postData and postFile are both null, then a get request is performed.
    * If saveResponse is true, the response will be saved in a file and the GotFile event will be
    * triggered. responseFileName specifies the name of the  file.
-   * If saveResponse is false, the GotText event will be triggered.
+   * If saveResponse is false, the GotText event will be triggered, unless the response is longer
+   * than MAX_TEXT_RESPONSE_BYTES, in which case it is saved in a file and the GotFile event is
+   * triggered.
+   * If jsonPointer is non-null, saveResponse is ignored, and the response is decoded as JSON as
+   * it is read, and the GotJson event is triggered with the value selected by jsonPointer.
+   * The response is read as it arrives, triggering DownloadProgress events, and if its
+   * connection fails partway through, the rest of it may be requested again.
+   * The request is sent through the shared HttpTransport, so its connection may be kept alive
+   * for later requests, and its response may be compressed.
    *
-   * This method can throw an IOException. The caller is responsible for catching it and
-   * triggering the appropriate error event.
+   * This method can throw an IOException or a JSONException. The caller is responsible for
+   * catching it and triggering the appropriate error event.
    *
    * @param urlString the url for the request
    * @param postData the data for the post request, can be null
    * @param postFile the data for the post request, can be null
    * @param saveResponse whether to save the response in a file
    * @param responseFileName the name of the file
+   * @param timeout the timeout for the request, in milliseconds, or 0 for none
+   * @param cacheMode how the response to a get request is cached
+   * @param jsonPointer the JSON pointer selecting the value for the GotJson event, or null
+   * @param requestId the id of the request
+   * @param generation the value of cancelGeneration when the request was made
    *
    * @throws IOException
+   * @throws JSONException
    */
   private void performRequest(final String urlString, byte[] postData, String postFile,
-      boolean saveResponse, String responseFileName) throws IOException {
+      boolean saveResponse, String responseFileName, int timeout, String cacheMode,
+      String jsonPointer, final int requestId, final int generation)
+      throws IOException, JSONException {
 
-    // Open the connection.
-    HttpURLConnection connection = openConnection(urlString);
-    Log.i(LOG_TAG, "performRequest - connection is " + connection);
-    if (connection != null) {
-      try {
-        if (postData != null) {
-          writePostData(connection, postData);
-        } else if (postFile != null) {
-          writePostFile(connection, postFile);
+    // Create the request.
+    HttpUriRequest request;
+    InputStream postFileStream = null;
+    if (postData != null) {
+      HttpPost post = new HttpPost(urlString);
+      post.setEntity(createPostDataEntity(postData));
+      request = post;
+    } else if (postFile != null) {
+      // Use MediaUtil.openMedia to open the file. This means that path could be file on the SD
+      // card, an asset, a contact picture, etc.
+      postFileStream = MediaUtil.openMedia(form, postFile);
+      HttpPost post = new HttpPost(urlString);
+      post.setEntity(createPostFileEntity(postFileStream, MediaUtil.getMediaLength(form, postFile),
+          new ProgressEvents(requestId, generation) {
+            @Override
+            protected void dispatch(long bytesSent, long totalBytes) {
+              UploadProgress(urlString, bytesSent, totalBytes);
+            }
+          }));
+      request = post;
+    } else {
+      request = new HttpGet(urlString);
+    }
+
+    // Look for a cached response to a get request.
+    HttpResponseCache cache = null;
+    HttpResponseCache.Entry cached = null;
+    if (request instanceof HttpGet && !cacheMode.equals(CACHE_MODE_NETWORK_ONLY)) {
+      cache = HttpResponseCache.getInstance(activity);
+      cached = cache.get(urlString);
+    }
+
+    // Let CancelAll abort the request.
+    synchronized (activeRequests) {
+      activeRequests.put(requestId, request);
+    }
+    try {
+      if (isCancelled(generation)) {
+        // CancelAll was called after the request was taken from the queue.
+        request.abort();
+      }
+      HttpResponse response;
+      boolean fromCache = false;
+      if (cached != null && cacheMode.equals(CACHE_MODE_CACHE_FIRST) && cached.isFresh()) {
+        Log.i(LOG_TAG, "performRequest - using the cached response");
+        response = cached.openResponse();
+        fromCache = true;
+      } else {
+        if (cached != null) {
+          cached.addConditionalHeaders(request);
         }
+        response = HttpTransport.getInstance().execute(request, timeout);
+        if (cached != null &&
+            response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+          Log.i(LOG_TAG, "performRequest - the cached response is not modified");
+          if (response.getEntity() != null) {
+            response.getEntity().consumeContent();
+          }
+          response = cache.update(cached, response).openResponse();
+          fromCache = true;
+        }
+      }
+      HttpResponseCache.Editor cacheEditor = (cache != null && !fromCache) ?
+          cache.edit(urlString, response) : null;
 
+      // Only a get request can be repeated to resume reading its response.
+      Download download = new Download(urlString, request, response,
+          request instanceof HttpGet && !fromCache, timeout,
+          new ProgressEvents(requestId, generation) {
+            @Override
+            protected void dispatch(long bytesReceived, long totalBytes) {
+              DownloadProgress(urlString, bytesReceived, totalBytes);
+            }
+          }, (cacheEditor != null) ? cacheEditor.getOutputStream() : null,
+          activeRequests, requestId);
+      boolean completed = false;
+      try {
         // Get the response.
-        final int responseCode = connection.getResponseCode();
+        final int responseCode = response.getStatusLine().getStatusCode();
         Log.i(LOG_TAG, "performRequest - responseCode is " + responseCode);
-        final String responseType = (responseCode == HttpURLConnection.HTTP_OK) ?
-            getResponseType(connection) : "";
+        final String responseType = (responseCode == HttpStatus.SC_OK) ?
+            getResponseType(response.getEntity()) : "";
         Log.i(LOG_TAG, "performRequest - responseType is " + responseType);
 
-        if (saveResponse) {
-          final String path = (responseCode == HttpURLConnection.HTTP_OK) ?
-              saveResponseContent(connection, responseFileName, responseType) : "";
+        if (jsonPointer != null) {
+          Object json = "";
+          if (responseCode == HttpStatus.SC_OK) {
+            // Decode the response straight from the connection, without keeping its text.
+            json = new JsonStreamParser(
+                new InputStreamReader(download, getResponseCharset(response.getEntity())),
+                MAX_JSON_RESPONSE_CHARS).nextYailValue(jsonPointer);
+          }
 
           // Dispatch the event.
-          activity.runOnUiThread(new Runnable() {
+          final Object value = json;
+          dispatchRequestEvent(requestId, generation, new Runnable() {
             @Override
             public void run() {
-              GotFile(urlString, responseCode, responseType, path);
+              GotJson(urlString, responseCode, responseType, value);
             }
           });
-        } else {
-          final String responseContent = (responseCode == HttpURLConnection.HTTP_OK) ?
-              getResponseContent(connection) : "";
+        } else if (saveResponse) {
+          final String path = (responseCode == HttpStatus.SC_OK) ?
+              saveResponseContent(download, responseFileName, responseType) : "";
 
           // Dispatch the event.
-          activity.runOnUiThread(new Runnable() {
+          dispatchRequestEvent(requestId, generation, new Runnable() {
             @Override
             public void run() {
-              GotText(urlString, responseCode, responseType, responseContent);
+              GotFile(urlString, responseCode, responseType, path);
             }
           });
+        } else {
+          String responseContent = "";
+          File spilledFile = null;
+          if (responseCode == HttpStatus.SC_OK) {
+            TextResponseOutputStream out =
+                new TextResponseOutputStream(responseFileName, responseType);
+            try {
+              download.writeTo(out);
+            } finally {
+              out.close();
+            }
+            spilledFile = out.getFile();
+            if (spilledFile == null) {
+              responseContent = out.getText(getResponseCharset(response.getEntity()));
+            }
+          }
+
+          // Dispatch the event.
+          if (spilledFile != null) {
+            // The response is too long to be kept in memory, so it has been saved in a file.
+            final String path = spilledFile.getAbsolutePath();
+            dispatchRequestEvent(requestId, generation, new Runnable() {
+              @Override
+              public void run() {
+                GotFile(urlString, responseCode, responseType, path);
+              }
+            });
+          } else {
+            final String text = responseContent;
+            dispatchRequestEvent(requestId, generation, new Runnable() {
+              @Override
+              public void run() {
+                GotText(urlString, responseCode, responseType, text);
+              }
+            });
+          }
         }
 
+        if (jsonPointer != null && jsonPointer.length() > 0 && cacheEditor == null) {
+          // Only part of the JSON response was wanted, and the rest of it may be much longer, so
+          // abandon it rather than reading it.
+          download.abort();
+        } else {
+          // Read what is left of the response, so that the connection can be reused, and so
+          // that all of it is cached.
+          download.finish();
+        }
+        completed = true;
       } finally {
-        connection.disconnect();
+        if (!completed) {
+          download.abort();
+        }
+        if (cacheEditor != null) {
+          if (completed) {
+            cacheEditor.commit();
+          } else {
+            cacheEditor.abort();
+          }
+        }
+      }
+    } finally {
+      synchronized (activeRequests) {
+        activeRequests.remove(requestId);
+      }
+      if (postFileStream != null) {
+        postFileStream.close();
       }
     }
   }
 
-  private static HttpURLConnection openConnection(String urlString)
-      throws MalformedURLException, IOException, ClassCastException {
-    return (HttpURLConnection) new URL(urlString).openConnection();
+  private static HttpEntity createPostDataEntity(byte[] postData) {
+    ByteArrayEntity entity = new ByteArrayEntity(postData);
+    entity.setContentType(POST_CONTENT_TYPE);
+    return entity;
   }
 
-  private static void writePostData(HttpURLConnection connection, byte[] postData)
-      throws IOException {
-    // According to the documentation at
-    // http://developer.android.com/reference/java/net/HttpURLConnection.html
-    // HttpURLConnection uses the GET method by default. It will use POST if setDoOutput(true) has
-    // been called.
-    connection.setDoOutput(true); // This makes it an HTTP POST.
-    // Write the data.
-    connection.setChunkedStreamingMode(0);
-    BufferedOutputStream out = new BufferedOutputStream(connection.getOutputStream());
+  private static HttpEntity createPostFileEntity(InputStream in, long length,
+      TransferProgressListener listener) {
+    // If the length of the file isn't known, the entity is sent chunked.
+    StreamingUploadEntity entity = new StreamingUploadEntity(in, length, listener);
+    entity.setContentType(POST_CONTENT_TYPE);
+    return entity;
+  }
+
+  /*
+   * Triggers progress events for a request in the UI thread, no more often
+   * than every PROGRESS_INTERVAL_MILLIS, except that the event for the last
+   * byte of a known total is always triggered.
+   */
+  private abstract class ProgressEvents implements TransferProgressListener {
+    private final int requestId;
+    private final int generation;
+    private long lastDispatched;
+
+    ProgressEvents(int requestId, int generation) {
+      this.requestId = requestId;
+      this.generation = generation;
+    }
+
+    @Override
+    public void onProgress(final long bytesTransferred, final long totalBytes) {
+      long now = SystemClock.elapsedRealtime();
+      if (bytesTransferred != totalBytes && now - lastDispatched < PROGRESS_INTERVAL_MILLIS) {
+        return;
+      }
+      lastDispatched = now;
+      dispatchRequestEvent(requestId, generation, new Runnable() {
+        @Override
+        public void run() {
+          dispatch(bytesTransferred, totalBytes);
+        }
+      });
+    }
+
+    protected abstract void dispatch(long bytesTransferred, long totalBytes);
+  }
+
+  private static String getResponseType(HttpEntity entity) {
+    Header contentType = (entity != null) ? entity.getContentType() : null;
+    return (contentType != null) ? contentType.getValue() : "";
+  }
+
+  private static String getResponseCharset(HttpEntity entity) {
+    // Use the charset given in the content type to convert bytes to characters.
+    String charset = (entity != null) ? EntityUtils.getContentCharSet(entity) : null;
+    return (charset != null) ? charset : HTTP.UTF_8;
+  }
+
+  private static String saveResponseContent(Download download,
+      String responseFileName, String responseType) throws IOException {
+    File file = createFile(responseFileName, responseType);
+
+    BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(file),
+        DOWNLOAD_BUFFER_SIZE);
     try {
-      out.write(postData, 0, postData.length);
+      // Copy the contents from the response to the file.
+      download.writeTo(out);
       out.flush();
     } finally {
       out.close();
     }
+
+    return file.getAbsolutePath();
   }
 
-  private void writePostFile(HttpURLConnection connection, String path)
-      throws IOException {
-    // Use MediaUtil.openMedia to open the file. This means that path could be file on the SD card,
-    // an asset, a contact picture, etc.
-    BufferedInputStream in = new BufferedInputStream(MediaUtil.openMedia(form, path));
-    try {
-      // Write the file's data.
-      // According to the documentation at
-      // http://developer.android.com/reference/java/net/HttpURLConnection.html
-      // HttpURLConnection uses the GET method by default. It will use POST if setDoOutput(true) has
-      // been called.
-      connection.setDoOutput(true); // This makes it an HTTP POST.
-      connection.setChunkedStreamingMode(0);
-      BufferedOutputStream out = new BufferedOutputStream(connection.getOutputStream());
-      try {
-        while (true) {
-          int b = in.read();
-          if (b == -1) {
-            break;
+  /*
+   * Reads the content of a response as it arrives, reporting progress to a listener.  If the
+   * connection fails partway through the content of a response to a get request, and the
+   * response can be identified by a strong ETag or a Last-Modified date, the rest of the
+   * content is requested with a Range header, up to MAX_RESUMES times.  A compressed response
+   * isn't resumed, since the byte offsets of its content and of the ranges differ.  The content
+   * can also be copied to a second stream, such as one writing it into the cache.  A request
+   * resuming the content replaces the original in the active requests, so that CancelAll can
+   * abort it.
+   */
+  private static class Download extends InputStream {
+    private final String urlString;
+    private final Map<Integer, HttpUriRequest> activeRequests;
+    private final int requestId;
+    private final int timeout;
+    private final TransferProgressListener listener;
+    private final OutputStream copy;
+    private final long totalBytes;
+    // The value for an If-Range header, or null if the response can't be resumed
+    private final String validator;
+    private HttpUriRequest request;
+    private HttpEntity entity;
+    // The stream of the content of entity, or null if it hasn't been opened
+    private InputStream in;
+    private long bytesReceived;
+    private int resumes;
+
+    Download(String urlString, HttpUriRequest request, HttpResponse response,
+        boolean repeatable, int timeout, TransferProgressListener listener, OutputStream copy,
+        Map<Integer, HttpUriRequest> activeRequests, int requestId) {
+      this.urlString = urlString;
+      this.activeRequests = activeRequests;
+      this.requestId = requestId;
+      this.request = request;
+      this.timeout = timeout;
+      this.listener = listener;
+      this.copy = copy;
+      entity = response.getEntity();
+      totalBytes = (entity != null) ? entity.getContentLength() : 0;
+      validator = (repeatable && !response.containsHeader(HTTP.CONTENT_ENCODING))
+          ? getValidator(response) : null;
+    }
+
+    /*
+     * Copies the rest of the content of the response to the given stream.
+     */
+    void writeTo(OutputStream out) throws IOException {
+      byte[] buffer = new byte[DOWNLOAD_BUFFER_SIZE];
+      int read;
+      while ((read = read(buffer, 0, buffer.length)) != -1) {
+        out.write(buffer, 0, read);
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      while (entity != null) {
+        try {
+          if (in == null) {
+            // The stream releases the connection when its end is read.
+            in = entity.getContent();
+          }
+          int read = in.read(b, off, len);
+          if (read == -1 && totalBytes >= 0 && bytesReceived < totalBytes) {
+            // The connection was closed before the whole of the content arrived.
+            throw new IOException("Received " + bytesReceived + " of " + totalBytes + " bytes");
+          }
+          if (read > 0) {
+            if (copy != null) {
+              copy.write(b, off, read);
+            }
+            bytesReceived += read;
+            listener.onProgress(bytesReceived, totalBytes);
           }
-          out.write(b);
+          return read;
+        } catch (IOException e) {
+          request.abort();
+          if (validator == null || bytesReceived == 0 || resumes == MAX_RESUMES || !resume()) {
+            throw e;
+          }
+          resumes++;
         }
-        out.flush();
-      } finally {
-        out.close();
       }
-    } finally {
-      in.close();
+      return -1;
     }
-  }
 
-  private static String getResponseType(HttpURLConnection connection) {
-    String responseType = connection.getContentType();
-    return (responseType != null) ? responseType : "";
-  }
+    /*
+     * Requests the rest of the content, and returns whether the response continues where the
+     * content read so far ends.
+     */
+    private boolean resume() throws IOException {
+      Log.i(LOG_TAG, "Resuming " + urlString + " at byte " + bytesReceived);
+      HttpGet get = new HttpGet(urlString);
+      get.addHeader(RANGE_HEADER, "bytes=" + bytesReceived + "-");
+      get.addHeader(IF_RANGE_HEADER, validator);
+      get.addHeader(ACCEPT_ENCODING_HEADER, HTTP.IDENTITY_CODING);
+      synchronized (activeRequests) {
+        if (!activeRequests.containsKey(requestId)) {
+          // CancelAll has been called, so don't send the request.
+          return false;
+        }
+        activeRequests.put(requestId, get);
+      }
+      HttpResponse response = HttpTransport.getInstance().execute(get, timeout);
+      Header contentRange = response.getFirstHeader(CONTENT_RANGE_HEADER);
+      if (response.getStatusLine().getStatusCode() != HttpStatus.SC_PARTIAL_CONTENT ||
+          contentRange == null ||
+          !contentRange.getValue().startsWith("bytes " + bytesReceived + "-") ||
+          response.getEntity() == null) {
+        // The server sent something else, such as the whole of a changed response.
+        get.abort();
+        return false;
+      }
+      request = get;
+      entity = response.getEntity();
+      in = null;
+      return true;
+    }
 
-  private static String getResponseContent(HttpURLConnection connection) throws IOException {
-    // Use the content encoding to convert bytes to characters.
-    String encoding = connection.getContentEncoding();
-    if (encoding == null) {
-      encoding = "UTF-8";
+    /*
+     * Reads what is left of the response, so that the connection can be reused and the content
+     * is completely copied.
+     */
+    void finish() throws IOException {
+      byte[] buffer = new byte[DOWNLOAD_BUFFER_SIZE];
+      while (read(buffer, 0, buffer.length) != -1) {
+        // Discard the content.
+      }
+      if (entity != null) {
+        entity.consumeContent();
+      }
     }
-    InputStreamReader reader = new InputStreamReader(connection.getInputStream(), encoding);
-    try {
-      int contentLength = connection.getContentLength();
-      StringBuilder sb = (contentLength != -1)
-          ? new StringBuilder(contentLength)
-          : new StringBuilder();
-      char[] buf = new char[1024];
-      int read;
-      while ((read = reader.read(buf)) != -1) {
-        sb.append(buf, 0, read);
+
+    /*
+     * Abandons what is left of the response.
+     */
+    void abort() {
+      request.abort();
+      try {
+        // A response read from the cache has no connection to abort, so close its file.
+        if (in != null) {
+          in.close();
+        } else if (entity != null) {
+          entity.consumeContent();
+        }
+      } catch (IOException e) {
+        // Aborting the request has already released the connection.
       }
-      return sb.toString();
-    } finally {
-      reader.close();
+    }
+
+    private static String getValidator(HttpResponse response) {
+      Header eTag = response.getFirstHeader(ETAG_HEADER);
+      // A weak ETag can't be used in an If-Range header.
+      if (eTag != null && !eTag.getValue().startsWith("W/")) {
+        return eTag.getValue();
+      }
+      Header lastModified = response.getFirstHeader(LAST_MODIFIED_HEADER);
+      return (lastModified != null) ? lastModified.getValue() : null;
     }
   }
 
-  private static String saveResponseContent(HttpURLConnection connection,
-      String responseFileName, String responseType) throws IOException {
-    File file = createFile(responseFileName, responseType);
+  /*
+   * Collects the content of a response for the GotText event in memory, up to
+   * MAX_TEXT_RESPONSE_BYTES.  If the content is longer, it is all written to a file instead.
+   */
+  private static class TextResponseOutputStream extends OutputStream {
+    private final String responseFileName;
+    private final String responseType;
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+    private File file;
+    private OutputStream fileOut;
 
-    BufferedInputStream in = new BufferedInputStream(connection.getInputStream(), 0x1000);
-    try {
-      BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(file), 0x1000);
-      try {
-        // Copy the contents from the input stream to the output stream.
-        while (true) {
-          int b = in.read();
-          if (b == -1) {
-            break;
-          }
-          out.write(b);
-        }
-        out.flush();
-      } finally {
-        out.close();
+    TextResponseOutputStream(String responseFileName, String responseType) {
+      this.responseFileName = responseFileName;
+      this.responseType = responseType;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (fileOut == null && memory.size() + len > MAX_TEXT_RESPONSE_BYTES) {
+        Log.i(LOG_TAG, "Response is longer than " + MAX_TEXT_RESPONSE_BYTES +
+            " bytes, saving it in a file");
+        file = createFile(responseFileName, responseType);
+        fileOut = new BufferedOutputStream(new FileOutputStream(file), DOWNLOAD_BUFFER_SIZE);
+        memory.writeTo(fileOut);
+        memory = null;
+      }
+      if (fileOut != null) {
+        fileOut.write(b, off, len);
+      } else {
+        memory.write(b, off, len);
       }
-    } finally {
-      in.close();
     }
 
-    return file.getAbsolutePath();
+    @Override
+    public void close() throws IOException {
+      if (fileOut != null) {
+        fileOut.close();
+      }
+    }
+
+    /*
+     * Returns the file the content was written to, or null if it was kept in memory.
+     */
+    File getFile() {
+      return file;
+    }
+
+    String getText(String charset) throws UnsupportedEncodingException {
+      return memory.toString(charset);
+    }
   }
 
   private static File createFile(String fileName, String responseType)
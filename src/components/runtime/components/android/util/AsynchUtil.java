@@ -3,22 +3,75 @@
 package com.google.devtools.simple.runtime.components.android.util;
 
 import android.os.Handler;
+import android.os.Looper;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Utilities for handling asynchronous calls.
  *
+ * <p>Calls are run on a small shared pool of worker threads rather than on
+ * a new thread each, so that components that make frequent Web service
+ * calls (for example, from a Clock timer) don't create thousands of
+ * short-lived threads.  Calls that must not overlap or be reordered, such as
+ * the requests made by a single component, can be run on a serial lane
+ * with {@link #runSerially(Object, Runnable)}.
+ *
+ * <p>The pool keeps up to {@code MAX_THREADS} workers and queues up to
+ * {@code MAX_QUEUED_CALLS} calls; once the queue is full it grows to at
+ * most {@code MAX_POOL_THREADS} workers.  Beyond that, calls made from a
+ * worker or other background thread are run in that thread, and calls made
+ * from the UI thread wait for the next worker to become free.  Calls that
+ * may block for a long time, such as waiting for a connection or a long
+ * poll, must not hold a shared worker and should be made with
+ * {@link #runInNewThread(String, Runnable)} instead.
+ *
  */
 
 public class AsynchUtil {
+  // The number of worker threads kept while calls are being made.
+  private static final int MAX_THREADS = 4;
+
+  // The largest number of calls waiting for a worker before more workers
+  // are started.
+  private static final int MAX_QUEUED_CALLS = 64;
+
+  // The largest number of worker threads.
+  private static final int MAX_POOL_THREADS = 16;
+
+  // How long an idle worker thread is kept, where the SDK allows it to exit.
+  private static final long KEEP_ALIVE_SECONDS = 30;
+
+  private static final Object executorLock = new Object();
+  private static ThreadPoolExecutor executor;
+  private static int threadCount;
+
+  // Calls made from the UI thread while every worker was busy and the queue
+  // was full, run as workers become free.  Guarded by itself.
+  private static final LinkedList<Runnable> overflow = new LinkedList<Runnable>();
+
+  // The serial lanes with calls pending or running, by key.  Also guards the
+  // state of every lane.
+  private static final Map<Object, SerialLane> lanes = new HashMap<Object, SerialLane>();
+
+  private AsynchUtil() {
+  }
 
   /**
    * Make an asynchronous call in a separate thread.
    * @param call a {@link Runnable} to run in the thread.
    */
   public static void runAsynchronously(final Runnable call) {
-    Thread thread = new Thread(call);
-    thread.start();
+    getExecutor().execute(call);
   }
+
   /**
    * Make an asynchronous call in a separate thread, with a callback that's run on the current
    * Android UI thread.
@@ -29,7 +82,80 @@ public class AsynchUtil {
   public static void runAsynchronously(final Handler androidUIHandler,
                                        final Runnable call,
                                        final Runnable callback) {
-    Runnable runnable = new Runnable() {
+    runAsynchronously(withCallback(androidUIHandler, call, callback));
+  }
+
+  /**
+   * Make a call that may block for a long time in a thread of its own,
+   * rather than on one of the shared worker threads.
+   *
+   * @param name the name of the thread
+   * @param call a {@link Runnable} to run in the thread.
+   */
+  public static void runInNewThread(String name, Runnable call) {
+    new Thread(call, name).start();
+  }
+
+  /**
+   * Make an asynchronous call in a separate thread, after every call
+   * previously made on the same lane has returned.  Calls on different lanes
+   * may run at the same time.  Components typically use themselves as the
+   * lane, so that their requests are sent to a server in the order they
+   * were made.
+   *
+   * @param lane the key identifying the lane
+   * @param call a {@link Runnable} to run in the thread.
+   */
+  public static void runSerially(Object lane, Runnable call) {
+    synchronized (lanes) {
+      SerialLane serialLane = lanes.get(lane);
+      if (serialLane == null) {
+        serialLane = new SerialLane(lane);
+        lanes.put(lane, serialLane);
+      }
+      serialLane.calls.add(call);
+      if (!serialLane.running) {
+        serialLane.running = true;
+        runAsynchronously(serialLane);
+      }
+    }
+  }
+
+  /**
+   * Make an asynchronous call on a serial lane, with a callback that's run
+   * on the current Android UI thread.
+   *
+   * @param lane the key identifying the lane
+   * @param androidUIHandler  the Handler from the current Android context
+   * @param call a {@link Runnable} to run in the thread.
+   * @param callback a {@Link Runnable) to run in the Android UI thread when the call above returns
+   * @see #runSerially(Object, Runnable)
+   */
+  public static void runSerially(Object lane,
+                                 Handler androidUIHandler,
+                                 Runnable call,
+                                 Runnable callback) {
+    runSerially(lane, withCallback(androidUIHandler, call, callback));
+  }
+
+  /**
+   * Shuts down the worker threads once the calls already made have
+   * returned.  This is called when a form is destroyed; calls made
+   * afterwards start a new set of worker threads.
+   */
+  public static void shutdown() {
+    synchronized (executorLock) {
+      if (executor != null) {
+        executor.shutdown();
+        executor = null;
+      }
+    }
+  }
+
+  private static Runnable withCallback(final Handler androidUIHandler,
+                                       final Runnable call,
+                                       final Runnable callback) {
+    return new Runnable() {
       public void run() {
         call.run();
         if (callback != null) {
@@ -41,7 +167,91 @@ public class AsynchUtil {
         }
       }
     };
-    Thread thread = new Thread(runnable);
-    thread.start();
+  }
+
+  private static ThreadPoolExecutor getExecutor() {
+    synchronized (executorLock) {
+      if (executor == null) {
+        executor = new ThreadPoolExecutor(MAX_THREADS, MAX_POOL_THREADS,
+            KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(MAX_QUEUED_CALLS),
+            new ThreadFactory() {
+              public Thread newThread(Runnable runnable) {
+                synchronized (executorLock) {
+                  return new Thread(runnable, "AsynchUtil-" + (++threadCount));
+                }
+              }
+            },
+            new RejectedExecutionHandler() {
+              public void rejectedExecution(Runnable call, ThreadPoolExecutor rejectingExecutor) {
+                if (rejectingExecutor.isShutdown()) {
+                  // The form was destroyed after the call was made; run it
+                  // on the workers started for the next form.
+                  runAsynchronously(call);
+                } else if (Looper.myLooper() != Looper.getMainLooper()) {
+                  // Dropping the call would leave its caller waiting forever
+                  // for its callback, so run it here.
+                  call.run();
+                } else {
+                  // Running it here would block the UI thread.
+                  synchronized (overflow) {
+                    overflow.add(call);
+                  }
+                }
+              }
+            }) {
+          @Override
+          protected void afterExecute(Runnable call, Throwable t) {
+            Runnable next;
+            synchronized (overflow) {
+              next = overflow.poll();
+            }
+            if (next != null) {
+              runAsynchronously(next);
+            }
+          }
+        };
+        if (SdkLevel.getLevel() >= SdkLevel.LEVEL_GINGERBREAD) {
+          // allowCoreThreadTimeOut is not available on earlier SDKs, where
+          // the idle workers simply stay until shutdown.
+          executor.allowCoreThreadTimeOut(true);
+        }
+      }
+      return executor;
+    }
+  }
+
+  /*
+   * Runs the calls made on one lane, one at a time.  The lane is submitted
+   * to the executor for each call in turn rather than holding a worker
+   * thread while it has calls pending.
+   */
+  private static class SerialLane implements Runnable {
+    private final Object key;
+    private final LinkedList<Runnable> calls = new LinkedList<Runnable>();
+    private boolean running;
+
+    SerialLane(Object key) {
+      this.key = key;
+    }
+
+    public void run() {
+      Runnable call;
+      synchronized (lanes) {
+        call = calls.removeFirst();
+      }
+      try {
+        call.run();
+      } finally {
+        synchronized (lanes) {
+          if (calls.isEmpty()) {
+            running = false;
+            lanes.remove(key);
+          } else {
+            runAsynchronously(this);
+          }
+        }
+      }
+    }
   }
 }
@@ -0,0 +1,178 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.devtools.simple.runtime.components.android.util;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A circuit breaker for the requests made to one Web service.
+ *
+ * <p>While the service is responding, the breaker is closed and requests
+ * are sent as usual.  After {@link #FAILURE_THRESHOLD} requests in a row
+ * fail without a response from the service, the breaker opens, and for a
+ * while requests fail at once without being sent.  This gives a struggling
+ * service room to recover, and spares apps from waiting out a timeout for
+ * every request.  When the wait is over, one trial request is let through.
+ * If it succeeds the breaker closes again; if not, the breaker stays open
+ * for twice as long as before, up to {@link #MAX_OPEN_MILLIS}.
+ *
+ * <p>There is one breaker for each service URL, shared by all the
+ * components that use that URL.
+ *
+ */
+public final class CircuitBreaker {
+  private static final String LOG_TAG = "CircuitBreaker";
+
+  /**
+   * The number of consecutive failures that opens a breaker.
+   */
+  public static final int FAILURE_THRESHOLD = 5;
+
+  /**
+   * How long a breaker first stays open.
+   */
+  public static final long MIN_OPEN_MILLIS = 5 * 1000;
+
+  /**
+   * The longest a breaker stays open before letting a trial request
+   * through.
+   */
+  public static final long MAX_OPEN_MILLIS = 2 * 60 * 1000;
+
+  /**
+   * The states of a breaker.
+   */
+  public enum State {
+    /** Requests are sent. */
+    CLOSED,
+    /** Requests fail without being sent. */
+    OPEN,
+    /** A trial request has been sent, and other requests fail without being sent. */
+    HALF_OPEN
+  }
+
+  private static final Map<String, CircuitBreaker> breakers =
+      new HashMap<String, CircuitBreaker>();
+
+  private final String serviceURL;
+  private State state = State.CLOSED;
+  private int consecutiveFailures;
+  private long openMillis = MIN_OPEN_MILLIS;
+  // While open or half open, when the next trial request may be sent
+  private long openUntil;
+
+  private CircuitBreaker(String serviceURL) {
+    this.serviceURL = serviceURL;
+  }
+
+  /**
+   * Returns the breaker for the given service, creating it if necessary.
+   *
+   * @param serviceURL the URL of the service
+   * @return the breaker
+   */
+  public static CircuitBreaker forService(String serviceURL) {
+    synchronized (breakers) {
+      CircuitBreaker breaker = breakers.get(serviceURL);
+      if (breaker == null) {
+        breaker = new CircuitBreaker(serviceURL);
+        breakers.put(serviceURL, breaker);
+      }
+      return breaker;
+    }
+  }
+
+  /**
+   * Indicates whether requests to the given service are being sent, that
+   * is, whether its breaker is closed.
+   *
+   * @param serviceURL the URL of the service
+   * @return {@code true} if requests are being sent, {@code false} if they
+   *         fail without being sent
+   */
+  public static boolean isServiceAvailable(String serviceURL) {
+    return forService(serviceURL).getState() == State.CLOSED;
+  }
+
+  /**
+   * Returns the state of the breaker.
+   *
+   * @return the state
+   */
+  public synchronized State getState() {
+    return state;
+  }
+
+  /**
+   * Returns how long until a request may next be sent.
+   *
+   * @return the time, in milliseconds, or 0 if requests are being sent
+   */
+  public synchronized long getMillisUntilRetry() {
+    if (state == State.CLOSED) {
+      return 0;
+    }
+    return Math.max(0, openUntil - SystemClock.elapsedRealtime());
+  }
+
+  /**
+   * Decides whether a request may be sent now.  Every request allowed must
+   * be followed by a call to {@link #recordSuccess()} or
+   * {@link #recordFailure()}.
+   *
+   * @return {@code true} if the request may be sent, {@code false} if it
+   *         should fail without being sent
+   */
+  public synchronized boolean allowRequest() {
+    if (state == State.CLOSED) {
+      return true;
+    }
+    long now = SystemClock.elapsedRealtime();
+    if (now < openUntil) {
+      return false;
+    }
+    // Let a trial request through.  If its outcome is never recorded,
+    // another is let through once the same time has passed again.
+    state = State.HALF_OPEN;
+    openUntil = now + openMillis;
+    return true;
+  }
+
+  /**
+   * Records that the service responded to a request.
+   */
+  public synchronized void recordSuccess() {
+    if (state != State.CLOSED) {
+      Log.i(LOG_TAG, "Closing the circuit breaker for " + serviceURL);
+    }
+    state = State.CLOSED;
+    consecutiveFailures = 0;
+    openMillis = MIN_OPEN_MILLIS;
+  }
+
+  /**
+   * Records that a request failed without a response from the service, or
+   * with a response saying that the service is unavailable.
+   */
+  public synchronized void recordFailure() {
+    consecutiveFailures++;
+    if (state == State.HALF_OPEN) {
+      // The trial request failed.
+      openMillis = Math.min(openMillis * 2, MAX_OPEN_MILLIS);
+      open();
+    } else if (state == State.CLOSED && consecutiveFailures >= FAILURE_THRESHOLD) {
+      open();
+    }
+  }
+
+  private void open() {
+    Log.w(LOG_TAG, "Opening the circuit breaker for " + serviceURL + " for " + openMillis +
+        " ms after " + consecutiveFailures + " failures");
+    state = State.OPEN;
+    openUntil = SystemClock.elapsedRealtime() + openMillis;
+  }
+}
@@ -0,0 +1,347 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.devtools.simple.runtime.components.android.util;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records drawing primitives so that they can be drawn later in a single
+ * pass, instead of drawing (and invalidating the view) once per primitive.
+ *
+ * <p>Commands are kept in two growable primitive arrays: {@code int}
+ * opcodes and parameters, and {@code float} coordinates.  The state of the
+ * {@link Paint} passed to each {@code record} method is compared with the
+ * state last recorded, and a paint command is only recorded when it differs,
+ * so a long run of primitives drawn with the same paint costs a few words
+ * each.  When the buffer is drawn, a single reused {@link Paint} is updated
+ * from those paint commands.
+ *
+ */
+public final class DrawCommandBuffer {
+  private static final int OP_PAINT = 0;
+  private static final int OP_POINT = 1;
+  private static final int OP_LINE = 2;
+  private static final int OP_CIRCLE = 3;
+  private static final int OP_TEXT = 4;
+  private static final int OP_LINES = 5;
+  private static final int OP_POINTS = 6;
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  private static final PorterDuffXfermode CLEAR_MODE =
+      new PorterDuffXfermode(PorterDuff.Mode.CLEAR);
+
+  private int[] ints = new int[INITIAL_CAPACITY];
+  private int intCount;
+  private float[] floats = new float[INITIAL_CAPACITY];
+  private int floatCount;
+  // Strings and coordinate arrays referred to by index from ints
+  private final List<Object> objects = new ArrayList<Object>();
+  private int commandCount;
+
+  // The paint state last recorded
+  private boolean paintRecorded;
+  private int color;
+  private boolean clear;
+  private float strokeWidth;
+  private float textSize;
+  private Paint.Align textAlign;
+
+  // The paint used to draw the recorded commands
+  private final Paint drawPaint = new Paint();
+
+  /**
+   * Returns the number of primitives recorded since the buffer was last
+   * drawn or cleared.
+   *
+   * @return the number of recorded primitives
+   */
+  public int size() {
+    return commandCount;
+  }
+
+  /**
+   * Indicates whether there is nothing to draw.
+   *
+   * @return {@code true} if no primitives have been recorded, {@code false}
+   *         otherwise
+   */
+  public boolean isEmpty() {
+    return commandCount == 0;
+  }
+
+  /**
+   * Discards all recorded commands.
+   */
+  public void clear() {
+    intCount = 0;
+    floatCount = 0;
+    objects.clear();
+    commandCount = 0;
+    paintRecorded = false;
+  }
+
+  /**
+   * Records a point.
+   *
+   * @param paint the paint with which to draw it
+   * @param x the x-coordinate
+   * @param y the y-coordinate
+   */
+  public void recordPoint(Paint paint, float x, float y) {
+    recordPaint(paint);
+    addInt(OP_POINT);
+    addFloat(x);
+    addFloat(y);
+    commandCount++;
+  }
+
+  /**
+   * Records a line.
+   *
+   * @param paint the paint with which to draw it
+   * @param x1 the x-coordinate of the first point
+   * @param y1 the y-coordinate of the first point
+   * @param x2 the x-coordinate of the second point
+   * @param y2 the y-coordinate of the second point
+   */
+  public void recordLine(Paint paint, float x1, float y1, float x2, float y2) {
+    recordPaint(paint);
+    addInt(OP_LINE);
+    addFloat(x1);
+    addFloat(y1);
+    addFloat(x2);
+    addFloat(y2);
+    commandCount++;
+  }
+
+  /**
+   * Records a circle.
+   *
+   * @param paint the paint with which to draw it
+   * @param x the x-coordinate of the center
+   * @param y the y-coordinate of the center
+   * @param r the radius
+   */
+  public void recordCircle(Paint paint, float x, float y, float r) {
+    recordPaint(paint);
+    addInt(OP_CIRCLE);
+    addFloat(x);
+    addFloat(y);
+    addFloat(r);
+    commandCount++;
+  }
+
+  /**
+   * Records a series of line segments, as drawn by
+   * {@link Canvas#drawLines(float[], Paint)}.  The array is not copied and
+   * must not be modified afterwards.
+   *
+   * @param paint the paint with which to draw them
+   * @param segments the segments, four coordinates (x1, y1, x2, y2) each
+   */
+  public void recordLines(Paint paint, float[] segments) {
+    recordPaint(paint);
+    addInt(OP_LINES);
+    addInt(objects.size());
+    objects.add(segments);
+    commandCount++;
+  }
+
+  /**
+   * Records a series of points, as drawn by
+   * {@link Canvas#drawPoints(float[], Paint)}.  The array is not copied and
+   * must not be modified afterwards.
+   *
+   * @param paint the paint with which to draw them
+   * @param points the points, two coordinates (x, y) each
+   */
+  public void recordPoints(Paint paint, float[] points) {
+    recordPaint(paint);
+    addInt(OP_POINTS);
+    addInt(objects.size());
+    objects.add(points);
+    commandCount++;
+  }
+
+  /**
+   * Records text, drawn rotated about its origin.
+   *
+   * @param paint the paint with which to draw it
+   * @param text the text
+   * @param x the x-coordinate of the origin
+   * @param y the y-coordinate of the origin
+   * @param angle the angle, in degrees counterclockwise, at which to draw
+   *        the text
+   */
+  public void recordText(Paint paint, String text, float x, float y, float angle) {
+    recordPaint(paint);
+    addInt(OP_TEXT);
+    addInt(objects.size());
+    objects.add(text);
+    addFloat(x);
+    addFloat(y);
+    addFloat(angle);
+    commandCount++;
+  }
+
+  /**
+   * Draws all recorded commands, in order, and clears the buffer.  The area
+   * that was drawn on is added to {@code damage}.
+   *
+   * @param canvas the canvas on which to draw
+   * @param damage the rectangle to which the affected area is added
+   */
+  public void draw(Canvas canvas, Rect damage) {
+    int i = 0;
+    int f = 0;
+    float minX = Float.POSITIVE_INFINITY;
+    float minY = Float.POSITIVE_INFINITY;
+    float maxX = Float.NEGATIVE_INFINITY;
+    float maxY = Float.NEGATIVE_INFINITY;
+    boolean drewText = false;
+    while (i < intCount) {
+      int op = ints[i++];
+      float halfWidth = Math.max(drawPaint.getStrokeWidth(), 1) / 2;
+      switch (op) {
+        case OP_PAINT:
+          PaintUtil.changePaint(drawPaint, ints[i++]);
+          drawPaint.setXfermode(ints[i++] != 0 ? CLEAR_MODE : null);
+          drawPaint.setTextAlign(Paint.Align.values()[ints[i++]]);
+          drawPaint.setStrokeWidth(floats[f++]);
+          drawPaint.setTextSize(floats[f++]);
+          break;
+
+        case OP_POINT: {
+          float x = floats[f++];
+          float y = floats[f++];
+          canvas.drawPoint(x, y, drawPaint);
+          minX = Math.min(minX, x - halfWidth);
+          minY = Math.min(minY, y - halfWidth);
+          maxX = Math.max(maxX, x + halfWidth);
+          maxY = Math.max(maxY, y + halfWidth);
+          break;
+        }
+
+        case OP_LINE: {
+          float x1 = floats[f++];
+          float y1 = floats[f++];
+          float x2 = floats[f++];
+          float y2 = floats[f++];
+          canvas.drawLine(x1, y1, x2, y2, drawPaint);
+          minX = Math.min(minX, Math.min(x1, x2) - halfWidth);
+          minY = Math.min(minY, Math.min(y1, y2) - halfWidth);
+          maxX = Math.max(maxX, Math.max(x1, x2) + halfWidth);
+          maxY = Math.max(maxY, Math.max(y1, y2) + halfWidth);
+          break;
+        }
+
+        case OP_CIRCLE: {
+          float x = floats[f++];
+          float y = floats[f++];
+          float r = floats[f++];
+          canvas.drawCircle(x, y, r, drawPaint);
+          minX = Math.min(minX, x - r - halfWidth);
+          minY = Math.min(minY, y - r - halfWidth);
+          maxX = Math.max(maxX, x + r + halfWidth);
+          maxY = Math.max(maxY, y + r + halfWidth);
+          break;
+        }
+
+        case OP_LINES:
+        case OP_POINTS: {
+          float[] coordinates = (float[]) objects.get(ints[i++]);
+          if (op == OP_LINES) {
+            canvas.drawLines(coordinates, drawPaint);
+          } else {
+            canvas.drawPoints(coordinates, drawPaint);
+          }
+          for (int c = 0; c + 1 < coordinates.length; c += 2) {
+            minX = Math.min(minX, coordinates[c] - halfWidth);
+            minY = Math.min(minY, coordinates[c + 1] - halfWidth);
+            maxX = Math.max(maxX, coordinates[c] + halfWidth);
+            maxY = Math.max(maxY, coordinates[c + 1] + halfWidth);
+          }
+          break;
+        }
+
+        case OP_TEXT: {
+          String text = (String) objects.get(ints[i++]);
+          float x = floats[f++];
+          float y = floats[f++];
+          float angle = floats[f++];
+          if (angle == 0) {
+            canvas.drawText(text, x, y, drawPaint);
+          } else {
+            canvas.save();
+            canvas.rotate(-angle, x, y);
+            canvas.drawText(text, x, y, drawPaint);
+            canvas.restore();
+          }
+          // The extent of (possibly rotated) text isn't worth computing.
+          drewText = true;
+          break;
+        }
+      }
+    }
+
+    if (drewText) {
+      damage.union(0, 0, canvas.getWidth(), canvas.getHeight());
+    } else if (minX <= maxX) {
+      damage.union((int) Math.floor(minX) - 1, (int) Math.floor(minY) - 1,
+          (int) Math.ceil(maxX) + 1, (int) Math.ceil(maxY) + 1);
+    }
+    clear();
+  }
+
+  // Records the paint's state if it differs from the state last recorded.
+  private void recordPaint(Paint paint) {
+    int newColor = paint.getColor();
+    boolean newClear = paint.getXfermode() != null;
+    float newStrokeWidth = paint.getStrokeWidth();
+    float newTextSize = paint.getTextSize();
+    Paint.Align newTextAlign = paint.getTextAlign();
+    if (paintRecorded && newColor == color && newClear == clear &&
+        newStrokeWidth == strokeWidth && newTextSize == textSize && newTextAlign == textAlign) {
+      return;
+    }
+    paintRecorded = true;
+    color = newColor;
+    clear = newClear;
+    strokeWidth = newStrokeWidth;
+    textSize = newTextSize;
+    textAlign = newTextAlign;
+
+    addInt(OP_PAINT);
+    addInt(newColor);
+    addInt(newClear ? 1 : 0);
+    addInt(newTextAlign.ordinal());
+    addFloat(newStrokeWidth);
+    addFloat(newTextSize);
+  }
+
+  private void addInt(int value) {
+    if (intCount == ints.length) {
+      int[] grown = new int[ints.length * 2];
+      System.arraycopy(ints, 0, grown, 0, intCount);
+      ints = grown;
+    }
+    ints[intCount++] = value;
+  }
+
+  private void addFloat(float value) {
+    if (floatCount == floats.length) {
+      float[] grown = new float[floats.length * 2];
+      System.arraycopy(floats, 0, grown, 0, floatCount);
+      floats = grown;
+    }
+    floats[floatCount++] = value;
+  }
+}
@@ -4,8 +4,10 @@ package com.google.devtools.simple.runtime.components.android.util;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * A container for information about a GameInstance for use
@@ -17,8 +19,12 @@ public class GameInstance {
   private String instanceId;
   private String leader;
 
-  // players in the current game
-  private List<String> players;
+  // players in the current game, in the order they were added
+  private Set<String> players;
+  // a list view of players, created when first requested after a change
+  private List<String> playersList;
+  // the server's version of the players list, or -1 if unknown
+  private int playersVersion;
 
   // Use this to store the most recent time stamp of each message type received.
   private Map<String, String> messageTimes;
@@ -36,7 +42,8 @@ public class GameInstance {
    * instance.
    */
   public GameInstance(String instanceId) {
-    players = new ArrayList<String>(0);
+    players = new LinkedHashSet<String>();
+    playersVersion = -1;
     messageTimes = new HashMap<String, String>();
     this.instanceId = instanceId;
     this.leader = "";
@@ -77,32 +84,94 @@ public class GameInstance {
    * membership. Otherwise returns a PlayersListDelta with the
    * appropriate player lists.
    */
-  public PlayerListDelta setPlayers(List<String> newPlayersList) {
-    if (newPlayersList.equals(players)) {
-      return PlayerListDelta.NO_CHANGE;
+  public synchronized PlayerListDelta setPlayers(List<String> newPlayersList) {
+    Set<String> newPlayers = new LinkedHashSet<String>(newPlayersList);
+    List<String> removed = new ArrayList<String>();
+    for (String player : players) {
+      if (!newPlayers.contains(player)) {
+        removed.add(player);
+      }
+    }
+    List<String> added = new ArrayList<String>();
+    for (String player : newPlayers) {
+      if (!players.contains(player)) {
+        added.add(player);
+      }
     }
-    List<String> removed = players;
-    List<String> added = new ArrayList<String>(newPlayersList);
-    players = new ArrayList<String>(newPlayersList);
+    players = newPlayers;
+    playersList = null;
 
-    added.removeAll(removed);
-    removed.removeAll(newPlayersList);
-    // This happens if the players list is the same but the ordering
+    // Both are empty if the players list is the same but the ordering
     // has changed for some reason.
     if (added.size() == 0 && removed.size() == 0) {
       return PlayerListDelta.NO_CHANGE;
     }
-
     return new PlayerListDelta(removed, added);
   }
 
+  /**
+   * Applies changes to the players of this instance, as sent by a
+   * server that has the list at a later version.
+   *
+   * Takes time proportional to the number of changes rather than the
+   * number of players. Adding a player already present or removing
+   * one that is absent has no effect.
+   *
+   * @param added Players that have joined the instance.
+   * @param removed Players that have left the instance.
+   * @return PlayersListDelta.NO_CHANGE if there is no change in
+   * membership. Otherwise returns a PlayersListDelta with the players
+   * actually added and removed.
+   */
+  public synchronized PlayerListDelta changePlayers(List<String> added, List<String> removed) {
+    List<String> actuallyRemoved = new ArrayList<String>();
+    for (String player : removed) {
+      if (players.remove(player)) {
+        actuallyRemoved.add(player);
+      }
+    }
+    List<String> actuallyAdded = new ArrayList<String>();
+    for (String player : added) {
+      if (players.add(player)) {
+        actuallyAdded.add(player);
+      }
+    }
+    if (actuallyAdded.size() == 0 && actuallyRemoved.size() == 0) {
+      return PlayerListDelta.NO_CHANGE;
+    }
+    playersList = null;
+    return new PlayerListDelta(actuallyRemoved, actuallyAdded);
+  }
+
   /**
    * Return the list of players currently in this instance.
    *
    * @return A list of the players in the instance.
    */
-  public List<String> getPlayers() {
-    return players;
+  public synchronized List<String> getPlayers() {
+    if (playersList == null) {
+      playersList = new ArrayList<String>(players);
+    }
+    return playersList;
+  }
+
+  /**
+   * Return the server's version number for the players list of this
+   * instance, as last set by {@link #setPlayersVersion}.
+   *
+   * @return The version, or -1 if it is not known.
+   */
+  public synchronized int getPlayersVersion() {
+    return playersVersion;
+  }
+
+  /**
+   * Sets the server's version number for the players list.
+   *
+   * @param playersVersion The version, or -1 if it is not known.
+   */
+  public synchronized void setPlayersVersion(int playersVersion) {
+    this.playersVersion = playersVersion;
   }
 
   /**
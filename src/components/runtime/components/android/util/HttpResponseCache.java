@@ -0,0 +1,504 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.devtools.simple.runtime.components.android.util;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.message.BasicHttpResponse;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An on-disk cache of the responses to HTTP get requests.
+ *
+ * <p>Only successful responses are cached, and only if they can be used
+ * again: that is, if their Cache-Control header allows it and they are
+ * either fresh for a while, as given by a Cache-Control max-age or an
+ * Expires header, or carry an ETag or Last-Modified header with which they
+ * can be revalidated.  A cached response that is no longer fresh can be
+ * revalidated by adding the conditional headers from
+ * {@link Entry#addConditionalHeaders} to a new request; if the server
+ * answers 304 Not Modified, {@link #update} renews the entry.
+ *
+ * <p>Each response is kept in the application's cache directory, in a
+ * file holding its content and a file holding its headers.  When the
+ * content of all the cached responses exceeds {@link #MAX_SIZE_BYTES},
+ * the least recently used are deleted.
+ *
+ */
+public final class HttpResponseCache {
+  private static final String LOG_TAG = "HttpResponseCache";
+
+  /**
+   * The largest total size of the cached content.
+   */
+  public static final long MAX_SIZE_BYTES = 10 * 1024 * 1024;
+
+  private static final String DIRECTORY_NAME = "web";
+  private static final String BODY_SUFFIX = ".body";
+  private static final String META_SUFFIX = ".meta";
+
+  private static final String CACHE_CONTROL_HEADER = "Cache-Control";
+  private static final String ETAG_HEADER = "ETag";
+  private static final String EXPIRES_HEADER = "Expires";
+  private static final String IF_MODIFIED_SINCE_HEADER = "If-Modified-Since";
+  private static final String IF_NONE_MATCH_HEADER = "If-None-Match";
+  private static final String LAST_MODIFIED_HEADER = "Last-Modified";
+
+  private static final String URL_KEY = "url";
+  private static final String CONTENT_TYPE_KEY = "contentType";
+  private static final String ETAG_KEY = "eTag";
+  private static final String LAST_MODIFIED_KEY = "lastModified";
+  private static final String EXPIRES_KEY = "expires";
+
+  private static HttpResponseCache instance;
+
+  private final File directory;
+
+  /**
+   * A cached response.
+   */
+  public static final class Entry {
+    private final String url;
+    private final File bodyFile;
+    private final String contentType;
+    private final String eTag;
+    private final String lastModified;
+    // When the response stops being fresh, in milliseconds since the epoch
+    private final long expires;
+
+    Entry(String url, File bodyFile, String contentType, String eTag, String lastModified,
+        long expires) {
+      this.url = url;
+      this.bodyFile = bodyFile;
+      this.contentType = contentType;
+      this.eTag = eTag;
+      this.lastModified = lastModified;
+      this.expires = expires;
+    }
+
+    /**
+     * Indicates whether the response can be used without revalidating it.
+     */
+    public boolean isFresh() {
+      return System.currentTimeMillis() < expires;
+    }
+
+    /**
+     * Adds the headers that ask the server to answer 304 Not Modified if
+     * the cached response is still current.
+     *
+     * @param request the request
+     */
+    public void addConditionalHeaders(HttpUriRequest request) {
+      if (eTag != null) {
+        request.addHeader(IF_NONE_MATCH_HEADER, eTag);
+      }
+      if (lastModified != null) {
+        request.addHeader(IF_MODIFIED_SINCE_HEADER, lastModified);
+      }
+    }
+
+    /**
+     * Returns a 200 OK response whose content is read from the cache.
+     *
+     * @return the response
+     * @throws IOException if the content can't be opened
+     */
+    public HttpResponse openResponse() throws IOException {
+      BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK,
+          "OK");
+      InputStreamEntity entity =
+          new InputStreamEntity(new FileInputStream(bodyFile), bodyFile.length());
+      entity.setContentType(contentType);
+      response.setEntity(entity);
+      return response;
+    }
+  }
+
+  /**
+   * Writes a response into the cache.  The response's content is written
+   * to the stream returned by {@link #getOutputStream()}, after which the
+   * response is added to the cache by {@link #commit()}, or discarded by
+   * {@link #abort()}.  If writing the content fails, for example because
+   * the disk is full, the stream ignores the failure and the response is
+   * discarded when committed, so that the response can still be read.
+   */
+  public final class Editor {
+    private final String url;
+    private final String contentType;
+    private final String eTag;
+    private final String lastModified;
+    private final long expires;
+    private final File tempFile;
+    private final ContentOutputStream out;
+
+    Editor(String url, String contentType, String eTag, String lastModified, long expires)
+        throws IOException {
+      this.url = url;
+      this.contentType = contentType;
+      this.eTag = eTag;
+      this.lastModified = lastModified;
+      this.expires = expires;
+      tempFile = File.createTempFile("response", ".tmp", directory);
+      out = new ContentOutputStream(new FileOutputStream(tempFile));
+    }
+
+    /**
+     * Returns the stream to which the response's content is written.
+     */
+    public OutputStream getOutputStream() {
+      return out;
+    }
+
+    /**
+     * Adds the response to the cache, replacing any response cached for the
+     * same URL.
+     */
+    public void commit() {
+      out.close();
+      if (out.failed) {
+        abort();
+        return;
+      }
+      synchronized (HttpResponseCache.this) {
+        String name = fileNameFor(url);
+        File bodyFile = new File(directory, name + BODY_SUFFIX);
+        if (!tempFile.renameTo(bodyFile)) {
+          abort();
+          return;
+        }
+        try {
+          writeMeta(new File(directory, name + META_SUFFIX),
+              new Entry(url, bodyFile, contentType, eTag, lastModified, expires));
+        } catch (IOException e) {
+          Log.w(LOG_TAG, "Unable to cache the response from " + url, e);
+          bodyFile.delete();
+          return;
+        }
+        evict();
+      }
+    }
+
+    /**
+     * Discards the response.
+     */
+    public void abort() {
+      out.close();
+      tempFile.delete();
+    }
+  }
+
+  /*
+   * Writes to a file, ignoring failures after logging the first.
+   */
+  private static class ContentOutputStream extends OutputStream {
+    private final OutputStream fileOut;
+    private boolean failed;
+
+    ContentOutputStream(OutputStream fileOut) {
+      this.fileOut = fileOut;
+    }
+
+    @Override
+    public void write(int b) {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      if (!failed) {
+        try {
+          fileOut.write(b, off, len);
+        } catch (IOException e) {
+          Log.w(LOG_TAG, "Unable to write a response to the cache", e);
+          failed = true;
+        }
+      }
+    }
+
+    @Override
+    public void close() {
+      try {
+        fileOut.close();
+      } catch (IOException e) {
+        failed = true;
+      }
+    }
+  }
+
+  private HttpResponseCache(File directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * Returns the application's cache.
+   *
+   * @param context the context used to find the cache directory
+   * @return the cache
+   */
+  public static synchronized HttpResponseCache getInstance(Context context) {
+    if (instance == null) {
+      instance = new HttpResponseCache(new File(context.getCacheDir(), DIRECTORY_NAME));
+    }
+    return instance;
+  }
+
+  /**
+   * Returns the response cached for the given URL.
+   *
+   * @param url the URL
+   * @return the entry, or {@code null} if no response is cached
+   */
+  public synchronized Entry get(String url) {
+    String name = fileNameFor(url);
+    File bodyFile = new File(directory, name + BODY_SUFFIX);
+    File metaFile = new File(directory, name + META_SUFFIX);
+    if (!bodyFile.isFile() || !metaFile.isFile()) {
+      return null;
+    }
+    try {
+      JSONObject meta = new JSONObject(readFile(metaFile));
+      // Another URL with the same file name may have been cached.
+      if (!url.equals(meta.getString(URL_KEY))) {
+        return null;
+      }
+      // The last modified time of the content orders the entries for eviction.
+      bodyFile.setLastModified(System.currentTimeMillis());
+      return new Entry(url, bodyFile, meta.optString(CONTENT_TYPE_KEY, null),
+          meta.optString(ETAG_KEY, null), meta.optString(LAST_MODIFIED_KEY, null),
+          meta.getLong(EXPIRES_KEY));
+    } catch (IOException e) {
+      return null;
+    } catch (JSONException e) {
+      Log.w(LOG_TAG, "Dropping unreadable cached response for " + url);
+      bodyFile.delete();
+      metaFile.delete();
+      return null;
+    }
+  }
+
+  /**
+   * Starts caching the given response to a get request, unless it can't be
+   * used again.
+   *
+   * @param url the URL of the request
+   * @param response the response
+   * @return an editor to which the response's content must be written, or
+   *         {@code null} if the response is not to be cached
+   */
+  public Editor edit(String url, HttpResponse response) {
+    if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK ||
+        response.getEntity() == null) {
+      return null;
+    }
+    long expires = getExpires(response);
+    if (expires < 0) {
+      // The response may not be stored.
+      remove(url);
+      return null;
+    }
+    String eTag = getHeaderValue(response, ETAG_HEADER);
+    String lastModified = getHeaderValue(response, LAST_MODIFIED_HEADER);
+    if (eTag == null && lastModified == null && expires <= System.currentTimeMillis()) {
+      // The response could never be used again.
+      remove(url);
+      return null;
+    }
+    Header contentType = response.getEntity().getContentType();
+    try {
+      synchronized (this) {
+        directory.mkdirs();
+      }
+      return new Editor(url, (contentType != null) ? contentType.getValue() : null, eTag,
+          lastModified, expires);
+    } catch (IOException e) {
+      Log.w(LOG_TAG, "Unable to cache the response from " + url, e);
+      return null;
+    }
+  }
+
+  /**
+   * Renews a cached response that the server has said, with a 304 Not
+   * Modified response, is still current.
+   *
+   * @param entry the cached response
+   * @param response the 304 response
+   * @return the renewed entry
+   */
+  public synchronized Entry update(Entry entry, HttpResponse response) {
+    long expires = getExpires(response);
+    if (expires < 0) {
+      remove(entry.url);
+      return entry;
+    }
+    // A 304 response may carry new validators.
+    String eTag = getHeaderValue(response, ETAG_HEADER);
+    String lastModified = getHeaderValue(response, LAST_MODIFIED_HEADER);
+    Entry updated = new Entry(entry.url, entry.bodyFile, entry.contentType,
+        (eTag != null) ? eTag : entry.eTag,
+        (lastModified != null) ? lastModified : entry.lastModified, expires);
+    try {
+      writeMeta(new File(directory, fileNameFor(entry.url) + META_SUFFIX), updated);
+    } catch (IOException e) {
+      Log.w(LOG_TAG, "Unable to update the cached response for " + entry.url, e);
+    }
+    return updated;
+  }
+
+  /**
+   * Removes the response cached for the given URL, if any.
+   *
+   * @param url the URL
+   */
+  public synchronized void remove(String url) {
+    String name = fileNameFor(url);
+    new File(directory, name + BODY_SUFFIX).delete();
+    new File(directory, name + META_SUFFIX).delete();
+  }
+
+  // Deletes the least recently used responses until the content of those
+  // left fits in MAX_SIZE_BYTES.
+  private void evict() {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    List<File> bodyFiles = new ArrayList<File>();
+    long size = 0;
+    for (File file : files) {
+      if (file.getName().endsWith(BODY_SUFFIX)) {
+        bodyFiles.add(file);
+        size += file.length();
+      }
+    }
+    if (size <= MAX_SIZE_BYTES) {
+      return;
+    }
+    File[] sorted = bodyFiles.toArray(new File[bodyFiles.size()]);
+    Arrays.sort(sorted, new Comparator<File>() {
+      public int compare(File file1, File file2) {
+        long time1 = file1.lastModified();
+        long time2 = file2.lastModified();
+        return (time1 < time2) ? -1 : (time1 == time2) ? 0 : 1;
+      }
+    });
+    for (int i = 0; i < sorted.length && size > MAX_SIZE_BYTES; i++) {
+      File bodyFile = sorted[i];
+      String bodyName = bodyFile.getName();
+      size -= bodyFile.length();
+      bodyFile.delete();
+      new File(directory,
+          bodyName.substring(0, bodyName.length() - BODY_SUFFIX.length()) + META_SUFFIX).delete();
+    }
+  }
+
+  /*
+   * Returns when the response stops being fresh, in milliseconds since the
+   * epoch, or -1 if it may not be stored.  A response with neither a max-age
+   * nor an Expires header is never fresh, and is always revalidated.
+   */
+  private static long getExpires(HttpResponse response) {
+    long now = System.currentTimeMillis();
+    Header cacheControl = response.getFirstHeader(CACHE_CONTROL_HEADER);
+    if (cacheControl != null) {
+      long expires = -2;
+      for (HeaderElement element : cacheControl.getElements()) {
+        String name = element.getName();
+        if (name.equalsIgnoreCase("no-store")) {
+          return -1;
+        } else if (name.equalsIgnoreCase("no-cache") || name.equalsIgnoreCase("must-revalidate")) {
+          expires = 0;
+        } else if (name.equalsIgnoreCase("max-age") && expires != 0) {
+          try {
+            expires = now + Long.parseLong(element.getValue()) * 1000;
+          } catch (NumberFormatException e) {
+            expires = 0;
+          }
+        }
+      }
+      if (expires != -2) {
+        return expires;
+      }
+    }
+    String expiresHeader = getHeaderValue(response, EXPIRES_HEADER);
+    if (expiresHeader != null) {
+      try {
+        return DateUtils.parseDate(expiresHeader).getTime();
+      } catch (DateParseException e) {
+        // An invalid date means the response has already expired.
+        return 0;
+      }
+    }
+    return 0;
+  }
+
+  private static String getHeaderValue(HttpResponse response, String name) {
+    Header header = response.getFirstHeader(name);
+    return (header != null) ? header.getValue() : null;
+  }
+
+  private static String fileNameFor(String url) {
+    // Collisions are detected by the URL stored with each response.
+    return Integer.toHexString(url.hashCode());
+  }
+
+  private static void writeMeta(File metaFile, Entry entry) throws IOException {
+    JSONObject meta = new JSONObject();
+    try {
+      meta.put(URL_KEY, entry.url);
+      meta.put(CONTENT_TYPE_KEY, entry.contentType);
+      meta.put(ETAG_KEY, entry.eTag);
+      meta.put(LAST_MODIFIED_KEY, entry.lastModified);
+      meta.put(EXPIRES_KEY, entry.expires);
+    } catch (JSONException e) {
+      // Can't happen, since the expiry time is not a double.
+      throw new IOException(e.getMessage());
+    }
+    Writer writer = new FileWriter(metaFile);
+    try {
+      writer.write(meta.toString());
+    } finally {
+      writer.close();
+    }
+  }
+
+  private static String readFile(File file) throws IOException {
+    Reader reader = new FileReader(file);
+    try {
+      StringBuilder sb = new StringBuilder();
+      char[] buffer = new char[1024];
+      int read;
+      while ((read = reader.read(buffer)) != -1) {
+        sb.append(buffer, 0, read);
+      }
+      return sb.toString();
+    } finally {
+      reader.close();
+    }
+  }
+}
@@ -0,0 +1,354 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.devtools.simple.runtime.components.android.util;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.params.CookiePolicy;
+import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.AbstractHttpClient;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultRedirectHandler;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The HTTP transport shared by the components that make Web requests.
+ *
+ * <p>Requests are sent through a single {@link AbstractHttpClient} whose
+ * connections are pooled and kept alive between requests, up to
+ * {@link #MAX_CONNECTIONS_PER_HOST} to each host.  Responses are requested
+ * gzip-compressed and are decompressed as they are read.  Each request is
+ * given its own timeout, so that components can wait as long as suits
+ * them without affecting each other.  Counts of the requests made and the
+ * connections used are kept for tuning, and are available from
+ * {@link #getStats()}.
+ *
+ * <p>As with {@link java.net.HttpURLConnection}, a request of any method
+ * that is answered with a 301, 302 or 303 redirect is followed with a GET
+ * to the new location.  Other redirects are followed only for GET and HEAD
+ * requests.
+ *
+ * <p>Cookies are ignored unless a request asks for them by setting its own
+ * cookie policy, so that a cookie set by a response to one component isn't
+ * sent back on the requests of every other component.
+ *
+ * <p>The shared transport can be replaced with {@link #setInstance}, for
+ * example by one that sends requests through a differently configured
+ * client.
+ *
+ */
+public class HttpTransport {
+  /**
+   * The largest number of connections kept to each host.  This is more than
+   * {@link RequestQueue#MAX_TOTAL_CONCURRENT_REQUESTS}, so that requests
+   * from the queue leave connections for long polls and other components
+   * using the same host.
+   */
+  public static final int MAX_CONNECTIONS_PER_HOST = 12;
+
+  /**
+   * The largest number of connections kept in all.
+   */
+  public static final int MAX_TOTAL_CONNECTIONS = 24;
+
+  // How long an idle connection is kept for reuse.
+  private static final long IDLE_CONNECTION_SECONDS = 30;
+
+  private static final String ACCEPT_ENCODING_HEADER = "Accept-Encoding";
+  private static final String GZIP_ENCODING = "gzip";
+
+  private static final Object instanceLock = new Object();
+  private static HttpTransport instance;
+
+  private final AbstractHttpClient httpClient;
+
+  private final AtomicInteger requestCount = new AtomicInteger();
+  private final AtomicInteger failedRequestCount = new AtomicInteger();
+  private final AtomicInteger reusedConnectionCount = new AtomicInteger();
+  private final AtomicInteger compressedResponseCount = new AtomicInteger();
+
+  /**
+   * Counts of the requests made through a transport and the connections
+   * used, as returned by {@link HttpTransport#getStats()}.
+   */
+  public static final class Stats {
+    private final int requestCount;
+    private final int failedRequestCount;
+    private final int reusedConnectionCount;
+    private final int compressedResponseCount;
+    private final int pooledConnectionCount;
+
+    Stats(int requestCount, int failedRequestCount, int reusedConnectionCount,
+        int compressedResponseCount, int pooledConnectionCount) {
+      this.requestCount = requestCount;
+      this.failedRequestCount = failedRequestCount;
+      this.reusedConnectionCount = reusedConnectionCount;
+      this.compressedResponseCount = compressedResponseCount;
+      this.pooledConnectionCount = pooledConnectionCount;
+    }
+
+    /**
+     * Returns the number of requests sent, including those that failed.
+     */
+    public int getRequestCount() {
+      return requestCount;
+    }
+
+    /**
+     * Returns the number of requests that failed without a response.
+     */
+    public int getFailedRequestCount() {
+      return failedRequestCount;
+    }
+
+    /**
+     * Returns the number of requests sent on a connection kept alive from
+     * an earlier request.
+     */
+    public int getReusedConnectionCount() {
+      return reusedConnectionCount;
+    }
+
+    /**
+     * Returns the number of responses received gzip-compressed.
+     */
+    public int getCompressedResponseCount() {
+      return compressedResponseCount;
+    }
+
+    /**
+     * Returns the number of connections currently open, whether in use or
+     * idle, or -1 if the client's connection manager doesn't say.
+     */
+    public int getPooledConnectionCount() {
+      return pooledConnectionCount;
+    }
+
+    @Override
+    public String toString() {
+      return "requests=" + requestCount + ", failed=" + failedRequestCount +
+          ", reused=" + reusedConnectionCount + ", compressed=" + compressedResponseCount +
+          ", pooled=" + pooledConnectionCount;
+    }
+  }
+
+  /**
+   * Creates a transport that sends requests through the given client.
+   * Interceptors that request and decompress gzip-compressed responses,
+   * and that count reused connections, are added to the client.
+   *
+   * @param httpClient the client
+   */
+  public HttpTransport(AbstractHttpClient httpClient) {
+    this.httpClient = httpClient;
+    httpClient.addRequestInterceptor(new HttpRequestInterceptor() {
+      public void process(HttpRequest request, HttpContext context) {
+        if (!request.containsHeader(ACCEPT_ENCODING_HEADER)) {
+          request.addHeader(ACCEPT_ENCODING_HEADER, GZIP_ENCODING);
+        }
+        Object connection = context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+        if (connection instanceof HttpConnection &&
+            ((HttpConnection) connection).getMetrics().getRequestCount() > 0) {
+          reusedConnectionCount.incrementAndGet();
+        }
+      }
+    });
+    httpClient.addResponseInterceptor(new HttpResponseInterceptor() {
+      public void process(HttpResponse response, HttpContext context)
+          throws HttpException, IOException {
+        HttpEntity entity = response.getEntity();
+        if (entity != null && entity.getContentLength() != 0 && isGzipped(entity)) {
+          compressedResponseCount.incrementAndGet();
+          response.setEntity(new GzipDecompressingEntity(entity));
+        }
+      }
+    });
+  }
+
+  /**
+   * Returns the shared transport, creating it if necessary.
+   *
+   * @return the shared transport
+   */
+  public static HttpTransport getInstance() {
+    // This needs to be here instead of in a static initializer because
+    // it uses classes that are in the Android SDK and thus would
+    // cause Stub! errors when running the component descriptor.
+    synchronized (instanceLock) {
+      if (instance == null) {
+        instance = new HttpTransport(createDefaultClient());
+      }
+      return instance;
+    }
+  }
+
+  /**
+   * Replaces the shared transport.  Requests already sent are not
+   * affected.
+   *
+   * @param transport the new shared transport
+   */
+  public static void setInstance(HttpTransport transport) {
+    synchronized (instanceLock) {
+      instance = transport;
+    }
+  }
+
+  /**
+   * Sends a request and returns its response.  The caller must read or
+   * consume the response's entity, or abort the request, so that the
+   * connection can be reused.
+   *
+   * @param request the request
+   * @param timeoutMillis how long to wait for a free connection to the
+   *        host, then to connect, and then for each read from the
+   *        connection, or 0 to wait indefinitely
+   * @return the response
+   * @throws IOException if the request fails or times out
+   */
+  public HttpResponse execute(HttpUriRequest request, int timeoutMillis) throws IOException {
+    HttpParams params = request.getParams();
+    ConnManagerParams.setTimeout(params, timeoutMillis);
+    HttpConnectionParams.setConnectionTimeout(params, timeoutMillis);
+    HttpConnectionParams.setSoTimeout(params, timeoutMillis);
+    httpClient.getConnectionManager().closeIdleConnections(IDLE_CONNECTION_SECONDS,
+        TimeUnit.SECONDS);
+
+    requestCount.incrementAndGet();
+    try {
+      return httpClient.execute(request);
+    } catch (IOException e) {
+      failedRequestCount.incrementAndGet();
+      throw e;
+    } catch (RuntimeException e) {
+      // For example, an IllegalStateException for a URL with no host
+      failedRequestCount.incrementAndGet();
+      throw e;
+    }
+  }
+
+  /**
+   * Returns counts of the requests made through this transport and the
+   * connections used.
+   *
+   * @return the counts
+   */
+  public Stats getStats() {
+    ClientConnectionManager manager = httpClient.getConnectionManager();
+    int pooledConnectionCount = (manager instanceof ThreadSafeClientConnManager)
+        ? ((ThreadSafeClientConnManager) manager).getConnectionsInPool()
+        : -1;
+    return new Stats(requestCount.get(), failedRequestCount.get(), reusedConnectionCount.get(),
+        compressedResponseCount.get(), pooledConnectionCount);
+  }
+
+  private static AbstractHttpClient createDefaultClient() {
+    SchemeRegistry schemeRegistry = new SchemeRegistry();
+    schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+    schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+    BasicHttpParams params = new BasicHttpParams();
+    ConnManagerParams.setMaxTotalConnections(params, MAX_TOTAL_CONNECTIONS);
+    ConnManagerParams.setMaxConnectionsPerRoute(params,
+        new ConnPerRouteBean(MAX_CONNECTIONS_PER_HOST));
+    ThreadSafeClientConnManager manager = new ThreadSafeClientConnManager(params,
+        schemeRegistry);
+    HttpClientParams.setCookiePolicy(params, CookiePolicy.IGNORE_COOKIES);
+    DefaultHttpClient client = new DefaultHttpClient(manager, params);
+    client.setRedirectHandler(new DefaultRedirectHandler() {
+      @Override
+      public boolean isRedirectRequested(HttpResponse response, HttpContext context) {
+        switch (response.getStatusLine().getStatusCode()) {
+          case HttpStatus.SC_MOVED_PERMANENTLY:
+          case HttpStatus.SC_MOVED_TEMPORARILY:
+          case HttpStatus.SC_SEE_OTHER:
+            // The client follows every redirect with a GET.
+            return true;
+          default:
+            return super.isRedirectRequested(response, context);
+        }
+      }
+    });
+    return client;
+  }
+
+  private static boolean isGzipped(HttpEntity entity) {
+    Header encoding = entity.getContentEncoding();
+    if (encoding != null) {
+      for (HeaderElement element : encoding.getElements()) {
+        if (element.getName().equalsIgnoreCase(GZIP_ENCODING)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /*
+   * An entity whose content is the decompressed content of a
+   * gzip-compressed entity.
+   */
+  private static class GzipDecompressingEntity extends HttpEntityWrapper {
+    GzipDecompressingEntity(HttpEntity entity) {
+      super(entity);
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+      return new GZIPInputStream(wrappedEntity.getContent());
+    }
+
+    @Override
+    public long getContentLength() {
+      // The decompressed length isn't known.
+      return -1;
+    }
+
+    @Override
+    public Header getContentEncoding() {
+      return null;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+      InputStream in = getContent();
+      try {
+        byte[] buffer = new byte[0x1000];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+          out.write(buffer, 0, read);
+        }
+      } finally {
+        in.close();
+      }
+    }
+  }
+}
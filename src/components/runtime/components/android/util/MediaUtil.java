@@ -152,6 +152,50 @@ public class MediaUtil {
     return openMedia(form, mediaPath, determineMediaSource(form, mediaPath));
   }
 
+  /**
+   * Returns the length of the media specified by mediaPath, if it can be
+   * found without reading the media.
+   *
+   * @param form the Form
+   * @param mediaPath the path to the media
+   * @return the length, in bytes, or -1 if it isn't known
+   */
+  public static long getMediaLength(Form form, String mediaPath) {
+    switch (determineMediaSource(form, mediaPath)) {
+      case ASSET:
+        // Only assets that are stored uncompressed have a file descriptor.
+        try {
+          AssetFileDescriptor fd = form.getAssets().openFd(mediaPath);
+          try {
+            return fd.getLength();
+          } finally {
+            fd.close();
+          }
+        } catch (IOException e) {
+          return -1;
+        }
+
+      case REPL_ASSET:
+        return fileLength(new File(replAssetPath(mediaPath)));
+
+      case SDCARD:
+        return fileLength(new File(mediaPath));
+
+      case FILE_URL:
+        try {
+          return fileLength(new File(fileUrlToFilePath(mediaPath)));
+        } catch (IOException e) {
+          return -1;
+        }
+    }
+    return -1;
+  }
+
+  private static long fileLength(File file) {
+    // File.length returns 0 for a file that doesn't exist.
+    return file.isFile() ? file.length() : -1;
+  }
+
   /**
    * Copies the media specified by mediaPath to a temp file and returns the
    * File.
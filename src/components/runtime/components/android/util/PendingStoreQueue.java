@@ -0,0 +1,218 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.devtools.simple.runtime.components.android.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A durable queue of values waiting to be stored in a TinyWebDB Web
+ * service.
+ *
+ * <p>The queue holds at most one value for each tag of each service:
+ * putting a value for a tag that already has one waiting replaces it, so
+ * that a tag stored repeatedly while offline is sent only once, with its
+ * latest value.  Each put is given a sequence number, and entries are
+ * returned in the order of their sequence numbers, so that values reach
+ * the service in the order in which they were last stored.
+ *
+ * <p>The queue is kept in memory and written through to the application's
+ * shared preferences on every change, so that values waiting to be sent
+ * survive the application being stopped.  The preferences are written in
+ * a separate thread, since values are put from the UI thread.  Each entry also remembers, in
+ * memory only, the object that put it, so that only that object is told
+ * when the value has been sent.
+ *
+ * <p>The queue is shared by the whole application, so callers must not
+ * send the entries for the same service from two threads at once.
+ *
+ */
+public final class PendingStoreQueue {
+  private static final String LOG_TAG = "PendingStoreQueue";
+
+  // The name of the shared preferences file holding the queue
+  private static final String PREFS_NAME = "TinyWebDB_PendingStores";
+
+  private static PendingStoreQueue instance;
+
+  /**
+   * A value waiting to be stored.
+   */
+  public static final class Entry {
+    private final String serviceURL;
+    private final String tag;
+    private final String jsonValue;
+    private final long sequence;
+    // The object that put the value, or null if it was put by an earlier
+    // run of the application.  This is weakly held so that a queued value
+    // doesn't keep a destroyed form alive.
+    private final WeakReference<Object> owner;
+
+    Entry(String serviceURL, String tag, String jsonValue, long sequence, Object owner) {
+      this.serviceURL = serviceURL;
+      this.tag = tag;
+      this.jsonValue = jsonValue;
+      this.sequence = sequence;
+      this.owner = (owner != null) ? new WeakReference<Object>(owner) : null;
+    }
+
+    public String getServiceURL() {
+      return serviceURL;
+    }
+
+    public String getTag() {
+      return tag;
+    }
+
+    /**
+     * Returns the JSON representation of the value.
+     */
+    public String getJsonValue() {
+      return jsonValue;
+    }
+
+    /**
+     * Returns the object that put the value, or {@code null} if it was put
+     * by an earlier run of the application or has since been collected.
+     */
+    public Object getOwner() {
+      return (owner != null) ? owner.get() : null;
+    }
+  }
+
+  private final SharedPreferences preferences;
+  private final SharedPreferencesWriter writer;
+  // The entries, by the key under which they are persisted
+  private final Map<String, Entry> entries = new HashMap<String, Entry>();
+  private long nextSequence;
+
+  private PendingStoreQueue(SharedPreferences preferences) {
+    this.preferences = preferences;
+    writer = new SharedPreferencesWriter(preferences);
+    load();
+  }
+
+  /**
+   * Returns the application's queue, loading it if necessary.
+   *
+   * @param context the context used to reach the shared preferences
+   * @return the queue
+   */
+  public static synchronized PendingStoreQueue getInstance(Context context) {
+    if (instance == null) {
+      instance = new PendingStoreQueue(
+          context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE));
+    }
+    return instance;
+  }
+
+  /**
+   * Adds a value to the queue, replacing any value waiting for the same
+   * tag of the same service.
+   *
+   * @param serviceURL the URL of the service
+   * @param tag the tag
+   * @param jsonValue the JSON representation of the value
+   * @param owner the object putting the value
+   */
+  public synchronized void put(String serviceURL, String tag, String jsonValue, Object owner) {
+    String key = keyFor(serviceURL, tag);
+    Entry entry = new Entry(serviceURL, tag, jsonValue, nextSequence++, owner);
+    entries.put(key, entry);
+    writer.putString(key, new JSONArray().put(entry.sequence).put(jsonValue).toString());
+  }
+
+  /**
+   * Returns the value waiting for the given tag of the given service.
+   *
+   * @param serviceURL the URL of the service
+   * @param tag the tag
+   * @return the entry, or {@code null} if no value is waiting
+   */
+  public synchronized Entry get(String serviceURL, String tag) {
+    return entries.get(keyFor(serviceURL, tag));
+  }
+
+  /**
+   * Returns the values waiting for the given service, in the order in
+   * which they were put.
+   *
+   * @param serviceURL the URL of the service
+   * @return the entries
+   */
+  public synchronized List<Entry> getEntries(String serviceURL) {
+    List<Entry> result = new ArrayList<Entry>();
+    for (Entry entry : entries.values()) {
+      if (entry.serviceURL.equals(serviceURL)) {
+        result.add(entry);
+      }
+    }
+    Collections.sort(result, new Comparator<Entry>() {
+      public int compare(Entry entry1, Entry entry2) {
+        return (entry1.sequence < entry2.sequence) ? -1 :
+            (entry1.sequence == entry2.sequence) ? 0 : 1;
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Removes an entry from the queue.  Nothing is removed if another value
+   * has been put for the same tag since the entry was returned, so that
+   * the newer value is still sent.
+   *
+   * @param entry the entry
+   * @return whether the entry was removed
+   */
+  public synchronized boolean remove(Entry entry) {
+    String key = keyFor(entry.serviceURL, entry.tag);
+    if (entries.get(key) != entry) {
+      return false;
+    }
+    entries.remove(key);
+    writer.remove(key);
+    return true;
+  }
+
+  /**
+   * Returns the number of values waiting.
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  private void load() {
+    for (Map.Entry<String, ?> pref : preferences.getAll().entrySet()) {
+      try {
+        JSONArray key = new JSONArray(pref.getKey());
+        JSONArray value = new JSONArray((String) pref.getValue());
+        Entry entry = new Entry(key.getString(0), key.getString(1), value.getString(1),
+            value.getLong(0), null);
+        entries.put(pref.getKey(), entry);
+        nextSequence = Math.max(nextSequence, entry.sequence + 1);
+      } catch (JSONException e) {
+        Log.w(LOG_TAG, "Dropping unreadable pending store " + pref.getKey());
+        preferences.edit().remove(pref.getKey()).commit();
+      } catch (ClassCastException e) {
+        Log.w(LOG_TAG, "Dropping unreadable pending store " + pref.getKey());
+        preferences.edit().remove(pref.getKey()).commit();
+      }
+    }
+  }
+
+  private static String keyFor(String serviceURL, String tag) {
+    return new JSONArray().put(serviceURL).put(tag).toString();
+  }
+}
@@ -0,0 +1,207 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.devtools.simple.runtime.components.android.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A queue of Web requests that runs them in separate threads, a limited
+ * number at a time.
+ *
+ * <p>Each queue, normally one per component, runs at most its own maximum
+ * number of requests at once, and all the queues together run at most
+ * {@link #MAX_TOTAL_CONCURRENT_REQUESTS}.  A request waiting to run is
+ * started ahead of those with lower priorities, and after those with the
+ * same priority that were added before it.
+ *
+ * <p>Requests are run in threads of their own rather than by
+ * {@link AsynchUtil}, so that requests waiting for slow servers don't hold
+ * up the other asynchronous calls of the application.
+ *
+ */
+public final class RequestQueue {
+  /**
+   * The largest number of requests run at once by all the queues together.
+   */
+  public static final int MAX_TOTAL_CONCURRENT_REQUESTS = 8;
+
+  private static final long KEEP_ALIVE_SECONDS = 30;
+
+  // Guards the waiting requests and the counts of running requests.
+  private static final Object lock = new Object();
+  // The requests waiting to run, in the order in which they are to start
+  private static final List<Request> waiting = new ArrayList<Request>();
+  private static int totalRunning;
+  private static long nextSequence;
+
+  private static ThreadPoolExecutor executor;
+  private static int threadCount;
+
+  private int maxConcurrentRequests;
+  private int running;
+
+  private static final class Request {
+    private final RequestQueue queue;
+    private final Runnable call;
+    private final int priority;
+    private final long sequence;
+
+    Request(RequestQueue queue, Runnable call, int priority, long sequence) {
+      this.queue = queue;
+      this.call = call;
+      this.priority = priority;
+      this.sequence = sequence;
+    }
+
+    boolean startsBefore(Request other) {
+      return (priority != other.priority) ? priority > other.priority : sequence < other.sequence;
+    }
+  }
+
+  /**
+   * Creates a queue.
+   *
+   * @param maxConcurrentRequests the largest number of the queue's requests
+   *        to run at once
+   */
+  public RequestQueue(int maxConcurrentRequests) {
+    this.maxConcurrentRequests = Math.max(1, maxConcurrentRequests);
+  }
+
+  /**
+   * Changes the largest number of the queue's requests to run at once.
+   * Requests already running are not stopped.
+   *
+   * @param maxConcurrentRequests the largest number of requests, at least 1
+   */
+  public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+    synchronized (lock) {
+      this.maxConcurrentRequests = Math.max(1, maxConcurrentRequests);
+    }
+    startRequests();
+  }
+
+  /**
+   * Adds a request to the queue.
+   *
+   * @param call the request, run in a separate thread
+   * @param priority the priority of the request; higher priorities start first
+   */
+  public void add(Runnable call, int priority) {
+    synchronized (lock) {
+      Request request = new Request(this, call, priority, nextSequence++);
+      int index = waiting.size();
+      while (index > 0 && request.startsBefore(waiting.get(index - 1))) {
+        index--;
+      }
+      waiting.add(index, request);
+    }
+    startRequests();
+  }
+
+  /**
+   * Removes the queue's requests that haven't started yet.  Requests
+   * already running are not affected.
+   *
+   * @return the number of requests removed
+   */
+  public int cancelAll() {
+    int cancelled = 0;
+    synchronized (lock) {
+      for (Iterator<Request> iterator = waiting.iterator(); iterator.hasNext(); ) {
+        if (iterator.next().queue == this) {
+          iterator.remove();
+          cancelled++;
+        }
+      }
+    }
+    return cancelled;
+  }
+
+  /**
+   * Returns the number of the queue's requests waiting to start.
+   */
+  public int getWaitingCount() {
+    int count = 0;
+    synchronized (lock) {
+      for (Request request : waiting) {
+        if (request.queue == this) {
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Returns the number of the queue's requests running.
+   */
+  public int getRunningCount() {
+    synchronized (lock) {
+      return running;
+    }
+  }
+
+  // Starts as many of the waiting requests as the limits allow.
+  private static void startRequests() {
+    List<Request> starting = new ArrayList<Request>();
+    synchronized (lock) {
+      for (Iterator<Request> iterator = waiting.iterator();
+           iterator.hasNext() && totalRunning < MAX_TOTAL_CONCURRENT_REQUESTS; ) {
+        Request request = iterator.next();
+        if (request.queue.running < request.queue.maxConcurrentRequests) {
+          iterator.remove();
+          request.queue.running++;
+          totalRunning++;
+          starting.add(request);
+        }
+      }
+    }
+    for (final Request request : starting) {
+      getExecutor().execute(new Runnable() {
+        public void run() {
+          try {
+            request.call.run();
+          } finally {
+            synchronized (lock) {
+              request.queue.running--;
+              totalRunning--;
+            }
+            startRequests();
+          }
+        }
+      });
+    }
+  }
+
+  private static ThreadPoolExecutor getExecutor() {
+    synchronized (lock) {
+      if (executor == null) {
+        // No more than MAX_TOTAL_CONCURRENT_REQUESTS requests are ever given
+        // to the executor at once, so it never needs to queue them.
+        executor = new ThreadPoolExecutor(MAX_TOTAL_CONCURRENT_REQUESTS,
+            MAX_TOTAL_CONCURRENT_REQUESTS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+              public Thread newThread(Runnable runnable) {
+                synchronized (lock) {
+                  return new Thread(runnable, "RequestQueue-" + (++threadCount));
+                }
+              }
+            });
+        if (SdkLevel.getLevel() >= SdkLevel.LEVEL_GINGERBREAD) {
+          // As in AsynchUtil, idle threads only time out on SDKs that
+          // support it.
+          executor.allowCoreThreadTimeOut(true);
+        }
+      }
+      return executor;
+    }
+  }
+}
@@ -0,0 +1,88 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.devtools.simple.runtime.components.android.util;
+
+import android.content.SharedPreferences;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Writes changes to shared preferences in a separate thread.
+ *
+ * <p>{@link SharedPreferences.Editor#commit} rewrites the whole
+ * preferences file before it returns, which is too slow for the UI thread,
+ * and {@code apply}, which writes in the background, is not available
+ * before Gingerbread.  Changes given to this writer are written by a
+ * serial call made with {@link AsynchUtil}, in the order in which they
+ * were made.  Changes made while a write is waiting to start are written
+ * with it, so that a burst of changes rewrites the file only once.
+ *
+ * <p>As with {@code apply}, a change is lost if the process ends before
+ * it has been written.
+ *
+ */
+public final class SharedPreferencesWriter {
+  private final SharedPreferences preferences;
+  // The values to write, by key, or null for the keys to remove, in the
+  // order in which they were changed
+  private Map<String, String> changes = new LinkedHashMap<String, String>();
+  private boolean writeScheduled;
+
+  private final Runnable write = new Runnable() {
+    public void run() {
+      Map<String, String> written;
+      synchronized (SharedPreferencesWriter.this) {
+        written = changes;
+        changes = new LinkedHashMap<String, String>();
+        writeScheduled = false;
+      }
+      SharedPreferences.Editor editor = preferences.edit();
+      for (Map.Entry<String, String> change : written.entrySet()) {
+        if (change.getValue() != null) {
+          editor.putString(change.getKey(), change.getValue());
+        } else {
+          editor.remove(change.getKey());
+        }
+      }
+      editor.commit();
+    }
+  };
+
+  /**
+   * Creates a writer for the given preferences.
+   *
+   * @param preferences the preferences
+   */
+  public SharedPreferencesWriter(SharedPreferences preferences) {
+    this.preferences = preferences;
+  }
+
+  /**
+   * Sets the value of a preference.
+   *
+   * @param key the name of the preference
+   * @param value the new value
+   */
+  public synchronized void putString(String key, String value) {
+    changes.put(key, value);
+    scheduleWrite();
+  }
+
+  /**
+   * Removes a preference.
+   *
+   * @param key the name of the preference
+   */
+  public synchronized void remove(String key) {
+    changes.put(key, null);
+    scheduleWrite();
+  }
+
+  private void scheduleWrite() {
+    if (!writeScheduled) {
+      writeScheduled = true;
+      AsynchUtil.runSerially(this, write);
+    }
+  }
+}
@@ -0,0 +1,97 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.devtools.simple.runtime.components.android.util;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An HTTP entity whose content is streamed from an input stream as the
+ * request is sent, and whose progress is reported to a listener.
+ *
+ * <p>If the length of the content is known, the request is sent with a
+ * Content-Length header; otherwise it is sent chunked.  The content is
+ * copied in blocks of {@link #BUFFER_SIZE} bytes, which the connection
+ * writes straight to its socket rather than through its own buffer.
+ *
+ * <p>The stream can only be read once, so the entity is not repeatable,
+ * and the request can't be retried after it has started to be sent.
+ *
+ */
+public class StreamingUploadEntity extends AbstractHttpEntity {
+  /**
+   * The size of the blocks in which the content is copied.
+   */
+  public static final int BUFFER_SIZE = 16 * 1024;
+
+  private final InputStream in;
+  private final long length;
+  private final TransferProgressListener listener;
+  private boolean consumed;
+
+  /**
+   * Creates an entity whose content is read from the given stream.
+   *
+   * @param in the stream
+   * @param length the number of bytes to send, or -1 to send everything
+   *        up to the end of the stream, which must then be sent chunked
+   * @param listener the listener told of the bytes sent, or {@code null}
+   */
+  public StreamingUploadEntity(InputStream in, long length, TransferProgressListener listener) {
+    this.in = in;
+    this.length = length;
+    this.listener = listener;
+    setChunked(length < 0);
+  }
+
+  public long getContentLength() {
+    return length;
+  }
+
+  public InputStream getContent() {
+    return in;
+  }
+
+  public boolean isRepeatable() {
+    return false;
+  }
+
+  public boolean isStreaming() {
+    return !consumed;
+  }
+
+  public void writeTo(OutputStream out) throws IOException {
+    byte[] buffer = new byte[BUFFER_SIZE];
+    long sent = 0;
+    try {
+      while (length < 0 || sent < length) {
+        int toRead = (length < 0) ? BUFFER_SIZE : (int) Math.min(BUFFER_SIZE, length - sent);
+        int read = in.read(buffer, 0, toRead);
+        if (read == -1) {
+          if (length >= 0) {
+            throw new IOException("The content ended after " + sent + " of " + length +
+                " bytes.");
+          }
+          break;
+        }
+        out.write(buffer, 0, read);
+        sent += read;
+        if (listener != null) {
+          listener.onProgress(sent, length);
+        }
+      }
+      out.flush();
+    } finally {
+      consumed = true;
+    }
+  }
+
+  @Override
+  public void consumeContent() throws IOException {
+    consumed = true;
+    in.close();
+  }
+}
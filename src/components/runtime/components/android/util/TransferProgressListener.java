@@ -0,0 +1,18 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.devtools.simple.runtime.components.android.util;
+
+/**
+ * Callback for reporting the progress of sending or receiving data.
+ *
+ */
+public interface TransferProgressListener {
+  /**
+   * Called after each block of data has been sent or received.
+   *
+   * @param bytesTransferred the number of bytes sent or received so far
+   * @param totalBytes the total number of bytes to be sent or received, or
+   *        -1 if it isn't known
+   */
+  void onProgress(long bytesTransferred, long totalBytes);
+}
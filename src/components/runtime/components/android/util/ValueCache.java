@@ -0,0 +1,259 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.devtools.simple.runtime.components.android.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A cache of the values retrieved from TinyWebDB Web services.
+ *
+ * <p>Values are cached under their service URL and tag, as the JSON text
+ * returned by the service, together with the time they were retrieved, so
+ * that each value can be checked against its own time to live.  At most
+ * {@link #MAX_ENTRIES} values are kept; when there are more, the least
+ * recently used is evicted.
+ *
+ * <p>The cache is kept in memory and written through to the application's
+ * shared preferences, in a separate thread, so that cached values survive
+ * the application being stopped.  When a value is retrieved again unchanged, only its retrieval
+ * time changes, and that is saved with the next change to the cache
+ * rather than rewriting the preferences file each time.  If it is lost,
+ * the value is just checked with the service sooner.
+ *
+ * <p>A value is removed when a new one is stored under its tag.  A value
+ * retrieved by a request made before then is out of date, so the number
+ * of removals is counted for each tag, and {@link #put} ignores a value
+ * whose tag has been removed since its request was made.
+ *
+ */
+public final class ValueCache {
+  private static final String LOG_TAG = "ValueCache";
+
+  /**
+   * The largest number of values cached.
+   */
+  public static final int MAX_ENTRIES = 100;
+
+  // The name of the shared preferences file holding the cache
+  private static final String PREFS_NAME = "TinyWebDB_Cache";
+
+  private static ValueCache instance;
+
+  /**
+   * A cached value.
+   */
+  public static final class Entry {
+    private final String jsonValue;
+    private final long retrievedAt;
+
+    Entry(String jsonValue, long retrievedAt) {
+      this.jsonValue = jsonValue;
+      this.retrievedAt = retrievedAt;
+    }
+
+    /**
+     * Returns the JSON text of the value, as returned by the service.
+     */
+    public String getJsonValue() {
+      return jsonValue;
+    }
+
+    /**
+     * Indicates whether the value was retrieved longer ago than the given
+     * time to live.
+     *
+     * @param timeToLiveMillis the time to live, in milliseconds
+     * @return whether the value should be retrieved again
+     */
+    public boolean isStale(long timeToLiveMillis) {
+      long age = System.currentTimeMillis() - retrievedAt;
+      // A negative age means the clock was set back.
+      return age < 0 || age >= timeToLiveMillis;
+    }
+  }
+
+  private final SharedPreferences preferences;
+  private final SharedPreferencesWriter writer;
+  // The entries, by the key under which they are persisted, least recently
+  // used first
+  private final LinkedHashMap<String, Entry> entries =
+      new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  // The keys of the entries whose retrieval time has changed since they
+  // were last persisted
+  private final Set<String> unsavedKeys = new HashSet<String>();
+  // The number of times each key has been removed since the application
+  // started, for the keys that have been removed
+  private final Map<String, Integer> removalCounts = new HashMap<String, Integer>();
+
+  private ValueCache(SharedPreferences preferences) {
+    this.preferences = preferences;
+    writer = new SharedPreferencesWriter(preferences);
+    load();
+  }
+
+  /**
+   * Returns the application's cache, loading it if necessary.
+   *
+   * @param context the context used to reach the shared preferences
+   * @return the cache
+   */
+  public static synchronized ValueCache getInstance(Context context) {
+    if (instance == null) {
+      instance = new ValueCache(
+          context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE));
+    }
+    return instance;
+  }
+
+  /**
+   * Returns the cached value for the given tag of the given service.
+   *
+   * @param serviceURL the URL of the service
+   * @param tag the tag
+   * @return the entry, or {@code null} if no value is cached
+   */
+  public synchronized Entry get(String serviceURL, String tag) {
+    return entries.get(keyFor(serviceURL, tag));
+  }
+
+  /**
+   * Returns the number of times the value for the given tag of the given
+   * service has been removed since the application started.  This is
+   * taken before requesting the value, and passed to {@link #put}.
+   *
+   * @param serviceURL the URL of the service
+   * @param tag the tag
+   * @return the number of removals
+   */
+  public synchronized int getRemovalCount(String serviceURL, String tag) {
+    Integer count = removalCounts.get(keyFor(serviceURL, tag));
+    return (count != null) ? count : 0;
+  }
+
+  /**
+   * Caches a value just retrieved, unless the value for its tag has been
+   * removed since it was requested.
+   *
+   * @param serviceURL the URL of the service
+   * @param tag the tag
+   * @param jsonValue the JSON text of the value
+   * @param removalCount the result of {@link #getRemovalCount} when the
+   *        value was requested
+   */
+  public synchronized void put(String serviceURL, String tag, String jsonValue,
+      int removalCount) {
+    if (getRemovalCount(serviceURL, tag) != removalCount) {
+      // A value stored since the request was made is newer.
+      return;
+    }
+    String key = keyFor(serviceURL, tag);
+    Entry entry = new Entry(jsonValue, System.currentTimeMillis());
+    Entry previous = entries.put(key, entry);
+    if (previous != null && previous.jsonValue.equals(jsonValue)) {
+      unsavedKeys.add(key);
+      return;
+    }
+    writer.putString(key, encode(entry));
+    unsavedKeys.remove(key);
+    for (String evicted : evict()) {
+      writer.remove(evicted);
+    }
+    if (!unsavedKeys.isEmpty()) {
+      // Iterate rather than calling get, which would count as a use.
+      for (Map.Entry<String, Entry> unsaved : entries.entrySet()) {
+        if (unsavedKeys.contains(unsaved.getKey())) {
+          writer.putString(unsaved.getKey(), encode(unsaved.getValue()));
+        }
+      }
+      unsavedKeys.clear();
+    }
+  }
+
+  /**
+   * Removes the cached value for the given tag of the given service, if
+   * any.
+   *
+   * @param serviceURL the URL of the service
+   * @param tag the tag
+   */
+  public synchronized void remove(String serviceURL, String tag) {
+    String key = keyFor(serviceURL, tag);
+    removalCounts.put(key, getRemovalCount(serviceURL, tag) + 1);
+    unsavedKeys.remove(key);
+    if (entries.remove(key) != null) {
+      writer.remove(key);
+    }
+  }
+
+  // Removes the least recently used entries beyond MAX_ENTRIES, and
+  // returns their keys.
+  private List<String> evict() {
+    List<String> evicted = new ArrayList<String>();
+    Iterator<String> keys = entries.keySet().iterator();
+    for (int excess = entries.size() - MAX_ENTRIES; excess > 0; excess--) {
+      String key = keys.next();
+      evicted.add(key);
+      unsavedKeys.remove(key);
+      keys.remove();
+    }
+    return evicted;
+  }
+
+  private static String encode(Entry entry) {
+    return new JSONArray().put(entry.retrievedAt).put(entry.jsonValue).toString();
+  }
+
+  private void load() {
+    final Map<String, Entry> loaded = new HashMap<String, Entry>();
+    SharedPreferences.Editor editor = preferences.edit();
+    for (Map.Entry<String, ?> pref : preferences.getAll().entrySet()) {
+      try {
+        JSONArray value = new JSONArray((String) pref.getValue());
+        loaded.put(pref.getKey(), new Entry(value.getString(1), value.getLong(0)));
+      } catch (JSONException e) {
+        Log.w(LOG_TAG, "Dropping unreadable cached value " + pref.getKey());
+        editor.remove(pref.getKey());
+      } catch (ClassCastException e) {
+        Log.w(LOG_TAG, "Dropping unreadable cached value " + pref.getKey());
+        editor.remove(pref.getKey());
+      }
+    }
+    // Entries are added oldest first, so that the least recently
+    // retrieved are the first evicted.
+    List<String> keys = new ArrayList<String>(loaded.keySet());
+    Collections.sort(keys, new Comparator<String>() {
+      public int compare(String key1, String key2) {
+        long time1 = loaded.get(key1).retrievedAt;
+        long time2 = loaded.get(key2).retrievedAt;
+        return (time1 < time2) ? -1 : (time1 == time2) ? 0 : 1;
+      }
+    });
+    for (String key : keys) {
+      entries.put(key, loaded.get(key));
+    }
+    for (String evicted : evict()) {
+      editor.remove(evicted);
+    }
+    editor.commit();
+  }
+
+  private static String keyFor(String serviceURL, String tag) {
+    return new JSONArray().put(serviceURL).put(tag).toString();
+  }
+}
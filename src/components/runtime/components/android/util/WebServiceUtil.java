@@ -2,33 +2,38 @@
 
 package com.google.devtools.simple.runtime.components.android.util;
 
+import com.google.devtools.simple.runtime.components.util.JsonStreamParser;
+
 import android.util.Log;
 
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.NameValuePair;
+import org.apache.http.StatusLine;
 import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
+import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.conn.params.ConnManagerParams;
-import org.apache.http.conn.scheme.PlainSocketFactory;
-import org.apache.http.conn.scheme.Scheme;
-import org.apache.http.conn.scheme.SchemeRegistry;
-import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.client.params.CookiePolicy;
+import org.apache.http.client.params.HttpClientParams;
 import org.apache.http.impl.client.BasicResponseHandler;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.protocol.HTTP;
+import org.apache.http.util.EntityUtils;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
 
 /**
  * These commands post to the Web and get responses that are assumed
@@ -36,43 +41,162 @@ import java.util.List;
  * It's up to the caller of these routines to decide which version
  * to use, and to decode the response.
  *
+ * JSON responses are decoded as they are read from the connection,
+ * rather than first being read into a String, and are refused if
+ * they are longer than {@link #MAX_RESPONSE_LENGTH} characters.
+ *
+ * Requests are sent through the shared {@link HttpTransport}, subject
+ * to the {@link CircuitBreaker} for their service URL: while a service
+ * is not responding, requests to it fail without being sent.
+ *
  * @autho billmag@google.com (Bill Magnuson)
  */
 public class WebServiceUtil {
 
-  private static final WebServiceUtil INSTANCE = new WebServiceUtil();
   private static final String LOG_TAG = "WebServiceUtil";
-  private static HttpClient httpClient = null;
-  private static Object httpClientSynchronizer = new Object();
 
-  private WebServiceUtil(){
+  /**
+   * How long requests made through the shared instance wait.
+   */
+  public static final int DEFAULT_TIMEOUT_MILLIS = 20 * 1000;
+
+  // Bounds on the delay before retrying a request.  The delay doubles with
+  // each retry, and a random part of up to half of it is taken off so that
+  // clients that failed together don't all retry together.
+  private static final long MIN_RETRY_DELAY_MILLIS = 500;
+  private static final long MAX_RETRY_DELAY_MILLIS = 8 * 1000;
+
+  private static final WebServiceUtil INSTANCE = new WebServiceUtil(DEFAULT_TIMEOUT_MILLIS, 0);
+
+  private static final Random random = new Random();
+
+  // Keys used to encode a batch of commands and decode the response.
+  private static final String BATCH_COMMANDS_KEY = "commands";
+  private static final String BATCH_COMMAND_NAME_KEY = "command";
+  private static final String BATCH_PARAMS_KEY = "params";
+  private static final String BATCH_RESPONSES_KEY = "responses";
+
+  /**
+   * The batch sent by {@link #postCommandBatch} was answered.
+   */
+  public static final int BATCH_ANSWERED = 0;
+
+  /**
+   * The batch was not sent, for example because the service is not
+   * responding, so none of its commands was run.
+   */
+  public static final int BATCH_NOT_SENT = 1;
+
+  /**
+   * The server does not accept batches, so none of the commands was run.
+   */
+  public static final int BATCH_REJECTED = 2;
+
+  /**
+   * The batch was sent, but got no usable response, so any of its
+   * commands may have been run.
+   */
+  public static final int BATCH_FAILED = 3;
+
+  /**
+   * The largest JSON response, in characters, that will be decoded.
+   */
+  public static final int MAX_RESPONSE_LENGTH = 1024 * 1024;
+
+  private final int timeoutMillis;
+  private final int maxRetries;
+
+  /**
+   * A command to be sent as part of a batch by
+   * {@link WebServiceUtil#postCommandBatch}.
+   */
+  public static class BatchedCommand {
+    private final String commandName;
+    private final List<NameValuePair> params;
+    private final AsyncCallbackPair<JSONObject> callback;
+
+    /**
+     * Creates a batched command.
+     *
+     * @param commandName The path to the command.
+     * @param params A List of NameValuePairs to send as parameters
+     * with the command.
+     * @param callback A callback function that accepts the command's
+     * JSON object response on success.
+     */
+    public BatchedCommand(String commandName, List<NameValuePair> params,
+        AsyncCallbackPair<JSONObject> callback) {
+      this.commandName = commandName;
+      this.params = params;
+      this.callback = callback;
+    }
+
+    public String getCommandName() {
+      return commandName;
+    }
+
+    public List<NameValuePair> getParams() {
+      return params;
+    }
+
+    public AsyncCallbackPair<JSONObject> getCallback() {
+      return callback;
+    }
+  }
+
+  /*
+   * Thrown instead of sending a request while the service's circuit
+   * breaker is open.
+   */
+  private static class ServiceUnavailableException extends IOException {
+    ServiceUnavailableException(String message) {
+      super(message);
+    }
+  }
+
+  private WebServiceUtil(int timeoutMillis, int maxRetries) {
+    this.timeoutMillis = timeoutMillis;
+    this.maxRetries = maxRetries;
   }
 
   /**
-   * Returns the one <code>WebServiceUtil</code> instance
-   * @return the one <code>WebServiceUtil</code> instance
+   * Returns the shared <code>WebServiceUtil</code> instance, whose
+   * requests time out after 20 seconds and are not retried.
+   * @return the shared <code>WebServiceUtil</code> instance
    */
   public static WebServiceUtil getInstance() {
-    // This needs to be here instead of in the constructor because
-    // it uses classes that are in the AndroidSDK and thus would
-    // cause Stub! errors when running the component descriptor.
-    synchronized(httpClientSynchronizer) {
-      if (httpClient == null) {
-        SchemeRegistry schemeRegistry = new SchemeRegistry();
-        schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
-        schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
-        BasicHttpParams params = new BasicHttpParams();
-        HttpConnectionParams.setConnectionTimeout(params, 20 * 1000);
-        HttpConnectionParams.setSoTimeout(params, 20 * 1000);
-        ConnManagerParams.setMaxTotalConnections(params, 20);
-        ThreadSafeClientConnManager manager = new ThreadSafeClientConnManager(params,
-            schemeRegistry);
-        WebServiceUtil.httpClient = new DefaultHttpClient(manager, params);
-      }
-    }
     return INSTANCE;
   }
 
+  /**
+   * Returns a <code>WebServiceUtil</code> whose requests time out after
+   * the given time. Requests are sent through the same
+   * {@link HttpTransport} as those of the shared instance.
+   * @param timeoutMillis how long to wait to connect, and then for each
+   * read of the response, or 0 to wait indefinitely
+   * @return a <code>WebServiceUtil</code> with the given timeout
+   */
+  public static WebServiceUtil getInstance(int timeoutMillis) {
+    return new WebServiceUtil(timeoutMillis, 0);
+  }
+
+  /**
+   * Returns a <code>WebServiceUtil</code> whose requests time out after
+   * the given time, and are retried up to the given number of times if
+   * they fail without a response from the service, or with a response
+   * saying that the service is unavailable. Retries are made after a
+   * delay that grows with each retry. Only commands that can safely be
+   * run twice should be posted through such an instance.
+   * @param timeoutMillis how long to wait to connect, and then for each
+   * read of the response, or 0 to wait indefinitely
+   * @param maxRetries the largest number of times to retry a request
+   * @return a <code>WebServiceUtil</code> with the given timeout and
+   * retries
+   */
+  public static WebServiceUtil getInstance(int timeoutMillis, int maxRetries) {
+    return new WebServiceUtil(timeoutMillis, maxRetries);
+  }
+
   /**
    * Make a post command to serviceURL with params and return the
    * response String as a JSON array.
@@ -86,19 +210,8 @@ public class WebServiceUtil {
    */
   public void postCommandReturningArray(String serviceURL, String commandName,
       List<NameValuePair> params, final AsyncCallbackPair<JSONArray> callback) {
-    AsyncCallbackPair<String> thisCallback = new AsyncCallbackPair<String>() {
-      public void onSuccess(String httpResponseString) {
-        try {
-          callback.onSuccess(new JSONArray(httpResponseString));
-        } catch (JSONException e) {
-          callback.onFailure(e.getMessage());
-        }
-      }
-      public void onFailure(String failureMessage) {
-        callback.onFailure(failureMessage);
-      }
-    };
-    postCommand(serviceURL, commandName, params, thisCallback);
+    postCommandReturningJson(serviceURL, commandName, params, Collections.<String>emptySet(),
+        JSONArray.class, callback);
   }
 
   /**
@@ -114,19 +227,141 @@ public class WebServiceUtil {
    */
   public void postCommandReturningObject(final String serviceURL,final String commandName,
       List<NameValuePair> params, final AsyncCallbackPair<JSONObject> callback) {
-    AsyncCallbackPair<String> thisCallback = new AsyncCallbackPair<String>() {
-    public void onSuccess(String httpResponseString) {
-        try {
-          callback.onSuccess(new JSONObject(httpResponseString));
-        } catch (JSONException e) {
-          callback.onFailure(e.getMessage());
+    postCommandReturningObject(serviceURL, commandName, params, Collections.<String>emptySet(),
+        callback);
+  }
+
+  /**
+   * Make a post command to serviceURL with parameters and return the
+   * response as a JSON object in which the values of the fields named
+   * by listKeys, at any depth, are decoded directly into lists as by
+   * {@link com.google.devtools.simple.runtime.components.util.JsonUtil#convertJsonItem}.
+   * This avoids building JSON arrays for parts of the response that
+   * will only be used as lists.
+   *
+   * @param serviceURL The URL of the server to post to.
+   * @param commandName The path to the command.
+   * @param params A List of NameValuePairs to send as parameters
+   * with the post.
+   * @param listKeys The names of the fields to decode into lists.
+   * @param callback A callback function that accepts a JSON object
+   * on success.
+   */
+  public void postCommandReturningObject(String serviceURL, String commandName,
+      List<NameValuePair> params, Set<String> listKeys,
+      AsyncCallbackPair<JSONObject> callback) {
+    postCommandReturningJson(serviceURL, commandName, params, listKeys, JSONObject.class,
+        callback);
+  }
+
+  /**
+   * Make a single post command to serviceURL that carries several
+   * commands, and pass each command's response to its callback.
+   *
+   * The commands are sent as the parameter "commands", a JSON array
+   * holding an object with "command" and "params" fields for each
+   * command. The response must be a JSON object whose "responses"
+   * field is an array holding the JSON object response to each
+   * command, in order.
+   *
+   * Unlike the other post commands, this reports the failure of the
+   * batch as a whole through its return value rather than through
+   * the commands' callbacks, so that the caller can decide what to do
+   * with the commands. If the batch was sent but got no usable
+   * response, the server may have run any of the commands, so only
+   * commands that can safely be run twice should be sent again.
+   *
+   * @param serviceURL The URL of the server to post to.
+   * @param batchCommandName The path to the batch command.
+   * @param commands The commands to send.
+   * @param listKeys The names of the fields in the responses to decode
+   * into lists, as by {@link #postCommandReturningObject(String,
+   * String, List, Set, AsyncCallbackPair)}.
+   * @return {@link #BATCH_ANSWERED} if the batch was answered, in
+   * which case each command's callback has been called; otherwise
+   * {@link #BATCH_NOT_SENT}, {@link #BATCH_REJECTED} or
+   * {@link #BATCH_FAILED}, in which case none has.
+   */
+  public int postCommandBatch(String serviceURL, String batchCommandName,
+      List<BatchedCommand> commands, Set<String> listKeys) {
+    if (serviceURL == null || serviceURL.equals("")) {
+      return BATCH_NOT_SENT;
+    }
+    JSONArray encodedCommands = new JSONArray();
+    try {
+      for (BatchedCommand command : commands) {
+        JSONObject encodedParams = new JSONObject();
+        for (NameValuePair param : command.getParams()) {
+          encodedParams.put(param.getName(), param.getValue());
         }
+        JSONObject encodedCommand = new JSONObject();
+        encodedCommand.put(BATCH_COMMAND_NAME_KEY, command.getCommandName());
+        encodedCommand.put(BATCH_PARAMS_KEY, encodedParams);
+        encodedCommands.put(encodedCommand);
       }
-      public void onFailure(String failureMessage) {
-        callback.onFailure(failureMessage);
+    } catch (JSONException e) {
+      Log.w(LOG_TAG, e);
+      return BATCH_NOT_SENT;
+    }
+
+    List<NameValuePair> params = new ArrayList<NameValuePair>();
+    params.add(new BasicNameValuePair(BATCH_COMMANDS_KEY, encodedCommands.toString()));
+    Log.d(LOG_TAG, "Posting " + batchCommandName + " to " + serviceURL + " with arguments " +
+        params);
+    HttpPost httpPost = new HttpPost(serviceURL + "/" + batchCommandName);
+    Object result;
+    try {
+      httpPost.setEntity(new UrlEncodedFormEntity(params, HTTP.UTF_8));
+      httpPost.setHeader("Accept", "application/json");
+      result = readJsonResponse(httpPost, execute(serviceURL, httpPost), listKeys);
+    } catch (UnsupportedEncodingException e) {
+      Log.w(LOG_TAG, e);
+      return BATCH_NOT_SENT;
+    } catch (ServiceUnavailableException e) {
+      Log.w(LOG_TAG, e.getMessage());
+      return BATCH_NOT_SENT;
+    } catch (HttpResponseException e) {
+      int statusCode = e.getStatusCode();
+      if (statusCode == HttpStatus.SC_NOT_FOUND ||
+          statusCode == HttpStatus.SC_METHOD_NOT_ALLOWED ||
+          statusCode == HttpStatus.SC_NOT_IMPLEMENTED) {
+        Log.i(LOG_TAG, "Batch rejected with status " + statusCode);
+        return BATCH_REJECTED;
       }
-    };
-    postCommand(serviceURL, commandName, params, thisCallback);
+      Log.w(LOG_TAG, "Batch failed with status " + statusCode);
+      return BATCH_FAILED;
+    } catch (JSONException e) {
+      Log.w(LOG_TAG, e);
+      return BATCH_FAILED;
+    } catch (IOException e) {
+      Log.w(LOG_TAG, e);
+      return BATCH_FAILED;
+    }
+
+    if (!(result instanceof JSONObject)) {
+      Log.w(LOG_TAG, "Batch response is not a JSON object: " + result);
+      return BATCH_FAILED;
+    }
+    JSONArray responses = ((JSONObject) result).optJSONArray(BATCH_RESPONSES_KEY);
+    if (responses == null) {
+      // The server answered with something other than a batch response,
+      // such as an error for an unknown command, so it ran none of the
+      // commands.
+      Log.i(LOG_TAG, "Batch response has no responses: " + result);
+      return BATCH_REJECTED;
+    }
+
+    for (int i = 0; i < commands.size(); i++) {
+      BatchedCommand command = commands.get(i);
+      JSONObject response = responses.optJSONObject(i);
+      if (response != null) {
+        command.getCallback().onSuccess(response);
+      } else {
+        command.getCallback().onFailure("No response to " + command.getCommandName() +
+            " in batch.");
+      }
+    }
+    return BATCH_ANSWERED;
   }
 
   /**
@@ -139,13 +374,18 @@ public class WebServiceUtil {
    * with the post.
    * @param callback A callback function that accepts a String on
    * success.
+   * @return the status code of the response, if the service answered
+   * with an error status, or 0 otherwise. This lets the caller tell a
+   * post the service refused from one that may succeed if it is sent
+   * again.
    */
-  public void postCommand(final String serviceURL, final String commandName,
+  public int postCommand(final String serviceURL, final String commandName,
       List<NameValuePair> params, AsyncCallbackPair<String> callback) {
     Log.d(LOG_TAG, "Posting " + commandName + " to " + serviceURL + " with arguments " + params);
 
     if (serviceURL == null || serviceURL.equals("")) {
       callback.onFailure("No service url to post command to.");
+      return 0;
     }
     final HttpPost httpPost = new HttpPost(serviceURL + "/" + commandName);
 
@@ -157,17 +397,197 @@ public class WebServiceUtil {
       ResponseHandler<String> responseHandler = new BasicResponseHandler();
       httpPost.setEntity(new UrlEncodedFormEntity(params, HTTP.UTF_8));
       httpPost.setHeader("Accept", "application/json");
-      httpResponseString = httpClient.execute(httpPost, responseHandler);
+      HttpResponse response = execute(serviceURL, httpPost);
+      try {
+        httpResponseString = responseHandler.handleResponse(response);
+      } finally {
+        // Release the connection if the handler didn't read the response.
+        HttpEntity entity = response.getEntity();
+        if (entity != null) {
+          entity.consumeContent();
+        }
+      }
       callback.onSuccess(httpResponseString);
     } catch (UnsupportedEncodingException e) {
       Log.w(LOG_TAG, e);
       callback.onFailure("Failed to encode params for web service call.");
+    } catch (HttpResponseException e) {
+      // Thrown by the response handler for an error status
+      Log.w(LOG_TAG, e);
+      callback.onFailure("Communication with the web service encountered a protocol exception.");
+      return e.getStatusCode();
     } catch (ClientProtocolException e) {
       Log.w(LOG_TAG, e);
       callback.onFailure("Communication with the web service encountered a protocol exception.");
+    } catch (ServiceUnavailableException e) {
+      Log.w(LOG_TAG, e.getMessage());
+      callback.onFailure(e.getMessage());
     } catch (IOException e) {
       Log.w(LOG_TAG, e);
       callback.onFailure("Communication with the web service timed out.");
     }
+    return 0;
+  }
+
+  /*
+   * Posts a command as postCommand does, and decodes the response as
+   * it is read into a JSON value of the given class.
+   */
+  private <T> void postCommandReturningJson(String serviceURL, String commandName,
+      List<NameValuePair> params, Set<String> listKeys, Class<T> resultClass,
+      AsyncCallbackPair<T> callback) {
+    Log.d(LOG_TAG, "Posting " + commandName + " to " + serviceURL + " with arguments " + params);
+
+    if (serviceURL == null || serviceURL.equals("")) {
+      callback.onFailure("No service url to post command to.");
+      return;
+    }
+    HttpPost httpPost = new HttpPost(serviceURL + "/" + commandName);
+
+    if (params == null) {
+      params = new ArrayList<NameValuePair>();
+    }
+    Object result;
+    try {
+      httpPost.setEntity(new UrlEncodedFormEntity(params, HTTP.UTF_8));
+      httpPost.setHeader("Accept", "application/json");
+      result = readJsonResponse(httpPost, execute(serviceURL, httpPost), listKeys);
+    } catch (JSONException e) {
+      Log.w(LOG_TAG, e);
+      callback.onFailure(e.getMessage());
+      return;
+    } catch (UnsupportedEncodingException e) {
+      Log.w(LOG_TAG, e);
+      callback.onFailure("Failed to encode params for web service call.");
+      return;
+    } catch (ClientProtocolException e) {
+      Log.w(LOG_TAG, e);
+      callback.onFailure("Communication with the web service encountered a protocol exception.");
+      return;
+    } catch (ServiceUnavailableException e) {
+      Log.w(LOG_TAG, e.getMessage());
+      callback.onFailure(e.getMessage());
+      return;
+    } catch (IOException e) {
+      Log.w(LOG_TAG, e);
+      callback.onFailure("Communication with the web service timed out.");
+      return;
+    }
+
+    if (resultClass.isInstance(result)) {
+      callback.onSuccess(resultClass.cast(result));
+    } else {
+      callback.onFailure("The web service response is not a JSON " +
+          (resultClass == JSONArray.class ? "array." : "object."));
+    }
+  }
+
+  /*
+   * Sends a post through the shared transport, if the service's circuit
+   * breaker allows it, and records the outcome with the breaker. A post
+   * that fails without a response, or with a response saying that the
+   * service is unavailable, is retried up to maxRetries times. Returns
+   * the response to the last attempt.
+   */
+  private HttpResponse execute(String serviceURL, HttpPost httpPost) throws IOException {
+    // Web service components have always shared their cookies, so unlike
+    // the transport's other requests, these keep and send them.
+    HttpClientParams.setCookiePolicy(httpPost.getParams(), CookiePolicy.BROWSER_COMPATIBILITY);
+    CircuitBreaker breaker = CircuitBreaker.forService(serviceURL);
+    for (int retries = 0; ; retries++) {
+      if (!breaker.allowRequest()) {
+        throw new ServiceUnavailableException("The web service is not responding, so the " +
+            "request was not sent. Requests will be sent again in " +
+            ((breaker.getMillisUntilRetry() + 999) / 1000) + " seconds.");
+      }
+
+      HttpResponse response;
+      try {
+        response = HttpTransport.getInstance().execute(httpPost, timeoutMillis);
+      } catch (ClientProtocolException e) {
+        // The service responded, but not with valid HTTP.
+        breaker.recordSuccess();
+        throw e;
+      } catch (IOException e) {
+        breaker.recordFailure();
+        if (retries < maxRetries && waitToRetry(retries)) {
+          Log.i(LOG_TAG, "Retrying " + httpPost.getURI() + " after " + e);
+          continue;
+        }
+        throw e;
+      }
+
+      int statusCode = response.getStatusLine().getStatusCode();
+      if (statusCode == HttpStatus.SC_BAD_GATEWAY ||
+          statusCode == HttpStatus.SC_SERVICE_UNAVAILABLE ||
+          statusCode == HttpStatus.SC_GATEWAY_TIMEOUT) {
+        breaker.recordFailure();
+        if (retries < maxRetries) {
+          HttpEntity entity = response.getEntity();
+          if (entity != null) {
+            entity.consumeContent();
+          }
+          if (waitToRetry(retries)) {
+            Log.i(LOG_TAG, "Retrying " + httpPost.getURI() + " after status " + statusCode);
+            continue;
+          }
+          // The response has been consumed, so report the failure
+          // as if it had not been received.
+          throw new IOException("Interrupted while waiting to retry.");
+        }
+      } else {
+        breaker.recordSuccess();
+      }
+      return response;
+    }
+  }
+
+  /*
+   * Waits before a retry.  Returns false if the thread was interrupted
+   * while waiting, in which case the request should not be retried.
+   */
+  private static boolean waitToRetry(int retries) {
+    long delay = Math.min(MIN_RETRY_DELAY_MILLIS << retries, MAX_RETRY_DELAY_MILLIS);
+    long jitter = (long) (random.nextDouble() * delay / 2);
+    try {
+      Thread.sleep(delay - jitter);
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /*
+   * Decodes the body of a successful response as it is read.  If the body
+   * can't be decoded, the request is aborted rather than reading the rest
+   * of what may be a very long response.
+   */
+  private static Object readJsonResponse(HttpPost httpPost, HttpResponse response,
+      Set<String> listKeys) throws IOException, JSONException {
+    boolean completed = false;
+    try {
+      StatusLine status = response.getStatusLine();
+      if (status.getStatusCode() >= 300) {
+        // As thrown by BasicResponseHandler
+        throw new HttpResponseException(status.getStatusCode(), status.getReasonPhrase());
+      }
+      HttpEntity entity = response.getEntity();
+      if (entity == null) {
+        throw new JSONException("The web service response is empty.");
+      }
+      String charset = EntityUtils.getContentCharSet(entity);
+      JsonStreamParser parser = new JsonStreamParser(
+          new InputStreamReader(entity.getContent(), (charset != null) ? charset : HTTP.UTF_8),
+          MAX_RESPONSE_LENGTH, listKeys);
+      Object result = parser.nextValue();
+      entity.consumeContent();
+      completed = true;
+      return result;
+    } finally {
+      if (!completed) {
+        httpPost.abort();
+      }
+    }
   }
 }
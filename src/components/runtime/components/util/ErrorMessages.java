@@ -93,6 +93,9 @@ public final class ErrorMessages {
   public static final int ERROR_SCREEN_NOT_FOUND = 902;
   // Canvas errors
   public static final int ERROR_CANVAS_BITMAP_ERROR = 1001;
+  public static final int ERROR_CANVAS_INVALID_POINT_LIST = 1002;
+  public static final int ERROR_CANVAS_PIXEL_REGION_OUT_OF_BOUNDS = 1003;
+  public static final int ERROR_CANVAS_INVALID_PIXEL_LIST = 1004;
   // Web errors
   public static final int ERROR_WEB_UNABLE_TO_GET = 1101;
   public static final int ERROR_WEB_UNSUPPORTED_ENCODING = 1102;
@@ -103,6 +106,9 @@ public final class ErrorMessages {
   // Contact picker (and PhoneNumberPicker) errors
   public static final int ERROR_PHONE_UNSUPPORTED_CONTACT_PICKER = 1107;
   public static final int ERROR_PHONE_UNSUPPORTED_SEARCH_IN_CONTACT_PICKING = 1108;
+  // Web errors, continued
+  public static final int ERROR_WEB_INVALID_CACHE_MODE = 1109;
+  public static final int ERROR_WEB_JSON_RESPONSE_DECODE_FAILED = 1110;
   // Mapping of error numbers to error message format strings.
   private static final Map<Integer, String> errorMessages;
   static {
@@ -262,6 +268,12 @@ public final class ErrorMessages {
     errorMessages.put(ERROR_SCREEN_NOT_FOUND, "Screen not found: %s");
     // Canvas errors
     errorMessages.put(ERROR_CANVAS_BITMAP_ERROR, "Error getting Canvas contents to save");
+    errorMessages.put(ERROR_CANVAS_INVALID_POINT_LIST,
+        "Item %s of the list of points is not a number or a pair of numbers.");
+    errorMessages.put(ERROR_CANVAS_PIXEL_REGION_OUT_OF_BOUNDS,
+        "The region at (%s, %s) of width %s and height %s is not within the canvas.");
+    errorMessages.put(ERROR_CANVAS_INVALID_PIXEL_LIST,
+        "Expected a list of %s colors.");
     // Web errors
     errorMessages.put(ERROR_WEB_UNABLE_TO_GET,
         "Unable to get a response with the specified URL: %s");
@@ -280,6 +292,11 @@ public final class ErrorMessages {
         "The software used in this app cannot extract contacts from this type of phone.");
     errorMessages.put(ERROR_PHONE_UNSUPPORTED_SEARCH_IN_CONTACT_PICKING,
         "To pick contacts, pick them directly, without using search.");
+    // Web errors, continued
+    errorMessages.put(ERROR_WEB_INVALID_CACHE_MODE,
+        "The cache mode %s is not valid. Use NetworkOnly, CacheFirst or Revalidate.");
+    errorMessages.put(ERROR_WEB_JSON_RESPONSE_DECODE_FAILED,
+        "Unable to decode the JSON response from the URL %s: %s");
   }
 
   private ErrorMessages() {
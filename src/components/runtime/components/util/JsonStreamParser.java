@@ -0,0 +1,653 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.devtools.simple.runtime.components.util;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Decodes JSON text read from a stream, such as the body of an HTTP
+ * response, without first reading the whole text into a String.
+ *
+ * <p>Values can be decoded either into org.json values, as by
+ * {@link org.json.JSONTokener#nextValue()}, or directly into the lists
+ * produced by {@link JsonUtil#convertJsonItem(Object)}.  The two can be
+ * mixed: the values of object fields with the given list keys are always
+ * decoded into lists, so that a large part of a response that is only
+ * going to be handed to blocks as a list is never built as a JSONArray.
+ *
+ * <p>Values can also be decoded directly into {@link YailList}s, ready to
+ * be handed to blocks, and a single value can be selected from a larger
+ * text with a JSON pointer (RFC 6901), in which case the values around it
+ * are skipped over without being built.
+ *
+ * <p>The parser accepts the same relaxed syntax as JSONTokener (single
+ * quoted and unquoted strings, comments, and so on).  It refuses text
+ * longer than a given number of characters, and values nested more than
+ * {@link #MAX_DEPTH} deep, by throwing a JSONException, so that an
+ * oversized or malicious response can't exhaust the memory or stack of
+ * the thread decoding it.
+ *
+ */
+public final class JsonStreamParser {
+  /**
+   * The deepest that arrays and objects may be nested.
+   */
+  public static final int MAX_DEPTH = 128;
+
+  private static final int BUFFER_SIZE = 4096;
+
+  // The characters that end an unquoted string, as in JSONTokener.
+  private static final String LITERAL_TERMINATORS = ",:]}/\\\"[{;=#";
+
+  private final Reader reader;
+  private final int maxLength;
+  private final Set<String> listKeys;
+
+  private final char[] buffer = new char[BUFFER_SIZE];
+  private int bufferLength;
+  private int position;
+  // The number of characters read into the buffer before its current contents
+  private long charactersBeforeBuffer;
+  private boolean backedUp;
+  private int depth;
+  // Whether lists are built as YailLists rather than ArrayLists
+  private boolean yailLists;
+
+  // Reused to collect strings and literals
+  private final StringBuilder token = new StringBuilder();
+
+  /**
+   * Creates a parser for the text read from the given reader.
+   *
+   * @param reader the source of the text
+   * @param maxLength the largest number of characters that may be read
+   */
+  public JsonStreamParser(Reader reader, int maxLength) {
+    this(reader, maxLength, Collections.<String>emptySet());
+  }
+
+  /**
+   * Creates a parser for the text read from the given reader.
+   *
+   * @param reader the source of the text
+   * @param maxLength the largest number of characters that may be read
+   * @param listKeys the names of object fields whose values
+   *        {@link #nextValue()} decodes as by
+   *        {@link JsonUtil#convertJsonItem(Object)} rather than into
+   *        org.json values
+   */
+  public JsonStreamParser(Reader reader, int maxLength, Set<String> listKeys) {
+    this.reader = reader;
+    this.maxLength = maxLength;
+    this.listKeys = listKeys;
+  }
+
+  /**
+   * Reads the next value.  Objects and arrays are returned as a
+   * {@link JSONObject} or {@link JSONArray}, except for the values of
+   * fields with the list keys; strings as a String; numbers as an Integer,
+   * Long or Double; true and false as a Boolean; and null as
+   * {@link JSONObject#NULL}.
+   *
+   * @return the value
+   * @throws JSONException if the text is not valid JSON, or is too long or
+   *         too deeply nested
+   * @throws IOException if the text can't be read
+   */
+  public Object nextValue() throws IOException, JSONException {
+    return readValue(false);
+  }
+
+  /**
+   * Reads the next value and returns it as
+   * {@link JsonUtil#getObjectFromJson(String)} does: arrays and objects
+   * as lists whose elements are converted as by
+   * {@link JsonUtil#convertJsonItem(Object)}, null as {@code null}, and
+   * other values as by {@link #nextValue()}.
+   *
+   * @return the value
+   * @throws JSONException if the text is not valid JSON, or is too long or
+   *         too deeply nested
+   * @throws IOException if the text can't be read
+   */
+  public Object nextConvertedValue() throws IOException, JSONException {
+    char c = nextClean();
+    back(c);
+    if (c == '[' || c == '{') {
+      return readValue(true);
+    }
+    Object value = readValue(false);
+    return (value == JSONObject.NULL) ? null : value;
+  }
+
+  /**
+   * Reads the next value and returns it as a value for blocks: arrays and
+   * objects as {@link YailList}s, whose elements are converted as by
+   * {@link JsonUtil#convertJsonItem(Object)}, and null as the string
+   * "null".
+   *
+   * @return the value
+   * @throws JSONException if the text is not valid JSON, or is too long or
+   *         too deeply nested
+   * @throws IOException if the text can't be read
+   */
+  public Object nextYailValue() throws IOException, JSONException {
+    return nextYailValue("");
+  }
+
+  /**
+   * Reads the part of the next value selected by a JSON pointer, and
+   * returns it as {@link #nextYailValue()} does.  The values before the
+   * selected one are skipped without being built, and the text after it is
+   * not read.
+   *
+   * @param jsonPointer a JSON pointer, such as "/items/0/name", or the
+   *        empty string to select the whole value
+   * @return the selected value
+   * @throws JSONException if the pointer is not valid or selects nothing, or
+   *         if the text is not valid JSON, or is too long or too deeply
+   *         nested
+   * @throws IOException if the text can't be read
+   */
+  public Object nextYailValue(String jsonPointer) throws IOException, JSONException {
+    yailLists = true;
+    try {
+      for (String referenceToken : parsePointer(jsonPointer)) {
+        if (!selectChild(referenceToken, jsonPointer)) {
+          // The selected element is missing from its array, so is null, as
+          // in readArray.
+          return "null";
+        }
+      }
+      return readValue(true);
+    } finally {
+      yailLists = false;
+    }
+  }
+
+  // Splits a JSON pointer into its reference tokens, unescaped.
+  private static List<String> parsePointer(String jsonPointer) throws JSONException {
+    List<String> referenceTokens = new ArrayList<String>();
+    if (jsonPointer.length() == 0) {
+      return referenceTokens;
+    }
+    if (jsonPointer.charAt(0) != '/') {
+      throw new JSONException("The JSON pointer " + jsonPointer + " does not start with '/'");
+    }
+    for (String referenceToken : jsonPointer.substring(1).split("/", -1)) {
+      referenceTokens.add(referenceToken.replace("~1", "/").replace("~0", "~"));
+    }
+    return referenceTokens;
+  }
+
+  /*
+   * Reads up to the start of the field or element of the next value that is named by the given
+   * reference token, skipping the fields or elements before it.  Returns false if the token
+   * selects an element that is missing from an array.
+   */
+  private boolean selectChild(String referenceToken, String jsonPointer)
+      throws IOException, JSONException {
+    char c = nextClean();
+    if (c == '{') {
+      enter();
+      while (true) {
+        c = nextClean();
+        if (c == 0) {
+          throw syntaxError("A JSONObject text must end with '}'");
+        } else if (c == '}') {
+          break;
+        }
+        String key = readKey(c);
+        if (key.equals(referenceToken)) {
+          return true;
+        }
+        skipValue();
+        if (endOfObject()) {
+          break;
+        }
+      }
+    } else if (c == '[') {
+      enter();
+      int index = parseIndex(referenceToken);
+      c = nextClean();
+      if (c != ']' && index >= 0) {
+        back(c);
+        for (int i = 0; ; i++) {
+          c = nextClean();
+          back(c);
+          boolean missing = (c == ',' || c == ';');
+          if (i == index) {
+            return !missing;
+          }
+          if (!missing) {
+            skipValue();
+          }
+          if (endOfArray()) {
+            break;
+          }
+        }
+      }
+    }
+    throw new JSONException("There is no value at the JSON pointer " + jsonPointer);
+  }
+
+  // Returns the array index given by a reference token, or -1 if it is not one.
+  private static int parseIndex(String referenceToken) {
+    int length = referenceToken.length();
+    if (length == 0 || length > 9 || (length > 1 && referenceToken.charAt(0) == '0')) {
+      return -1;
+    }
+    for (int i = 0; i < length; i++) {
+      if (!Character.isDigit(referenceToken.charAt(i))) {
+        return -1;
+      }
+    }
+    return Integer.parseInt(referenceToken);
+  }
+
+  // Reads the next value without building it.
+  private void skipValue() throws IOException, JSONException {
+    char c = nextClean();
+    switch (c) {
+      case '"':
+      case '\'':
+        readString(c);
+        break;
+      case '[':
+        enter();
+        c = nextClean();
+        if (c != ']') {
+          back(c);
+          do {
+            c = nextClean();
+            back(c);
+            if (c != ',' && c != ';') {
+              skipValue();
+            }
+          } while (!endOfArray());
+        }
+        depth--;
+        break;
+      case '{':
+        enter();
+        while (true) {
+          c = nextClean();
+          if (c == 0) {
+            throw syntaxError("A JSONObject text must end with '}'");
+          } else if (c == '}') {
+            break;
+          }
+          readKey(c);
+          skipValue();
+          if (endOfObject()) {
+            break;
+          }
+        }
+        depth--;
+        break;
+      default:
+        back(c);
+        readLiteral();
+        break;
+    }
+  }
+
+  /*
+   * Reads a value.  If converted is true, arrays and objects are returned
+   * as lists and other values as by JsonUtil.convertJsonItem; otherwise
+   * they are returned as org.json values.
+   */
+  private Object readValue(boolean converted) throws IOException, JSONException {
+    char c = nextClean();
+    switch (c) {
+      case '"':
+      case '\'':
+        String string = readString(c);
+        return converted ? convertString(string) : string;
+      case '[':
+        return readArray(converted);
+      case '{':
+        return readObject(converted);
+      default:
+        back(c);
+        Object literal = literalValue(readLiteral());
+        if (converted) {
+          return (literal == JSONObject.NULL) ? "null" : literal;
+        }
+        return literal;
+    }
+  }
+
+  private Object readArray(boolean converted) throws IOException, JSONException {
+    enter();
+    JSONArray array = converted ? null : new JSONArray();
+    List<Object> list = converted ? new ArrayList<Object>() : null;
+    char c = nextClean();
+    if (c != ']') {
+      back(c);
+      while (true) {
+        Object element;
+        c = nextClean();
+        back(c);
+        if (c == ',' || c == ';') {
+          // As in JSONTokener, a missing element is null.
+          element = converted ? "null" : JSONObject.NULL;
+        } else {
+          element = readValue(converted);
+        }
+        if (converted) {
+          list.add(element);
+        } else {
+          array.put(element);
+        }
+        if (endOfArray()) {
+          break;
+        }
+      }
+    }
+    depth--;
+    if (!converted) {
+      return array;
+    }
+    return yailLists ? YailList.makeList(list) : list;
+  }
+
+  private Object readObject(boolean converted) throws IOException, JSONException {
+    enter();
+    JSONObject object = converted ? null : new JSONObject();
+    // Sorted by key, as by JsonUtil.getListFromJsonObject
+    Map<String, Object> fields = converted ? new TreeMap<String, Object>() : null;
+    while (true) {
+      char c = nextClean();
+      if (c == 0) {
+        throw syntaxError("A JSONObject text must end with '}'");
+      } else if (c == '}') {
+        break;
+      }
+      String key = readKey(c);
+      if (converted) {
+        fields.put(key, readValue(true));
+      } else {
+        object.put(key, readValue(listKeys.contains(key)));
+      }
+      if (endOfObject()) {
+        break;
+      }
+    }
+    depth--;
+
+    if (!converted) {
+      return object;
+    }
+    List<Object> list = new ArrayList<Object>(fields.size());
+    for (Map.Entry<String, Object> field : fields.entrySet()) {
+      List<Object> pair = new ArrayList<Object>(2);
+      pair.add(field.getKey());
+      pair.add(field.getValue());
+      list.add(yailLists ? YailList.makeList(pair) : pair);
+    }
+    return yailLists ? YailList.makeList(list) : list;
+  }
+
+  // Reads an object's key, whose first character c has been read, and the
+  // separator after it.
+  private String readKey(char c) throws IOException, JSONException {
+    String key;
+    if (c == '"' || c == '\'') {
+      key = readString(c);
+    } else {
+      back(c);
+      key = readLiteral();
+    }
+
+    c = nextClean();
+    if (c == '=') {
+      c = next();
+      if (c != '>') {
+        back(c);
+      }
+    } else if (c != ':') {
+      throw syntaxError("Expected a ':' after a key");
+    }
+    return key;
+  }
+
+  // Reads what follows an element of an array, and returns whether it was
+  // the last element.
+  private boolean endOfArray() throws IOException, JSONException {
+    char c = nextClean();
+    if (c == ']') {
+      return true;
+    } else if (c == ',' || c == ';') {
+      c = nextClean();
+      if (c == ']') {
+        return true;
+      }
+      back(c);
+      return false;
+    }
+    throw syntaxError("Expected a ',' or ']'");
+  }
+
+  // Reads what follows a field of an object, and returns whether it was the
+  // last field.
+  private boolean endOfObject() throws IOException, JSONException {
+    char c = nextClean();
+    if (c == '}') {
+      return true;
+    } else if (c == ',' || c == ';') {
+      c = nextClean();
+      if (c == '}') {
+        return true;
+      }
+      back(c);
+      return false;
+    }
+    throw syntaxError("Expected a ',' or '}'");
+  }
+
+  private void enter() throws JSONException {
+    if (++depth > MAX_DEPTH) {
+      throw syntaxError("JSON values nested more than " + MAX_DEPTH + " deep");
+    }
+  }
+
+  // Reads the rest of a string whose opening quote has been read.
+  private String readString(char quote) throws IOException, JSONException {
+    token.setLength(0);
+    while (true) {
+      char c = next();
+      if (c == 0 || c == '\n' || c == '\r') {
+        throw syntaxError("Unterminated string");
+      } else if (c == quote) {
+        return token.toString();
+      } else if (c == '\\') {
+        c = next();
+        switch (c) {
+          case 'b':
+            token.append('\b');
+            break;
+          case 't':
+            token.append('\t');
+            break;
+          case 'n':
+            token.append('\n');
+            break;
+          case 'f':
+            token.append('\f');
+            break;
+          case 'r':
+            token.append('\r');
+            break;
+          case 'u':
+            int code = 0;
+            for (int i = 0; i < 4; i++) {
+              int digit = Character.digit(next(), 16);
+              if (digit < 0) {
+                throw syntaxError("Illegal escape.");
+              }
+              code = (code << 4) | digit;
+            }
+            token.append((char) code);
+            break;
+          case 0:
+            throw syntaxError("Unterminated string");
+          default:
+            // Includes \", \', \\ and \/
+            token.append(c);
+            break;
+        }
+      } else {
+        token.append(c);
+      }
+    }
+  }
+
+  // Reads an unquoted string, such as a number, true, false or null.
+  private String readLiteral() throws IOException, JSONException {
+    token.setLength(0);
+    char c = next();
+    while (c >= ' ' && LITERAL_TERMINATORS.indexOf(c) < 0) {
+      token.append(c);
+      c = next();
+    }
+    back(c);
+    String literal = token.toString().trim();
+    if (literal.length() == 0) {
+      throw syntaxError("Missing value");
+    }
+    return literal;
+  }
+
+  // Converts an unquoted string to a value, as JSONTokener does.
+  private static Object literalValue(String literal) {
+    if (literal.equalsIgnoreCase("true")) {
+      return Boolean.TRUE;
+    }
+    if (literal.equalsIgnoreCase("false")) {
+      return Boolean.FALSE;
+    }
+    if (literal.equalsIgnoreCase("null")) {
+      return JSONObject.NULL;
+    }
+    char first = literal.charAt(0);
+    if ((first >= '0' && first <= '9') || first == '.' || first == '-' || first == '+') {
+      try {
+        if (first == '0' && literal.length() > 2 &&
+            (literal.charAt(1) == 'x' || literal.charAt(1) == 'X')) {
+          return Integer.valueOf(Integer.parseInt(literal.substring(2), 16));
+        }
+        if (literal.indexOf('.') >= 0 || literal.indexOf('e') >= 0 ||
+            literal.indexOf('E') >= 0) {
+          return Double.valueOf(literal);
+        }
+        long value = Long.parseLong(literal.startsWith("+") ? literal.substring(1) : literal);
+        if (value == (int) value) {
+          return Integer.valueOf((int) value);
+        }
+        return Long.valueOf(value);
+      } catch (NumberFormatException e) {
+        // Not a number after all
+      }
+    }
+    return literal;
+  }
+
+  // Converts a quoted string as JsonUtil.convertJsonItem does.
+  private static Object convertString(String string) {
+    if (string.equalsIgnoreCase("true")) {
+      return Boolean.TRUE;
+    }
+    if (string.equalsIgnoreCase("false")) {
+      return Boolean.FALSE;
+    }
+    return string;
+  }
+
+  // Returns the next character that is not whitespace or part of a
+  // comment, or 0 at the end of the text.
+  private char nextClean() throws IOException, JSONException {
+    while (true) {
+      char c = next();
+      if (c == '/') {
+        char second = next();
+        if (second == '/') {
+          skipLine();
+        } else if (second == '*') {
+          while (true) {
+            c = next();
+            if (c == 0) {
+              throw syntaxError("Unclosed comment");
+            }
+            if (c == '*') {
+              c = next();
+              if (c == '/') {
+                break;
+              }
+              back(c);
+            }
+          }
+        } else {
+          back(second);
+          return '/';
+        }
+      } else if (c == '#') {
+        skipLine();
+      } else if (c == 0 || c > ' ') {
+        return c;
+      }
+    }
+  }
+
+  private void skipLine() throws IOException, JSONException {
+    char c;
+    do {
+      c = next();
+    } while (c != '\n' && c != '\r' && c != 0);
+  }
+
+  // Returns the next character, or 0 at the end of the text.
+  private char next() throws IOException, JSONException {
+    if (backedUp) {
+      backedUp = false;
+      return buffer[position - 1];
+    }
+    if (position == bufferLength) {
+      charactersBeforeBuffer += bufferLength;
+      bufferLength = reader.read(buffer, 0, BUFFER_SIZE);
+      position = 0;
+      if (bufferLength <= 0) {
+        bufferLength = 0;
+        return 0;
+      }
+      if (charactersBeforeBuffer + bufferLength > maxLength) {
+        throw new JSONException("The JSON text is longer than " + maxLength + " characters.");
+      }
+    }
+    return buffer[position++];
+  }
+
+  // Makes the last character read by next() be returned by it again.  The
+  // end of the text needs no backing up, since next() keeps returning 0.
+  private void back(char c) {
+    if (c != 0) {
+      backedUp = true;
+    }
+  }
+
+  private JSONException syntaxError(String message) {
+    return new JSONException(message + " at character " +
+        (charactersBeforeBuffer + position));
+  }
+}
@@ -5,8 +5,9 @@ package com.google.devtools.simple.runtime.components.util;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.json.JSONTokener;
 
+import java.io.IOException;
+import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
@@ -174,20 +175,23 @@ public class JsonUtil {
     return JSONObject.quote(value.toString());
   }
 
+  /**
+   * Decodes a JSON string into a Java object: arrays and objects as
+   * lists, as by getListFromJsonArray and getListFromJsonObject, and
+   * other values as by JSONTokener. The lists are built as the string
+   * is parsed, without building JSONArrays and JSONObjects first.
+   *
+   * @param jsonString The JSON string to decode.
+   * @return The decoded value, or null if it is the JSON null.
+   * @throws JSONException if jsonString is not valid JSON.
+   */
   public static Object getObjectFromJson(String jsonString) throws JSONException {
-    final Object value = (new JSONTokener(jsonString)).nextValue();
-    // Note that the JSONTokener may return a value equals() to null.
-    if (value == null || value.equals(null)) {
-      return null;
-    } else if ((value instanceof String) ||
-               (value instanceof Number) ||
-               (value instanceof Boolean)) {
-      return value;
-    } else if (value instanceof JSONArray) {
-      return getListFromJsonArray((JSONArray)value);
-    } else if (value instanceof JSONObject) {
-      return getListFromJsonObject((JSONObject)value);
-    }
-    throw new JSONException("Invalid JSON string.");
+    try {
+      return new JsonStreamParser(new StringReader(jsonString), Integer.MAX_VALUE)
+          .nextConvertedValue();
+    } catch (IOException e) {
+      // A StringReader doesn't throw IOException.
+      throw new JSONException(e.getMessage());
+    }
   }
 }
@@ -0,0 +1,216 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.devtools.simple.runtime.components.util;
+
+import com.google.devtools.simple.runtime.components.SpriteComponent;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Uniform-grid spatial hash over sprites, used as a broad phase for
+ * collision and touch detection.  The plane is divided into square cells of
+ * {@link #getCellSize()} pixels, and each sprite is recorded in every cell
+ * that its bounding box (including a one-pixel border, so that abutting
+ * sprites share a cell) overlaps.  Finding the sprites that might intersect a
+ * given region then only requires looking at the cells the region overlaps,
+ * rather than at every sprite.
+ *
+ * <p>The grid is unbounded: cells are created on demand and discarded when
+ * they become empty, so sprites that leave the visible area are handled
+ * like any other.  Sprites whose bounding box would cover more than
+ * {@link #MAX_CELLS_PER_SPRITE} cells are kept on a separate list that is
+ * included in every query, so that a very large sprite cannot make updates
+ * arbitrarily expensive.
+ *
+ * <p>The caller is responsible for calling {@link #update(SpriteComponent)}
+ * whenever a sprite's location or size changes and
+ * {@link #remove(SpriteComponent)} when it is deleted.
+ *
+ * @param <T> the type of sprite held in the grid
+ */
+public final class SpriteGrid<T extends SpriteComponent> {
+  /**
+   * The default width and height of a cell, in pixels.
+   */
+  public static final int DEFAULT_CELL_SIZE = 64;
+
+  /**
+   * The largest number of cells a single sprite is entered into before it is
+   * treated as oversized.
+   */
+  public static final int MAX_CELLS_PER_SPRITE = 256;
+
+  // The number of pixels outside a sprite's bounds that are indexed.  This
+  // matches the border used by SpriteComponent.colliding().
+  private static final int BORDER = 1;
+
+  private final int cellSize;
+
+  // Maps a packed (column, row) key to the sprites overlapping that cell.
+  private final Map<Long, List<T>> cells = new HashMap<Long, List<T>>();
+
+  // The range of cells each sprite currently occupies, as
+  // {minColumn, minRow, maxColumn, maxRow}.
+  private final Map<T, int[]> extents = new IdentityHashMap<T, int[]>();
+
+  // Sprites too large to be entered cell by cell.
+  private final List<T> oversized = new ArrayList<T>();
+
+  /**
+   * Creates a grid with {@link #DEFAULT_CELL_SIZE} cells.
+   */
+  public SpriteGrid() {
+    this(DEFAULT_CELL_SIZE);
+  }
+
+  /**
+   * Creates a grid with the given cell size.
+   *
+   * @param cellSize the width and height of a cell, in pixels
+   */
+  public SpriteGrid(int cellSize) {
+    if (cellSize <= 0) {
+      throw new IllegalArgumentException("Illegal cell size " + cellSize);
+    }
+    this.cellSize = cellSize;
+  }
+
+  /**
+   * Returns the width and height of a cell.
+   *
+   * @return the cell size, in pixels
+   */
+  public int getCellSize() {
+    return cellSize;
+  }
+
+  /**
+   * Adds the sprite to the grid or, if it is already present, moves it to
+   * the cells matching its current bounding box.
+   *
+   * @param sprite the sprite whose location or size may have changed
+   */
+  public void update(T sprite) {
+    BoundingBox box = sprite.getBoundingBox(BORDER);
+    int minColumn = cellIndex(box.getLeft());
+    int minRow = cellIndex(box.getTop());
+    int maxColumn = cellIndex(box.getRight());
+    int maxRow = cellIndex(box.getBottom());
+
+    int[] extent = extents.get(sprite);
+    if (extent != null) {
+      if (extent[0] == minColumn && extent[1] == minRow &&
+          extent[2] == maxColumn && extent[3] == maxRow) {
+        // Still in the same cells; nothing to do.
+        return;
+      }
+      removeFromCells(sprite, extent);
+    } else {
+      extent = new int[4];
+      extents.put(sprite, extent);
+    }
+    extent[0] = minColumn;
+    extent[1] = minRow;
+    extent[2] = maxColumn;
+    extent[3] = maxRow;
+    addToCells(sprite, extent);
+  }
+
+  /**
+   * Removes the sprite from the grid.  This has no effect if the sprite is
+   * not present.
+   *
+   * @param sprite the sprite to remove
+   */
+  public void remove(T sprite) {
+    int[] extent = extents.remove(sprite);
+    if (extent != null) {
+      removeFromCells(sprite, extent);
+    }
+  }
+
+  /**
+   * Adds to {@code result} every sprite whose indexed cells overlap the given
+   * bounding box.  This is a superset of the sprites that actually intersect
+   * the box; callers must still do an exact test on each candidate.  Passing
+   * a {@link java.util.Set} avoids duplicates for sprites spanning several
+   * cells.
+   *
+   * @param box the region of interest
+   * @param result the collection to which candidates are added
+   */
+  public void findCandidates(BoundingBox box, Collection<? super T> result) {
+    int minColumn = cellIndex(box.getLeft());
+    int minRow = cellIndex(box.getTop());
+    int maxColumn = cellIndex(box.getRight());
+    int maxRow = cellIndex(box.getBottom());
+    if (cellCount(minColumn, minRow, maxColumn, maxRow) > MAX_CELLS_PER_SPRITE) {
+      // The region is huge; every sprite is a candidate.
+      result.addAll(extents.keySet());
+      return;
+    }
+    for (int column = minColumn; column <= maxColumn; column++) {
+      for (int row = minRow; row <= maxRow; row++) {
+        List<T> cell = cells.get(key(column, row));
+        if (cell != null) {
+          result.addAll(cell);
+        }
+      }
+    }
+    result.addAll(oversized);
+  }
+
+  private void addToCells(T sprite, int[] extent) {
+    if (cellCount(extent[0], extent[1], extent[2], extent[3]) > MAX_CELLS_PER_SPRITE) {
+      oversized.add(sprite);
+      return;
+    }
+    for (int column = extent[0]; column <= extent[2]; column++) {
+      for (int row = extent[1]; row <= extent[3]; row++) {
+        Long key = key(column, row);
+        List<T> cell = cells.get(key);
+        if (cell == null) {
+          cell = new ArrayList<T>(4);
+          cells.put(key, cell);
+        }
+        cell.add(sprite);
+      }
+    }
+  }
+
+  private void removeFromCells(T sprite, int[] extent) {
+    if (cellCount(extent[0], extent[1], extent[2], extent[3]) > MAX_CELLS_PER_SPRITE) {
+      oversized.remove(sprite);
+      return;
+    }
+    for (int column = extent[0]; column <= extent[2]; column++) {
+      for (int row = extent[1]; row <= extent[3]; row++) {
+        Long key = key(column, row);
+        List<T> cell = cells.get(key);
+        if (cell != null) {
+          cell.remove(sprite);
+          if (cell.isEmpty()) {
+            cells.remove(key);
+          }
+        }
+      }
+    }
+  }
+
+  private int cellIndex(double coordinate) {
+    return (int) Math.floor(coordinate / cellSize);
+  }
+
+  private static long cellCount(int minColumn, int minRow, int maxColumn, int maxRow) {
+    return ((long) maxColumn - minColumn + 1) * ((long) maxRow - minRow + 1);
+  }
+
+  private static Long key(int column, int row) {
+    return (((long) column) << 32) | (row & 0xFFFFFFFFL);
+  }
+}